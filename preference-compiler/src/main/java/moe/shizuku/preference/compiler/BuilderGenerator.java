@@ -0,0 +1,498 @@
+package moe.shizuku.preference.compiler;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the source of a builder class from a parsed preference XML document.
+ */
+final class BuilderGenerator {
+
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+    private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+
+    private static final String INTENT_TAG_NAME = "intent";
+
+    /**
+     * Thrown for XML the generator cannot translate into equivalent code.
+     */
+    static final class UnsupportedXmlException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedXmlException(String message) {
+            super(message);
+        }
+    }
+
+    private final String mPackageName;
+    private final String mClassName;
+    private final String mResourceName;
+    private final String mRClass;
+    private final String[] mDefaultPackages;
+    private final PreferenceClassResolver mResolver;
+
+    private final List<StringBuilder> mMethods = new ArrayList<>();
+
+    /**
+     * @param defaultPackages Packages searched for tags without a package before the library's,
+     *                        as set with {@code PreferenceManager.setDefaultPackages}.
+     * @param resolver        Describes the classes that are not part of the library.
+     */
+    BuilderGenerator(String packageName, String className, String resourceName,
+                     String rPackage, String[] defaultPackages, PreferenceClassResolver resolver) {
+        mPackageName = packageName;
+        mClassName = className;
+        mResourceName = resourceName;
+        mRClass = rPackage + ".R";
+        mDefaultPackages = defaultPackages;
+        mResolver = resolver;
+    }
+
+    /**
+     * Returns the name of the builder class for an XML resource, such as
+     * {@code SettingsMainPreferenceBuilder} for {@code settings_main}.
+     */
+    static String getClassName(String resourceName) {
+        final StringBuilder name = new StringBuilder();
+        boolean upperCase = true;
+        for (int i = 0; i < resourceName.length(); i++) {
+            final char c = resourceName.charAt(i);
+            if (c == '_' || c == '.') {
+                upperCase = true;
+            } else if (upperCase) {
+                name.append(Character.toUpperCase(c));
+                upperCase = false;
+            } else {
+                name.append(c);
+            }
+        }
+        return name.append("PreferenceBuilder").toString();
+    }
+
+    String generate(Element root) throws UnsupportedXmlException {
+        final PreferenceClass rootClass = findClass(root.getTagName());
+        if (rootClass == null
+                || !(PreferenceClass.PACKAGE + "PreferenceScreen").equals(rootClass.qualifiedName)) {
+            throw new UnsupportedXmlException("root element is not a PreferenceScreen");
+        }
+
+        final StringBuilder build = new StringBuilder();
+        build.append("    public static PreferenceScreen build(PreferenceManager preferenceManager,\n")
+                .append("                                         Context context) {\n")
+                .append("        final PreferenceScreen screen = ")
+                .append("preferenceManager.createPreferenceScreen(context);\n");
+        appendAttributes(build, "screen", rootClass, root);
+        if (hasChildren(root)) {
+            build.append("        ").append(addChildren(root)).append("(context, screen);\n");
+        }
+        build.append("        return screen;\n")
+                .append("    }\n");
+
+        final StringBuilder source = new StringBuilder();
+        source.append("// Generated from res/xml/").append(mResourceName)
+                .append(".xml, do not edit.\n");
+        if (!mPackageName.isEmpty()) {
+            source.append("package ").append(mPackageName).append(";\n\n");
+        }
+        source.append("import android.content.Context;\n\n")
+                .append("import moe.shizuku.preference.PreferenceGroup;\n")
+                .append("import moe.shizuku.preference.PreferenceManager;\n")
+                .append("import moe.shizuku.preference.PreferenceScreen;\n\n")
+                .append("/**\n")
+                .append(" * Builds the preference hierarchy of {@code res/xml/")
+                .append(mResourceName).append(".xml} without inflating it.\n")
+                .append(" */\n")
+                .append("public final class ").append(mClassName).append(" {\n\n")
+                .append("    private ").append(mClassName).append("() {\n")
+                .append("    }\n\n")
+                .append(build);
+        for (final StringBuilder method : mMethods) {
+            source.append('\n').append(method);
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Generates a method adding the children of a group element, and returns its name. Each group
+     * gets its own method to keep methods of large hierarchies small.
+     */
+    private String addChildren(Element group) throws UnsupportedXmlException {
+        final String methodName = "addChildren" + mMethods.size();
+        final StringBuilder method = new StringBuilder();
+        mMethods.add(method);
+
+        method.append("    private static void ").append(methodName)
+                .append("(Context context, PreferenceGroup group) {\n");
+        int index = 0;
+        for (final Element child : getChildElements(group)) {
+            if (INTENT_TAG_NAME.equals(child.getTagName())) {
+                continue;
+            }
+            final PreferenceClass clazz = findClass(child.getTagName());
+            if (clazz == null) {
+                throw new UnsupportedXmlException("unknown preference class "
+                        + child.getTagName());
+            }
+            if (clazz.isAbstract) {
+                throw new UnsupportedXmlException(clazz.qualifiedName + " is abstract");
+            }
+            final String variable = "p" + index++;
+            method.append("        final ").append(clazz.qualifiedName).append(' ')
+                    .append(variable).append(" = new ").append(clazz.qualifiedName)
+                    .append("(context, null);\n");
+            // Like the inflater, set attributes before the preference is added, so that it
+            // reads its initial value with the right key and default
+            appendAttributes(method, variable, clazz, child);
+            method.append("        group.addPreference(").append(variable).append(");\n");
+            if (hasChildren(child)) {
+                if (!clazz.group) {
+                    throw new UnsupportedXmlException(child.getTagName()
+                            + " is not a group but has children");
+                }
+                method.append("        ").append(addChildren(child)).append("(context, ")
+                        .append(variable).append(");\n");
+            }
+        }
+        method.append("    }\n");
+        return methodName;
+    }
+
+    /**
+     * Finds the class of a tag the way the inflater does, trying the default packages in order
+     * for tags without a package.
+     */
+    private PreferenceClass findClass(String tag) throws UnsupportedXmlException {
+        if (tag.indexOf('.') != -1) {
+            // The inflater loads nested classes by their binary name
+            return resolveClass(tag.replace('$', '.'));
+        }
+        for (final String prefix : mDefaultPackages) {
+            final PreferenceClass clazz = resolveClass(prefix + tag);
+            if (clazz != null) {
+                return clazz;
+            }
+        }
+        return resolveClass(PreferenceClass.PACKAGE + tag);
+    }
+
+    private PreferenceClass resolveClass(String qualifiedName) throws UnsupportedXmlException {
+        final PreferenceClass clazz = PreferenceClass.forName(qualifiedName);
+        if (clazz != null) {
+            return clazz;
+        }
+        return mResolver.resolve(qualifiedName);
+    }
+
+    private void appendAttributes(StringBuilder out, String variable, PreferenceClass clazz,
+                                  Element element) throws UnsupportedXmlException {
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            if (XMLNS_NAMESPACE.equals(attribute.getNamespaceURI())) {
+                continue;
+            }
+            final String name = attribute.getLocalName();
+            final String value = attribute.getValue();
+
+            final String argument;
+            final String setter;
+            if ("defaultValue".equals(name)) {
+                final PreferenceClass.ValueType type = clazz.getDefaultValueType();
+                if (type == null) {
+                    throw unsupportedAttribute(element, attribute, clazz,
+                            "the type of its default value is unknown");
+                }
+                setter = "setDefaultValue";
+                argument = convertValue(type, value);
+            } else {
+                final PreferenceClass.Attribute known = clazz.findAttribute(name);
+                if (known == null) {
+                    throw unsupportedAttribute(element, attribute, clazz, "it has no setter "
+                            + "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1)
+                            + " taking a String, CharSequence, int or boolean");
+                }
+                setter = known.setter;
+                argument = known.type == PreferenceClass.ValueType.CONSTANT
+                        ? convertConstant(known, value)
+                        : convertValue(known.type, value);
+            }
+            out.append("        ").append(variable).append('.').append(setter).append('(')
+                    .append(argument).append(");\n");
+        }
+
+        // DialogPreference falls back on the title it was inflated with, which the constructor
+        // called with no attributes does not have yet
+        if (clazz.isSubclassOf(PreferenceClass.PACKAGE + "DialogPreference")
+                && hasAttribute(element, "title") && !hasAttribute(element, "dialogTitle")) {
+            out.append("        ").append(variable).append(".setDialogTitle(").append(variable)
+                    .append(".getTitle());\n");
+        }
+
+        for (final Element child : getChildElements(element)) {
+            if (INTENT_TAG_NAME.equals(child.getTagName())) {
+                appendIntent(out, variable, child);
+            }
+        }
+    }
+
+    private void appendIntent(StringBuilder out, String variable, Element intent)
+            throws UnsupportedXmlException {
+        if (!getChildElements(intent).isEmpty()) {
+            throw new UnsupportedXmlException("intent extras are not supported");
+        }
+        final String action = getAndroidAttribute(intent, "action");
+        final String data = getAndroidAttribute(intent, "data");
+        final String mimeType = getAndroidAttribute(intent, "mimeType");
+        final String targetPackage = getAndroidAttribute(intent, "targetPackage");
+        final String targetClass = getAndroidAttribute(intent, "targetClass");
+
+        out.append("        {\n")
+                .append("            final android.content.Intent intent = ")
+                .append("new android.content.Intent();\n");
+        if (action != null) {
+            out.append("            intent.setAction(")
+                    .append(convertValue(PreferenceClass.ValueType.STRING, action)).append(");\n");
+        }
+        if (data != null || mimeType != null) {
+            out.append("            intent.setDataAndType(")
+                    .append(data != null
+                            ? "android.net.Uri.parse("
+                            + convertValue(PreferenceClass.ValueType.STRING, data) + ")"
+                            : "null")
+                    .append(", ")
+                    .append(mimeType != null
+                            ? convertValue(PreferenceClass.ValueType.STRING, mimeType)
+                            : "null")
+                    .append(");\n");
+        }
+        if (targetPackage != null && targetClass != null) {
+            out.append("            intent.setClassName(")
+                    .append(convertValue(PreferenceClass.ValueType.STRING, targetPackage))
+                    .append(", ")
+                    .append(convertValue(PreferenceClass.ValueType.STRING, targetClass))
+                    .append(");\n");
+        }
+        out.append("            ").append(variable).append(".setIntent(intent);\n")
+                .append("        }\n");
+    }
+
+    private String convertValue(PreferenceClass.ValueType type, String value)
+            throws UnsupportedXmlException {
+        if (value.startsWith("?")) {
+            throw new UnsupportedXmlException("theme attribute " + value
+                    + " cannot be resolved at build time");
+        }
+        final String reference = value.startsWith("@") ? toResourceReference(value) : null;
+        switch (type) {
+            case STRING:
+                return reference != null
+                        ? "context.getString(" + reference + ")"
+                        : toStringLiteral(unescape(value));
+            case TEXT:
+                return reference != null
+                        ? "context.getText(" + reference + ")"
+                        : toStringLiteral(unescape(value));
+            case INT:
+                if (reference != null) {
+                    return "context.getResources().getInteger(" + reference + ")";
+                }
+                try {
+                    return Integer.toString(Integer.decode(value.trim()));
+                } catch (NumberFormatException e) {
+                    throw new UnsupportedXmlException("invalid integer " + value);
+                }
+            case BOOLEAN:
+                if (reference != null) {
+                    return "context.getResources().getBoolean(" + reference + ")";
+                }
+                if ("true".equals(value) || "false".equals(value)) {
+                    return value;
+                }
+                throw new UnsupportedXmlException("invalid boolean " + value);
+            case RESOURCE:
+                if (reference == null) {
+                    throw new UnsupportedXmlException("expected a resource instead of " + value);
+                }
+                return reference;
+            case STRING_SET:
+                if (reference == null) {
+                    throw new UnsupportedXmlException("expected an array instead of " + value);
+                }
+                return "new java.util.HashSet<>(java.util.Arrays.asList("
+                        + "context.getResources().getStringArray(" + reference + ")))";
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Converts the names of an enum or flag attribute, such as {@code textUri|textMultiLine}, to
+     * the expression of their combined value.
+     */
+    private static String convertConstant(PreferenceClass.Attribute attribute, String value)
+            throws UnsupportedXmlException {
+        if (value.startsWith("?") || value.startsWith("@")) {
+            throw new UnsupportedXmlException("unsupported value " + value
+                    + ", expected the names of constants");
+        }
+        final StringBuilder expression = new StringBuilder();
+        for (final String name : value.split("\\|")) {
+            final String constant = attribute.constants.get(name.trim());
+            if (constant == null) {
+                throw new UnsupportedXmlException("unknown constant " + name.trim());
+            }
+            if (expression.length() > 0) {
+                expression.append(" | ");
+            }
+            expression.append(constant);
+        }
+        return expression.toString();
+    }
+
+    /**
+     * Converts a reference such as {@code @string/title} or {@code @android:drawable/icon} to the
+     * R field it stands for.
+     */
+    private String toResourceReference(String value) throws UnsupportedXmlException {
+        String reference = value.substring(1);
+        String rClass = mRClass;
+        if (reference.startsWith("android:")) {
+            reference = reference.substring("android:".length());
+            rClass = "android.R";
+        } else if (reference.startsWith("*") || reference.startsWith("+")) {
+            throw new UnsupportedXmlException("unsupported reference " + value);
+        }
+        final int slash = reference.indexOf('/');
+        if (slash == -1 || reference.indexOf(':') != -1) {
+            throw new UnsupportedXmlException("unsupported reference " + value);
+        }
+        return rClass + "." + reference.substring(0, slash) + "."
+                + reference.substring(slash + 1).replace('.', '_');
+    }
+
+    /**
+     * Processes a literal attribute string the way aapt does: surrounding quotes keep
+     * whitespace, other whitespace runs collapse to one space, and backslash escapes are
+     * resolved.
+     */
+    private static String unescape(String value) {
+        final StringBuilder result = new StringBuilder(value.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                continue;
+            }
+            if (!quoted && Character.isWhitespace(c)) {
+                if (!space) {
+                    result.append(' ');
+                    space = true;
+                }
+                continue;
+            }
+            space = false;
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++i);
+                switch (next) {
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    default:
+                        result.append(next);
+                        break;
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String toStringLiteral(String value) {
+        final StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+                    break;
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private static UnsupportedXmlException unsupportedAttribute(Element element, Attr attribute,
+                                                                PreferenceClass clazz,
+                                                                String reason) {
+        return new UnsupportedXmlException("attribute " + attribute.getName() + " of "
+                + element.getTagName() + " is not supported, " + reason + " in "
+                + clazz.qualifiedName);
+    }
+
+    private static boolean hasAttribute(Element element, String localName) {
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            if (!XMLNS_NAMESPACE.equals(attribute.getNamespaceURI())
+                    && localName.equals(attribute.getLocalName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getAndroidAttribute(Element element, String name) {
+        return element.hasAttributeNS(ANDROID_NAMESPACE, name)
+                ? element.getAttributeNS(ANDROID_NAMESPACE, name) : null;
+    }
+
+    private static boolean hasChildren(Element element) {
+        for (final Element child : getChildElements(element)) {
+            if (!INTENT_TAG_NAME.equals(child.getTagName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Element> getChildElements(Element element) {
+        final List<Element> children = new ArrayList<>();
+        final NodeList nodes = element.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            final Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+}
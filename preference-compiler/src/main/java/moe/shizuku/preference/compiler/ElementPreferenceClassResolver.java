@@ -0,0 +1,166 @@
+package moe.shizuku.preference.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+
+/**
+ * Describes the classes of the compilation and its classpath.
+ * <p>
+ * An attribute of such a class is translated into a call of the public setter named after it,
+ * such as {@code setMin(int)} for {@code app:min}, and its default value is assumed to have the
+ * type of its {@code setValue} method, if it has one.
+ */
+final class ElementPreferenceClassResolver implements PreferenceClassResolver {
+
+    private static final String CONTEXT = "android.content.Context";
+    private static final String ATTRIBUTE_SET = "android.util.AttributeSet";
+
+    private final Elements mElements;
+    private final Map<String, PreferenceClass> mClasses = new HashMap<>();
+
+    ElementPreferenceClassResolver(Elements elements) {
+        mElements = elements;
+    }
+
+    @Override
+    public PreferenceClass resolve(String qualifiedName)
+            throws BuilderGenerator.UnsupportedXmlException {
+        if (mClasses.containsKey(qualifiedName)) {
+            return mClasses.get(qualifiedName);
+        }
+        final TypeElement type = mElements.getTypeElement(qualifiedName);
+        final PreferenceClass clazz = type != null ? describe(type) : null;
+        mClasses.put(qualifiedName, clazz);
+        return clazz;
+    }
+
+    private PreferenceClass describe(TypeElement type)
+            throws BuilderGenerator.UnsupportedXmlException {
+        final String qualifiedName = type.getQualifiedName().toString();
+
+        // The classes between the type and the nearest class the generator knows
+        final List<TypeElement> customTypes = new ArrayList<>();
+        PreferenceClass parent = null;
+        for (TypeElement current = type; current != null; current = getSuperclass(current)) {
+            parent = PreferenceClass.forName(current.getQualifiedName().toString());
+            if (parent != null) {
+                break;
+            }
+            customTypes.add(current);
+        }
+        if (parent == null) {
+            throw new BuilderGenerator.UnsupportedXmlException(qualifiedName
+                    + " is not a preference");
+        }
+        if (!type.getModifiers().contains(Modifier.PUBLIC)) {
+            throw new BuilderGenerator.UnsupportedXmlException(qualifiedName + " is not public");
+        }
+        if (!hasInflationConstructor(type)) {
+            throw new BuilderGenerator.UnsupportedXmlException(qualifiedName
+                    + " has no public constructor taking a Context and an AttributeSet");
+        }
+
+        final PreferenceClass clazz = PreferenceClass.custom(qualifiedName, parent,
+                type.getModifiers().contains(Modifier.ABSTRACT));
+        for (final TypeElement customType : customTypes) {
+            for (final ExecutableElement method
+                    : ElementFilter.methodsIn(customType.getEnclosedElements())) {
+                addSetter(clazz, method);
+            }
+        }
+        return clazz;
+    }
+
+    private static void addSetter(PreferenceClass clazz, ExecutableElement method) {
+        final Set<Modifier> modifiers = method.getModifiers();
+        final String name = method.getSimpleName().toString();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)
+                || name.length() <= 3 || !name.startsWith("set")
+                || method.getParameters().size() != 1) {
+            return;
+        }
+        final PreferenceClass.ValueType type =
+                getValueType(method.getParameters().get(0).asType());
+        if (type == null) {
+            return;
+        }
+
+        if ("setValue".equals(name)) {
+            if (clazz.getDefaultValueType() == null) {
+                clazz.defaultValue(type);
+            }
+            return;
+        }
+        final String attributeName = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+        final PreferenceClass.Attribute declared = clazz.getDeclaredAttribute(attributeName);
+        // Of overloads such as setTitle(int) and setTitle(CharSequence), prefer the one also
+        // taking literals, and subclasses over their superclasses
+        if (declared == null || declared.type == PreferenceClass.ValueType.INT
+                && type != PreferenceClass.ValueType.INT) {
+            clazz.attribute(attributeName, name, type);
+        }
+    }
+
+    private static PreferenceClass.ValueType getValueType(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return PreferenceClass.ValueType.INT;
+            case BOOLEAN:
+                return PreferenceClass.ValueType.BOOLEAN;
+            case DECLARED:
+                final String name = ((TypeElement) ((DeclaredType) type).asElement())
+                        .getQualifiedName().toString();
+                if ("java.lang.String".equals(name)) {
+                    return PreferenceClass.ValueType.STRING;
+                } else if ("java.lang.CharSequence".equals(name)) {
+                    return PreferenceClass.ValueType.TEXT;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean hasInflationConstructor(TypeElement type) {
+        for (final ExecutableElement constructor
+                : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (!constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                continue;
+            }
+            final List<? extends VariableElement> parameters = constructor.getParameters();
+            if (parameters.size() == 2
+                    && isType(parameters.get(0).asType(), CONTEXT)
+                    && isType(parameters.get(1).asType(), ATTRIBUTE_SET)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isType(TypeMirror type, String qualifiedName) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName()
+                .contentEquals(qualifiedName);
+    }
+
+    private static TypeElement getSuperclass(TypeElement type) {
+        final TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+}
@@ -0,0 +1,114 @@
+package moe.shizuku.preference.compiler;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Generates the builders requested by {@link PreferenceBuilders} annotations.
+ * <p>
+ * XML that cannot be translated into equivalent code, such as attributes without a setter, is
+ * reported as a warning naming the element and attribute, and no builder is generated for it, so
+ * the resource has to be inflated as usual.
+ */
+@SupportedAnnotationTypes("moe.shizuku.preference.compiler.PreferenceBuilders")
+@SupportedOptions(PreferenceBuilderProcessor.OPTION_RES_DIR)
+public class PreferenceBuilderProcessor extends AbstractProcessor {
+
+    /**
+     * Path of the resource directory containing the {@code xml} directory.
+     */
+    static final String OPTION_RES_DIR = "preference.resDir";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final PreferenceClassResolver resolver =
+                new ElementPreferenceClassResolver(processingEnv.getElementUtils());
+        for (final Element element : roundEnv.getElementsAnnotatedWith(PreferenceBuilders.class)) {
+            final String resDir = processingEnv.getOptions().get(OPTION_RES_DIR);
+            if (resDir == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Annotation processor option " + OPTION_RES_DIR + " is not set", element);
+                return true;
+            }
+
+            final PreferenceBuilders annotation = element.getAnnotation(PreferenceBuilders.class);
+            final String packageName = processingEnv.getElementUtils().getPackageOf(element)
+                    .getQualifiedName().toString();
+            final String rPackage = annotation.rPackage().isEmpty()
+                    ? packageName : annotation.rPackage();
+
+            for (final String resourceName : annotation.value()) {
+                generate(element, new File(resDir), packageName, rPackage,
+                        annotation.defaultPackages(), resolver, resourceName);
+            }
+        }
+        return true;
+    }
+
+    private void generate(Element element, File resDir, String packageName, String rPackage,
+                          String[] defaultPackages, PreferenceClassResolver resolver,
+                          String resourceName) {
+        final File file = new File(new File(resDir, "xml"), resourceName + ".xml");
+        if (!file.isFile()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Preference XML " + file + " not found", element);
+            return;
+        }
+
+        final String className = BuilderGenerator.getClassName(resourceName);
+        final String source;
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            final DocumentBuilder builder = factory.newDocumentBuilder();
+            final Document document = builder.parse(file);
+            source = new BuilderGenerator(packageName, className, resourceName, rPackage,
+                    defaultPackages, resolver).generate(document.getDocumentElement());
+        } catch (BuilderGenerator.UnsupportedXmlException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Not generating a builder for " + file.getName() + ": " + e.getMessage(),
+                    element);
+            return;
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to parse " + file + ": " + e.getMessage(), element);
+            return;
+        }
+
+        final String qualifiedName = packageName.isEmpty()
+                ? className : packageName + "." + className;
+        try {
+            final JavaFileObject sourceFile =
+                    processingEnv.getFiler().createSourceFile(qualifiedName, element);
+            try (Writer writer = sourceFile.openWriter()) {
+                writer.write(source);
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write " + qualifiedName + ": " + e.getMessage(), element);
+        }
+    }
+}
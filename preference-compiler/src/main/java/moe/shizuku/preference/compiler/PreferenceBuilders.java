@@ -0,0 +1,42 @@
+package moe.shizuku.preference.compiler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a builder class for each of the given preference XML resources, which creates the
+ * same hierarchy as inflating the resource by calling constructors and setters directly.
+ * <p>
+ * For {@code res/xml/settings.xml} the builder is {@code SettingsPreferenceBuilder}, in the
+ * package of the annotated class, with a method
+ * {@code static PreferenceScreen build(PreferenceManager, Context)}.
+ * <p>
+ * The processor reads the XML files from the resource directory given by the
+ * {@code preference.resDir} annotation processor option. Custom preferences need a public
+ * constructor taking a {@code Context} and an {@code AttributeSet}, and a public setter for each
+ * attribute they read themselves, such as {@code setMin(int)} for {@code app:min}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface PreferenceBuilders {
+
+    /**
+     * Names of the XML resources to generate builders for, such as {@code "settings"} for
+     * {@code res/xml/settings.xml}.
+     */
+    String[] value();
+
+    /**
+     * Package of the R class resources are referenced through, the package of the annotated
+     * class if empty.
+     */
+    String rPackage() default "";
+
+    /**
+     * Packages searched for tags without a package before the library's, as set with
+     * {@code PreferenceManager.setDefaultPackages}. Each should end with a period.
+     */
+    String[] defaultPackages() default {};
+}
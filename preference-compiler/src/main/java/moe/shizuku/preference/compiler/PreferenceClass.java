@@ -0,0 +1,286 @@
+package moe.shizuku.preference.compiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes a preference class, with the XML attributes the builder generator can translate
+ * into setter calls.
+ */
+final class PreferenceClass {
+
+    static final String PACKAGE = "moe.shizuku.preference.";
+
+    /**
+     * How an attribute value is turned into the argument of its setter.
+     */
+    enum ValueType {
+        /**
+         * A {@code String}, either literal or a string resource.
+         */
+        STRING,
+        /**
+         * A {@code CharSequence}, either literal or a string resource.
+         */
+        TEXT,
+        INT,
+        BOOLEAN,
+        /**
+         * The ID of a resource.
+         */
+        RESOURCE,
+        /**
+         * A {@code Set<String>} from a string array resource.
+         */
+        STRING_SET,
+        /**
+         * An {@code int} from the names of an enum or flag attribute, such as
+         * {@code textUri|textMultiLine}, see {@link Attribute#constants}.
+         */
+        CONSTANT
+    }
+
+    static final class Attribute {
+
+        final String setter;
+        final ValueType type;
+
+        /**
+         * The Java expression of each name a {@link ValueType#CONSTANT} attribute takes.
+         */
+        final Map<String, String> constants;
+
+        Attribute(String setter, ValueType type) {
+            this(setter, type, null);
+        }
+
+        Attribute(String setter, ValueType type, Map<String, String> constants) {
+            this.setter = setter;
+            this.type = type;
+            this.constants = constants;
+        }
+    }
+
+    private static final Map<String, String> INPUT_TYPES = new HashMap<>();
+    private static final Map<String, String> RINGTONE_TYPES = new HashMap<>();
+    private static final Map<String, String> DIVIDER_VISIBILITIES = new HashMap<>();
+
+    static {
+        final String inputType = "android.text.InputType.";
+        final String text = inputType + "TYPE_CLASS_TEXT | " + inputType;
+        final String number = inputType + "TYPE_CLASS_NUMBER | " + inputType;
+        final String datetime = inputType + "TYPE_CLASS_DATETIME | " + inputType;
+        INPUT_TYPES.put("none", inputType + "TYPE_NULL");
+        INPUT_TYPES.put("text", inputType + "TYPE_CLASS_TEXT");
+        INPUT_TYPES.put("textCapCharacters", text + "TYPE_TEXT_FLAG_CAP_CHARACTERS");
+        INPUT_TYPES.put("textCapWords", text + "TYPE_TEXT_FLAG_CAP_WORDS");
+        INPUT_TYPES.put("textCapSentences", text + "TYPE_TEXT_FLAG_CAP_SENTENCES");
+        INPUT_TYPES.put("textAutoCorrect", text + "TYPE_TEXT_FLAG_AUTO_CORRECT");
+        INPUT_TYPES.put("textAutoComplete", text + "TYPE_TEXT_FLAG_AUTO_COMPLETE");
+        INPUT_TYPES.put("textMultiLine", text + "TYPE_TEXT_FLAG_MULTI_LINE");
+        INPUT_TYPES.put("textImeMultiLine", text + "TYPE_TEXT_FLAG_IME_MULTI_LINE");
+        INPUT_TYPES.put("textNoSuggestions", text + "TYPE_TEXT_FLAG_NO_SUGGESTIONS");
+        INPUT_TYPES.put("textUri", text + "TYPE_TEXT_VARIATION_URI");
+        INPUT_TYPES.put("textEmailAddress", text + "TYPE_TEXT_VARIATION_EMAIL_ADDRESS");
+        INPUT_TYPES.put("textEmailSubject", text + "TYPE_TEXT_VARIATION_EMAIL_SUBJECT");
+        INPUT_TYPES.put("textShortMessage", text + "TYPE_TEXT_VARIATION_SHORT_MESSAGE");
+        INPUT_TYPES.put("textLongMessage", text + "TYPE_TEXT_VARIATION_LONG_MESSAGE");
+        INPUT_TYPES.put("textPersonName", text + "TYPE_TEXT_VARIATION_PERSON_NAME");
+        INPUT_TYPES.put("textPostalAddress", text + "TYPE_TEXT_VARIATION_POSTAL_ADDRESS");
+        INPUT_TYPES.put("textPassword", text + "TYPE_TEXT_VARIATION_PASSWORD");
+        INPUT_TYPES.put("textVisiblePassword", text + "TYPE_TEXT_VARIATION_VISIBLE_PASSWORD");
+        INPUT_TYPES.put("textWebEditText", text + "TYPE_TEXT_VARIATION_WEB_EDIT_TEXT");
+        INPUT_TYPES.put("textFilter", text + "TYPE_TEXT_VARIATION_FILTER");
+        INPUT_TYPES.put("textPhonetic", text + "TYPE_TEXT_VARIATION_PHONETIC");
+        INPUT_TYPES.put("textWebEmailAddress", text + "TYPE_TEXT_VARIATION_WEB_EMAIL_ADDRESS");
+        INPUT_TYPES.put("textWebPassword", text + "TYPE_TEXT_VARIATION_WEB_PASSWORD");
+        INPUT_TYPES.put("number", inputType + "TYPE_CLASS_NUMBER");
+        INPUT_TYPES.put("numberSigned", number + "TYPE_NUMBER_FLAG_SIGNED");
+        INPUT_TYPES.put("numberDecimal", number + "TYPE_NUMBER_FLAG_DECIMAL");
+        INPUT_TYPES.put("numberPassword", number + "TYPE_NUMBER_VARIATION_PASSWORD");
+        INPUT_TYPES.put("phone", inputType + "TYPE_CLASS_PHONE");
+        INPUT_TYPES.put("datetime", datetime + "TYPE_DATETIME_VARIATION_NORMAL");
+        INPUT_TYPES.put("date", datetime + "TYPE_DATETIME_VARIATION_DATE");
+        INPUT_TYPES.put("time", datetime + "TYPE_DATETIME_VARIATION_TIME");
+
+        final String ringtoneManager = "android.media.RingtoneManager.";
+        RINGTONE_TYPES.put("ringtone", ringtoneManager + "TYPE_RINGTONE");
+        RINGTONE_TYPES.put("notification", ringtoneManager + "TYPE_NOTIFICATION");
+        RINGTONE_TYPES.put("alarm", ringtoneManager + "TYPE_ALARM");
+        RINGTONE_TYPES.put("all", ringtoneManager + "TYPE_ALL");
+
+        final String dividerVisibility = PACKAGE + "Preference.DividerVisibility.";
+        DIVIDER_VISIBILITIES.put("unspecified", dividerVisibility + "UNSPECIFIED");
+        DIVIDER_VISIBILITIES.put("enforced", dividerVisibility + "ENFORCED");
+        DIVIDER_VISIBILITIES.put("forbidden", dividerVisibility + "FORBIDDEN");
+    }
+
+    private static final Map<String, PreferenceClass> CLASSES = new HashMap<>();
+
+    static final PreferenceClass PREFERENCE = register("Preference", null, false, false)
+            .attribute("key", "setKey", ValueType.STRING)
+            .attribute("title", "setTitle", ValueType.TEXT)
+            .attribute("summary", "setSummary", ValueType.TEXT)
+            .attribute("order", "setOrder", ValueType.INT)
+            .attribute("fragment", "setFragment", ValueType.STRING)
+            .attribute("icon", "setIcon", ValueType.RESOURCE)
+            .attribute("layout", "setLayoutResource", ValueType.RESOURCE)
+            .attribute("widgetLayout", "setWidgetLayoutResource", ValueType.RESOURCE)
+            .attribute("enabled", "setEnabled", ValueType.BOOLEAN)
+            .attribute("selectable", "setSelectable", ValueType.BOOLEAN)
+            .attribute("persistent", "setPersistent", ValueType.BOOLEAN)
+            .attribute("dependency", "setDependency", ValueType.STRING)
+            .attribute("shouldDisableView", "setShouldDisableView", ValueType.BOOLEAN)
+            .attribute("singleLineTitle", "setSingleLineTitle", ValueType.BOOLEAN)
+            .attribute("iconSpaceReserved", "setIconSpaceReserved", ValueType.BOOLEAN)
+            .attribute("dividerBelowVisibility", "setDividerBelowVisibility",
+                    DIVIDER_VISIBILITIES);
+
+    static {
+        final PreferenceClass group = register("PreferenceGroup", PREFERENCE, true, true)
+                .attribute("orderingFromXml", "setOrderingAsAdded", ValueType.BOOLEAN);
+        register("PreferenceCategory", group, true, false);
+        register("PreferenceScreen", group, true, false);
+
+        final PreferenceClass twoState = register("TwoStatePreference", PREFERENCE, false, true)
+                .attribute("summaryOn", "setSummaryOn", ValueType.TEXT)
+                .attribute("summaryOff", "setSummaryOff", ValueType.TEXT)
+                .attribute("disableDependentsState", "setDisableDependentsState",
+                        ValueType.BOOLEAN)
+                .defaultValue(ValueType.BOOLEAN);
+        register("CheckBoxPreference", twoState, false, false);
+        final PreferenceClass switchPreference = register("SwitchPreference", twoState, false, false)
+                .attribute("switchTextOn", "setSwitchTextOn", ValueType.TEXT)
+                .attribute("switchTextOff", "setSwitchTextOff", ValueType.TEXT);
+        register("SwitchPreferenceCompat", switchPreference, false, false);
+
+        final PreferenceClass dialog = register("DialogPreference", PREFERENCE, false, true)
+                .attribute("dialogTitle", "setDialogTitle", ValueType.TEXT)
+                .attribute("dialogMessage", "setDialogMessage", ValueType.TEXT)
+                .attribute("dialogIcon", "setDialogIcon", ValueType.RESOURCE)
+                .attribute("dialogLayout", "setDialogLayoutResource", ValueType.RESOURCE)
+                .attribute("positiveButtonText", "setPositiveButtonText", ValueType.TEXT)
+                .attribute("negativeButtonText", "setNegativeButtonText", ValueType.TEXT);
+        register("EditTextPreference", dialog, false, false)
+                .attribute("inputType", "setInputType", INPUT_TYPES)
+                .attribute("singleLine", "setSingleLine", ValueType.BOOLEAN)
+                .attribute("selectAllOnFocus", "setSelectAllOnFocus", ValueType.BOOLEAN)
+                .attribute("hint", "setHint", ValueType.STRING)
+                .attribute("commitOnEnter", "setCommitOnEnter", ValueType.BOOLEAN)
+                .defaultValue(ValueType.STRING);
+        final PreferenceClass list = register("ListPreference", dialog, false, false)
+                .attribute("entries", "setEntries", ValueType.RESOURCE)
+                .attribute("entryValues", "setEntryValues", ValueType.RESOURCE)
+                .defaultValue(ValueType.STRING);
+        register("DropDownPreference", list, false, false);
+        register("SimpleMenuPreference", list, false, false);
+        register("MultiSelectListPreference", dialog, false, false)
+                .attribute("entries", "setEntries", ValueType.RESOURCE)
+                .attribute("entryValues", "setEntryValues", ValueType.RESOURCE)
+                .defaultValue(ValueType.STRING_SET);
+
+        register("SeekBarPreference", PREFERENCE, false, false)
+                .attribute("min", "setMin", ValueType.INT)
+                .attribute("max", "setMax", ValueType.INT)
+                .attribute("seekBarIncrement", "setSeekBarIncrement", ValueType.INT)
+                .attribute("adjustable", "setAdjustable", ValueType.BOOLEAN)
+                .defaultValue(ValueType.INT);
+        register("RingtonePreference", PREFERENCE, false, false)
+                .attribute("showDefault", "setShowDefault", ValueType.BOOLEAN)
+                .attribute("showSilent", "setShowSilent", ValueType.BOOLEAN)
+                .attribute("ringtoneType", "setRingtoneType", RINGTONE_TYPES)
+                .attribute("summaryNone", "setSummaryNone", ValueType.STRING)
+                .defaultValue(ValueType.STRING);
+    }
+
+    final String qualifiedName;
+    final boolean group;
+    final boolean isAbstract;
+    private final PreferenceClass mParent;
+    private final Map<String, Attribute> mAttributes = new HashMap<>();
+    private ValueType mDefaultValueType;
+
+    private PreferenceClass(String qualifiedName, PreferenceClass parent, boolean group,
+                            boolean isAbstract) {
+        this.qualifiedName = qualifiedName;
+        this.mParent = parent;
+        this.group = group;
+        this.isAbstract = isAbstract;
+    }
+
+    private static PreferenceClass register(String simpleName, PreferenceClass parent,
+                                            boolean group, boolean isAbstract) {
+        final PreferenceClass clazz =
+                new PreferenceClass(PACKAGE + simpleName, parent, group, isAbstract);
+        CLASSES.put(clazz.qualifiedName, clazz);
+        return clazz;
+    }
+
+    /**
+     * Describes a class the generator does not know, such as a custom preference of the app, with
+     * no attributes of its own yet.
+     *
+     * @param parent The nearest superclass the generator knows.
+     */
+    static PreferenceClass custom(String qualifiedName, PreferenceClass parent,
+                                  boolean isAbstract) {
+        return new PreferenceClass(qualifiedName, parent, parent.group, isAbstract);
+    }
+
+    /**
+     * Returns the class the generator knows by its qualified name, or null.
+     */
+    static PreferenceClass forName(String qualifiedName) {
+        return CLASSES.get(qualifiedName);
+    }
+
+    PreferenceClass attribute(String name, String setter, ValueType type) {
+        mAttributes.put(name, new Attribute(setter, type));
+        return this;
+    }
+
+    private PreferenceClass attribute(String name, String setter, Map<String, String> constants) {
+        mAttributes.put(name, new Attribute(setter, ValueType.CONSTANT, constants));
+        return this;
+    }
+
+    PreferenceClass defaultValue(ValueType type) {
+        mDefaultValueType = type;
+        return this;
+    }
+
+    /**
+     * Returns the attribute declared by this class itself, ignoring its superclasses.
+     */
+    Attribute getDeclaredAttribute(String name) {
+        return mAttributes.get(name);
+    }
+
+    boolean isSubclassOf(String qualifiedName) {
+        for (PreferenceClass clazz = this; clazz != null; clazz = clazz.mParent) {
+            if (clazz.qualifiedName.equals(qualifiedName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Attribute findAttribute(String name) {
+        for (PreferenceClass clazz = this; clazz != null; clazz = clazz.mParent) {
+            final Attribute attribute = clazz.mAttributes.get(name);
+            if (attribute != null) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    ValueType getDefaultValueType() {
+        for (PreferenceClass clazz = this; clazz != null; clazz = clazz.mParent) {
+            if (clazz.mDefaultValueType != null) {
+                return clazz.mDefaultValueType;
+            }
+        }
+        return null;
+    }
+}
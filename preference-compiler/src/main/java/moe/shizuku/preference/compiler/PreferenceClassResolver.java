@@ -0,0 +1,16 @@
+package moe.shizuku.preference.compiler;
+
+/**
+ * Describes the classes of an XML resource the generator does not know, such as custom
+ * preferences of the app.
+ */
+interface PreferenceClassResolver {
+
+    /**
+     * Returns the class with the given qualified name, or null if there is no such class.
+     *
+     * @throws BuilderGenerator.UnsupportedXmlException If the class exists but cannot be created
+     *                                                  by generated code.
+     */
+    PreferenceClass resolve(String qualifiedName) throws BuilderGenerator.UnsupportedXmlException;
+}
@@ -0,0 +1,161 @@
+package moe.shizuku.preference.compiler;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BuilderGeneratorTest {
+
+    private static final String HEADER = "<PreferenceScreen "
+            + "xmlns:android=\"http://schemas.android.com/apk/res/android\" "
+            + "xmlns:app=\"http://schemas.android.com/apk/res-auto\">";
+    private static final String FOOTER = "</PreferenceScreen>";
+
+    private final Map<String, PreferenceClass> mCustomClasses = new HashMap<>();
+
+    private final PreferenceClassResolver mResolver = new PreferenceClassResolver() {
+        @Override
+        public PreferenceClass resolve(String qualifiedName) {
+            return mCustomClasses.get(qualifiedName);
+        }
+    };
+
+    private String generate(String children) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Element root = factory.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(HEADER + children + FOOTER)))
+                .getDocumentElement();
+        return new BuilderGenerator("com.example", "SettingsPreferenceBuilder", "settings",
+                "com.example", new String[]{"com.example."}, mResolver).generate(root);
+    }
+
+    private void assertUnsupported(String children, String expectedMessagePart)
+            throws Exception {
+        try {
+            generate(children);
+            fail("Expected the XML to be rejected");
+        } catch (BuilderGenerator.UnsupportedXmlException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expectedMessagePart));
+        }
+    }
+
+    @Test
+    public void classNameFollowsResourceName() {
+        assertEquals("SettingsMainPreferenceBuilder",
+                BuilderGenerator.getClassName("settings_main"));
+    }
+
+    @Test
+    public void attributesBecomeSetterCalls() throws Exception {
+        final String source = generate("<SwitchPreference android:key=\"switch\" "
+                + "android:title=\"@string/title\" android:summaryOn=\"On\" "
+                + "android:defaultValue=\"true\" app:iconSpaceReserved=\"true\" />");
+        assertTrue(source.contains("new moe.shizuku.preference.SwitchPreference(context, null);"));
+        assertTrue(source.contains("p0.setKey(\"switch\");"));
+        assertTrue(source.contains("p0.setTitle(context.getText(com.example.R.string.title));"));
+        assertTrue(source.contains("p0.setSummaryOn(\"On\");"));
+        assertTrue(source.contains("p0.setDefaultValue(true);"));
+        assertTrue(source.contains("p0.setIconSpaceReserved(true);"));
+        assertTrue(source.contains("group.addPreference(p0);"));
+    }
+
+    @Test
+    public void attributesAreSetBeforeThePreferenceIsAdded() throws Exception {
+        final String source = generate("<CheckBoxPreference android:key=\"checkbox\" />");
+        assertTrue(source.indexOf("p0.setKey(") < source.indexOf("group.addPreference(p0);"));
+    }
+
+    @Test
+    public void nestedGroupsGetTheirOwnMethods() throws Exception {
+        final String source = generate("<PreferenceCategory android:title=\"Category\">"
+                + "<Preference android:key=\"child\" /></PreferenceCategory>");
+        assertTrue(source.contains("addChildren1(context, p0);"));
+        assertTrue(source.contains("private static void addChildren1(Context context, "
+                + "PreferenceGroup group) {"));
+    }
+
+    @Test
+    public void literalTextIsUnescapedLikeAapt() throws Exception {
+        final String source = generate("<Preference android:title=\"a  b\\nc &quot;d \"/>");
+        assertTrue(source, source.contains("p0.setTitle(\"a b\\nc d \");"));
+    }
+
+    @Test
+    public void constantsAreTranslated() throws Exception {
+        final String source = generate("<EditTextPreference android:key=\"number\" "
+                + "android:inputType=\"number|numberSigned\" android:singleLine=\"true\" />"
+                + "<PreferenceCategory app:dividerBelowVisibility=\"enforced\" />");
+        assertTrue(source, source.contains("p0.setInputType(android.text.InputType.TYPE_CLASS_NUMBER"
+                + " | android.text.InputType.TYPE_CLASS_NUMBER"
+                + " | android.text.InputType.TYPE_NUMBER_FLAG_SIGNED);"));
+        assertTrue(source.contains("p0.setSingleLine(true);"));
+        assertTrue(source.contains("p1.setDividerBelowVisibility("
+                + "moe.shizuku.preference.Preference.DividerVisibility.ENFORCED);"));
+        assertUnsupported("<EditTextPreference android:inputType=\"unknown\" />",
+                "unknown constant unknown");
+    }
+
+    @Test
+    public void dialogTitleFallsBackOnTitle() throws Exception {
+        final String source = generate("<ListPreference android:title=\"List\" />"
+                + "<ListPreference android:title=\"List\" android:dialogTitle=\"Dialog\" />");
+        assertTrue(source.contains("p0.setDialogTitle(p0.getTitle());"));
+        assertFalse(source.contains("p1.setDialogTitle(p1.getTitle());"));
+        assertTrue(source.contains("p1.setDialogTitle(\"Dialog\");"));
+    }
+
+    @Test
+    public void customClassesAreResolvedThroughDefaultPackages() throws Exception {
+        final PreferenceClass custom = PreferenceClass.custom("com.example.NumberPreference",
+                PreferenceClass.forName(PreferenceClass.PACKAGE + "DialogPreference"), false)
+                .attribute("min", "setMin", PreferenceClass.ValueType.INT)
+                .defaultValue(PreferenceClass.ValueType.INT);
+        mCustomClasses.put(custom.qualifiedName, custom);
+
+        final String source = generate("<NumberPreference android:key=\"number\" "
+                + "android:defaultValue=\"49\" app:min=\"0\" />"
+                + "<com.example.NumberPreference android:key=\"qualified\" />");
+        assertTrue(source.contains("new com.example.NumberPreference(context, null);"));
+        assertTrue(source.contains("p0.setMin(0);"));
+        assertTrue(source.contains("p0.setDefaultValue(49);"));
+        assertTrue(source.contains("p1.setKey(\"qualified\");"));
+    }
+
+    @Test
+    public void intentIsTranslated() throws Exception {
+        final String source = generate("<Preference android:key=\"intent\">"
+                + "<intent android:action=\"android.intent.action.VIEW\" "
+                + "android:data=\"https://example.com\" /></Preference>");
+        assertTrue(source.contains("intent.setAction(\"android.intent.action.VIEW\");"));
+        assertTrue(source.contains("intent.setDataAndType(android.net.Uri.parse("
+                + "\"https://example.com\"), null);"));
+        assertTrue(source.contains("p0.setIntent(intent);"));
+        assertFalse(source.contains("addChildren1"));
+    }
+
+    @Test
+    public void untranslatableXmlIsRejected() throws Exception {
+        assertUnsupported("<Preference app:unknown=\"true\" />",
+                "attribute app:unknown of Preference is not supported");
+        assertUnsupported("<Preference android:defaultValue=\"1\" />",
+                "the type of its default value is unknown");
+        assertUnsupported("<UnknownPreference />", "unknown preference class UnknownPreference");
+        assertUnsupported("<com.example.UnknownPreference />", "unknown preference class");
+        assertUnsupported("<DialogPreference />", "is abstract");
+        assertUnsupported("<Preference><Preference /></Preference>", "is not a group");
+        assertUnsupported("<Preference android:title=\"?attr/title\" />", "theme attribute");
+        assertUnsupported("<Preference android:order=\"first\" />", "invalid integer");
+    }
+}
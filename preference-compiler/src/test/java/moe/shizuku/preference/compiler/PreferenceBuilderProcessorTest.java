@@ -0,0 +1,201 @@
+package moe.shizuku.preference.compiler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processor in javac over stubs of the library classes, compiling the generated builders
+ * against them too.
+ */
+public class PreferenceBuilderProcessorTest {
+
+    private static final String[] LIBRARY_STUBS = {
+            "android/content/Context.java",
+            "package android.content; public class Context {}",
+            "android/util/AttributeSet.java",
+            "package android.util; public interface AttributeSet {}",
+            "moe/shizuku/preference/Preference.java",
+            "package moe.shizuku.preference; public class Preference {"
+                    + " public Preference(android.content.Context c, android.util.AttributeSet a) {}"
+                    + " public void setKey(String key) {}"
+                    + " public void setDefaultValue(Object defaultValue) {} }",
+            "moe/shizuku/preference/PreferenceGroup.java",
+            "package moe.shizuku.preference; public abstract class PreferenceGroup"
+                    + " extends Preference {"
+                    + " public PreferenceGroup(android.content.Context c,"
+                    + " android.util.AttributeSet a) { super(c, a); }"
+                    + " public boolean addPreference(Preference preference) { return true; } }",
+            "moe/shizuku/preference/PreferenceScreen.java",
+            "package moe.shizuku.preference; public final class PreferenceScreen"
+                    + " extends PreferenceGroup {"
+                    + " PreferenceScreen() { super(null, null); } }",
+            "moe/shizuku/preference/PreferenceManager.java",
+            "package moe.shizuku.preference; public class PreferenceManager {"
+                    + " public PreferenceScreen createPreferenceScreen(android.content.Context c) {"
+                    + " return new PreferenceScreen(); } }",
+            "moe/shizuku/preference/DialogPreference.java",
+            "package moe.shizuku.preference; public abstract class DialogPreference"
+                    + " extends Preference {"
+                    + " public DialogPreference(android.content.Context c,"
+                    + " android.util.AttributeSet a) { super(c, a); } }",
+    };
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<String> mWarnings = new ArrayList<>();
+    private File mGenerated;
+
+    private void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                Charset.forName("UTF-8"))) {
+            writer.write(content);
+        }
+    }
+
+    private void compile(String customPreference, String xml) throws IOException {
+        final File sources = mFolder.newFolder("src");
+        final File res = mFolder.newFolder("res");
+        mGenerated = mFolder.newFolder("generated");
+        final File classes = mFolder.newFolder("classes");
+
+        final List<File> files = new ArrayList<>();
+        for (int i = 0; i < LIBRARY_STUBS.length; i += 2) {
+            final File file = new File(sources, LIBRARY_STUBS[i]);
+            write(file, LIBRARY_STUBS[i + 1]);
+            files.add(file);
+        }
+        final File custom = new File(sources, "com/example/NumberPreference.java");
+        write(custom, customPreference);
+        files.add(custom);
+        final File anchor = new File(sources, "com/example/Settings.java");
+        write(anchor, "package com.example;"
+                + " @moe.shizuku.preference.compiler.PreferenceBuilders("
+                + "value = \"settings\", defaultPackages = \"com.example.\")"
+                + " class Settings {}");
+        files.add(anchor);
+        write(new File(res, "xml/settings.xml"), xml);
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final StandardJavaFileManager fileManager =
+                compiler.getStandardFileManager(diagnostics, null, null);
+        final List<String> options = Arrays.asList(
+                "-A" + PreferenceBuilderProcessor.OPTION_RES_DIR + "=" + res.getPath(),
+                "-s", mGenerated.getPath(),
+                "-d", classes.getPath());
+        final JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                options, null, fileManager.getJavaFileObjectsFromFiles(files));
+        task.setProcessors(Collections.singletonList(new PreferenceBuilderProcessor()));
+        final boolean success = task.call();
+        fileManager.close();
+
+        for (final Diagnostic<? extends JavaFileObject> diagnostic
+                : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.WARNING) {
+                mWarnings.add(diagnostic.getMessage(null));
+            }
+        }
+        assertTrue(diagnostics.getDiagnostics().toString(), success);
+    }
+
+    private File getBuilder() {
+        return new File(mGenerated, "com/example/SettingsPreferenceBuilder.java");
+    }
+
+    private String readBuilder() throws IOException {
+        try (Scanner scanner = new Scanner(getBuilder(), "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+
+    private static String settings(String children) {
+        return "<PreferenceScreen"
+                + " xmlns:android=\"http://schemas.android.com/apk/res/android\""
+                + " xmlns:app=\"http://schemas.android.com/apk/res-auto\">"
+                + children + "</PreferenceScreen>";
+    }
+
+    @Test
+    public void customPreferenceSettersAreUsed() throws Exception {
+        compile("package com.example;"
+                        + " public class NumberPreference"
+                        + " extends moe.shizuku.preference.DialogPreference {"
+                        + " public NumberPreference(android.content.Context c,"
+                        + " android.util.AttributeSet a) { super(c, a); }"
+                        + " public void setValue(int value) {}"
+                        + " public void setMin(int min) {}"
+                        + " public void setLabel(int labelResId) {}"
+                        + " public void setLabel(CharSequence label) {} }",
+                settings("<NumberPreference android:key=\"number\""
+                        + " android:defaultValue=\"49\" app:min=\"0\" app:label=\"Label\" />"));
+        assertTrue(mWarnings.toString(), mWarnings.isEmpty());
+
+        final String source = readBuilder();
+        assertTrue(source, source.contains("new com.example.NumberPreference(context, null);"));
+        assertTrue(source, source.contains("p0.setMin(0);"));
+        assertTrue(source, source.contains("p0.setLabel(\"Label\");"));
+        assertTrue(source, source.contains("p0.setDefaultValue(49);"));
+    }
+
+    @Test
+    public void attributeWithoutSetterIsReported() throws Exception {
+        compile("package com.example;"
+                        + " public class NumberPreference"
+                        + " extends moe.shizuku.preference.DialogPreference {"
+                        + " public NumberPreference(android.content.Context c,"
+                        + " android.util.AttributeSet a) { super(c, a); } }",
+                settings("<NumberPreference android:key=\"number\" app:max=\"99\" />"));
+        assertFalse(getBuilder().exists());
+        assertTrue(mWarnings.toString(), mWarnings.size() == 1
+                && mWarnings.get(0).contains("attribute app:max of NumberPreference")
+                && mWarnings.get(0).contains("setMax"));
+    }
+
+    @Test
+    public void customPreferenceWithoutInflationConstructorIsReported() throws Exception {
+        compile("package com.example;"
+                        + " public class NumberPreference"
+                        + " extends moe.shizuku.preference.DialogPreference {"
+                        + " public NumberPreference(android.content.Context c) { super(c, null); } }",
+                settings("<NumberPreference android:key=\"number\" />"));
+        assertFalse(getBuilder().exists());
+        assertTrue(mWarnings.toString(), mWarnings.size() == 1
+                && mWarnings.get(0).contains("no public constructor"));
+    }
+
+    @Test
+    public void classThatIsNotAPreferenceIsReported() throws Exception {
+        compile("package com.example; public class NumberPreference {"
+                        + " public NumberPreference(android.content.Context c,"
+                        + " android.util.AttributeSet a) {} }",
+                settings("<NumberPreference android:key=\"number\" />"));
+        assertFalse(getBuilder().exists());
+        assertTrue(mWarnings.toString(), mWarnings.size() == 1
+                && mWarnings.get(0).contains("is not a preference"));
+    }
+}
@@ -7,6 +7,7 @@ import android.util.AttributeSet;
 import android.view.View;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import moe.shizuku.preference.simplemenu.R;
 import moe.shizuku.preference.widget.SimpleMenuPopupWindow;
@@ -22,6 +23,19 @@ import moe.shizuku.preference.widget.SimpleMenuPopupWindow;
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class SimpleMenuPreference extends ListPreference {
 
+    /**
+     * Creates instances of this class without reflection. Register it with
+     * {@link PreferenceManager#registerPreferenceFactory(Class, PreferenceFactory)} before
+     * inflating XML that uses this class, for example in {@code Application.onCreate()}.
+     */
+    public static final PreferenceFactory FACTORY = new PreferenceFactory() {
+        @NonNull
+        @Override
+        public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+            return new SimpleMenuPreference(context, attrs);
+        }
+    };
+
     private View mAnchor;
     private View mItemView;
     private SimpleMenuPopupWindow mPopupWindow;
@@ -3,11 +3,27 @@ package moe.shizuku.preference;
 import android.content.Context;
 import android.util.AttributeSet;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import moe.shizuku.preference.switchcompat.R;
 
 
 public class SwitchPreferenceCompat extends SwitchPreference {
 
+    /**
+     * Creates instances of this class without reflection. Register it with
+     * {@link PreferenceManager#registerPreferenceFactory(Class, PreferenceFactory)} before
+     * inflating XML that uses this class, for example in {@code Application.onCreate()}.
+     */
+    public static final PreferenceFactory FACTORY = new PreferenceFactory() {
+        @NonNull
+        @Override
+        public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+            return new SwitchPreferenceCompat(context, attrs);
+        }
+    };
+
     public SwitchPreferenceCompat(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
     }
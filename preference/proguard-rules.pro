@@ -22,4 +22,4 @@
 }
 -keepclassmembers public class * extends moe.shizuku.preference.Preference {
     public <init>(...);
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Debug;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that binding a view holder to the preference it is already bound to, as done for every
+ * change notification of a visible row, does not allocate.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PreferenceBindAllocationTest {
+
+    private static final int WARM_UP_BINDS = 10;
+    private static final int COUNTED_BINDS = 100;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContext = new ContextThemeWrapper(
+                new ContextThemeWrapper(context, android.R.style.Theme_DeviceDefault_Light),
+                R.style.PreferenceThemeOverlay);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void rebindingDoesNotAllocate() {
+        final int[] allocations = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final PreferenceScreen screen =
+                        new PreferenceManager(mContext).createPreferenceScreen(mContext);
+                final Preference preference = new Preference(mContext);
+                preference.setKey("key");
+                preference.setPersistent(false);
+                preference.setTitle("Title");
+                preference.setSummary("Summary");
+                preference.setIcon(new ColorDrawable(Color.BLACK));
+                screen.addPreference(preference);
+
+                final PreferenceGroupAdapter adapter = new PreferenceGroupAdapter(screen);
+                final PreferenceViewHolder holder = adapter.onCreateViewHolder(
+                        new FrameLayout(mContext), adapter.getItemViewType(0));
+                for (int i = 0; i < WARM_UP_BINDS; i++) {
+                    adapter.onBindViewHolder(holder, 0);
+                }
+
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                try {
+                    for (int i = 0; i < COUNTED_BINDS; i++) {
+                        adapter.onBindViewHolder(holder, 0);
+                    }
+                } finally {
+                    Debug.stopAllocCounting();
+                }
+                allocations[0] = Debug.getThreadAllocCount();
+            }
+        });
+        assertEquals(0, allocations[0]);
+    }
+}
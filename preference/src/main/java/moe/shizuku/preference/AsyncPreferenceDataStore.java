@@ -0,0 +1,302 @@
+package moe.shizuku.preference;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * A {@link PreferenceDataStore} for storage that is too slow to be accessed on the main thread,
+ * such as a database, a file or another process.
+ *
+ * <p>Values are loaded in the background by {@link #onLoad(Set)} and kept in memory, so the
+ * getters never block. Until the value of a key has been loaded, they return the default value.
+ * Preferences attached before their value has been loaded are shown in a pending state, in which
+ * they ignore clicks and hide their widget, and are updated once the value arrives. Call
+ * {@link #preload(Collection, Runnable)} with the keys of a screen before showing it to skip the
+ * pending state entirely.
+ *
+ * <p>Changes are applied to the values in memory right away and written in the background by
+ * {@link #onWrite(String, Object)}, in the order they were made.
+ *
+ * @see Preference#setPreferenceDataStore(PreferenceDataStore)
+ * @see PreferenceManager#setPreferenceDataStore(PreferenceDataStore)
+ */
+public abstract class AsyncPreferenceDataStore extends PreferenceDataStore {
+
+    private static final String TAG = "AsyncPreferenceDataStore";
+
+    private final Executor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The loaded values. Keys that do not exist in the storage are absent.
+     */
+    private final Map<String, Object> mValues = new ConcurrentHashMap<>();
+
+    /**
+     * The keys whose values have been loaded or set, whether they exist or not.
+     */
+    private final Set<String> mLoadedKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Object mLock = new Object();
+
+    /**
+     * Keys requested since the last load was started. Guarded by {@link #mLock}.
+     */
+    private final Set<String> mRequestedKeys = new HashSet<>();
+
+    /**
+     * Callbacks waiting for {@link #mRequestedKeys}. Guarded by {@link #mLock}.
+     */
+    private final List<Runnable> mRequestCallbacks = new ArrayList<>();
+
+    private boolean mLoadScheduled;
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startLoad();
+        }
+    };
+
+    /**
+     * Creates a data store that loads and writes values on {@link AsyncTask#SERIAL_EXECUTOR}.
+     */
+    public AsyncPreferenceDataStore() {
+        this(AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    /**
+     * Creates a data store that loads and writes values on the given executor.
+     *
+     * @param executor The executor to use. Unless it runs one task at a time in order, writes
+     *                 may reach the storage in a different order than they were made.
+     */
+    public AsyncPreferenceDataStore(@NonNull Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Loads values from the storage. Called on the executor.
+     * <p>
+     * If this throws, the keys are treated as loaded without a value, so that their preferences
+     * leave the pending state with their default values.
+     *
+     * @param keys The keys to load.
+     * @return The values of the keys that exist in the storage, as {@link String},
+     * {@code Set<String>}, {@link Integer}, {@link Long}, {@link Float} or {@link Boolean}.
+     */
+    @WorkerThread
+    @NonNull
+    protected abstract Map<String, ?> onLoad(@NonNull Set<String> keys);
+
+    /**
+     * Writes a value to the storage. Called on the executor.
+     *
+     * @param key   The key to write.
+     * @param value The new value, of one of the types returned by {@link #onLoad(Set)}, or null
+     *              to remove the key.
+     */
+    @WorkerThread
+    protected abstract void onWrite(@NonNull String key, @Nullable Object value);
+
+    /**
+     * Returns whether the value of a key has been loaded, so that the getters return the value
+     * from the storage rather than the default value.
+     *
+     * @param key The key.
+     * @return Whether the value has been loaded.
+     */
+    public boolean isLoaded(String key) {
+        return mLoadedKeys.contains(key);
+    }
+
+    /**
+     * Loads the values of the given keys in the background. Requests made while the main thread
+     * is busy, such as those of every preference of a screen being attached, are loaded together
+     * with a single call to {@link #onLoad(Set)}.
+     *
+     * @param keys     The keys to load.
+     * @param callback Optional callback run on the main thread once all the keys are loaded.
+     */
+    public void preload(@NonNull Collection<String> keys, @Nullable Runnable callback) {
+        synchronized (mLock) {
+            boolean loaded = true;
+            for (String key : keys) {
+                if (!mLoadedKeys.contains(key)) {
+                    mRequestedKeys.add(key);
+                    loaded = false;
+                }
+            }
+
+            if (!loaded) {
+                if (callback != null) {
+                    mRequestCallbacks.add(callback);
+                }
+                if (!mLoadScheduled) {
+                    mLoadScheduled = true;
+                    mHandler.post(mLoadRunnable);
+                }
+                return;
+            }
+        }
+
+        if (callback != null) {
+            mHandler.post(callback);
+        }
+    }
+
+    private void startLoad() {
+        final Set<String> keys;
+        final List<Runnable> callbacks;
+        synchronized (mLock) {
+            keys = new HashSet<>(mRequestedKeys);
+            callbacks = new ArrayList<>(mRequestCallbacks);
+            mRequestedKeys.clear();
+            mRequestCallbacks.clear();
+            mLoadScheduled = false;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, ?> values;
+                try {
+                    values = onLoad(keys);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to load " + keys, e);
+                    values = null;
+                }
+                if (values == null) {
+                    values = Collections.emptyMap();
+                }
+
+                synchronized (mLock) {
+                    for (String key : keys) {
+                        // Values set while loading are newer than the loaded ones
+                        if (mLoadedKeys.contains(key)) {
+                            continue;
+                        }
+                        final Object value = values.get(key);
+                        if (value != null) {
+                            mValues.put(key, value);
+                        }
+                        mLoadedKeys.add(key);
+                    }
+                }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Runnable callback : callbacks) {
+                            callback.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void putValue(final String key, @Nullable final Object value) {
+        synchronized (mLock) {
+            if (value != null) {
+                mValues.put(key, value);
+            } else {
+                mValues.remove(key);
+            }
+            mLoadedKeys.add(key);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onWrite(key, value);
+            }
+        });
+    }
+
+    @Override
+    public void putString(String key, @Nullable String value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putStringSet(String key, @Nullable Set<String> values) {
+        putValue(key, values != null ? new HashSet<>(values) : null);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        putValue(key, value);
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        final Object value = mValues.get(key);
+        return value instanceof Set ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Float ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        final Object value = mValues.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+}
@@ -0,0 +1,367 @@
+package moe.shizuku.preference;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A {@link PreferenceDataStore} that delays and merges the writes to another data store.
+ *
+ * <p>Values are kept in memory as they are put, and written to the wrapped data store on a
+ * background thread once no more than one write per key is left from a window of time. Dragging a
+ * {@link SeekBarPreference} or toggling a switch rapidly then results in a single write of the
+ * final value. Reads return the latest value, whether it has been written yet or not.
+ *
+ * <p>Pending writes are also flushed when a {@link PreferenceFragment} using this data store
+ * through its {@link PreferenceManager} is stopped, or when {@link #flush()} is called.
+ */
+public class CoalescingPreferenceDataStore extends PreferenceDataStore {
+
+    /**
+     * Stands for a null value, which removes the key, in the maps of pending values.
+     */
+    private static final Object NULL = new Object();
+
+    private final PreferenceDataStore mDataStore;
+    private final long mWindowMillis;
+    private final Executor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    /**
+     * Values waiting for the window to end. Guarded by {@link #mLock}.
+     */
+    private final Map<String, Object> mPendingValues = new LinkedHashMap<>();
+
+    /**
+     * Values being written to {@link #mDataStore}. Guarded by {@link #mLock}.
+     */
+    private final Map<String, Object> mWritingValues = new HashMap<>();
+
+    /**
+     * When the oldest of {@link #mPendingValues} was put. Guarded by {@link #mLock}.
+     */
+    private long mPendingSince;
+
+    private long mWriteCount;
+    private long mCoalescedWriteCount;
+    private long mFlushCount;
+    private long mLastFlushLatency;
+    private long mMaxFlushLatency;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Wraps a data store, writing to it on {@link AsyncTask#SERIAL_EXECUTOR}.
+     *
+     * @param dataStore    The data store to write to.
+     * @param windowMillis How long to wait for more writes after a value is put.
+     */
+    public CoalescingPreferenceDataStore(@NonNull PreferenceDataStore dataStore,
+                                         long windowMillis) {
+        this(dataStore, windowMillis, AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    /**
+     * Wraps a data store, writing to it on the given executor.
+     *
+     * @param dataStore    The data store to write to.
+     * @param windowMillis How long to wait for more writes after a value is put.
+     * @param executor     The executor to write on. Unless it runs one task at a time in order,
+     *                     writes may reach the data store in a different order than they were
+     *                     flushed.
+     */
+    public CoalescingPreferenceDataStore(@NonNull PreferenceDataStore dataStore,
+                                         long windowMillis, @NonNull Executor executor) {
+        mDataStore = dataStore;
+        mWindowMillis = windowMillis;
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the data store written to.
+     *
+     * @return The wrapped data store.
+     */
+    @NonNull
+    public PreferenceDataStore getDataStore() {
+        return mDataStore;
+    }
+
+    private void putValue(String key, @Nullable Object value) {
+        synchronized (mLock) {
+            if (mPendingValues.isEmpty()) {
+                mPendingSince = SystemClock.uptimeMillis();
+                mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+            }
+            if (mPendingValues.put(key, value != null ? value : NULL) != null) {
+                mCoalescedWriteCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a key that has not been written to the wrapped data store yet.
+     *
+     * @return The value, {@link #NULL} if removed, or null if there is none.
+     */
+    @Nullable
+    private Object getPendingValue(String key) {
+        synchronized (mLock) {
+            final Object value = mPendingValues.get(key);
+            return value != null ? value : mWritingValues.get(key);
+        }
+    }
+
+    /**
+     * Starts writing the pending values to the wrapped data store in the background, without
+     * waiting for the window to end.
+     */
+    public void flush() {
+        final Map<String, Object> values;
+        final long pendingSince;
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mPendingValues.isEmpty()) {
+                return;
+            }
+            values = new LinkedHashMap<>(mPendingValues);
+            pendingSince = mPendingSince;
+            mPendingValues.clear();
+            mWritingValues.putAll(values);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    write(entry.getKey(), entry.getValue());
+                }
+
+                synchronized (mLock) {
+                    for (Map.Entry<String, Object> entry : values.entrySet()) {
+                        // Keep values put and flushed again while writing
+                        if (mWritingValues.get(entry.getKey()) == entry.getValue()) {
+                            mWritingValues.remove(entry.getKey());
+                        }
+                    }
+
+                    final long latency = SystemClock.uptimeMillis() - pendingSince;
+                    mWriteCount += values.size();
+                    mFlushCount++;
+                    mLastFlushLatency = latency;
+                    mMaxFlushLatency = Math.max(mMaxFlushLatency, latency);
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(String key, Object value) {
+        if (value == NULL) {
+            // Only strings and string sets can be removed through the data store interface
+            mDataStore.putString(key, null);
+        } else if (value instanceof String) {
+            mDataStore.putString(key, (String) value);
+        } else if (value instanceof Set) {
+            mDataStore.putStringSet(key, (Set<String>) value);
+        } else if (value instanceof Integer) {
+            mDataStore.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            mDataStore.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            mDataStore.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            mDataStore.putBoolean(key, (Boolean) value);
+        }
+    }
+
+    /**
+     * Returns the number of values written to the wrapped data store.
+     *
+     * @return The number of writes.
+     */
+    public long getWriteCount() {
+        synchronized (mLock) {
+            return mWriteCount;
+        }
+    }
+
+    /**
+     * Returns the number of values that were replaced by a newer value of the same key before
+     * being written, and so never had to be written.
+     *
+     * @return The number of coalesced writes.
+     */
+    public long getCoalescedWriteCount() {
+        synchronized (mLock) {
+            return mCoalescedWriteCount;
+        }
+    }
+
+    /**
+     * Returns the number of flushes that completed.
+     *
+     * @return The number of flushes.
+     */
+    public long getFlushCount() {
+        synchronized (mLock) {
+            return mFlushCount;
+        }
+    }
+
+    /**
+     * Returns how long it took for the oldest value of the last flush, from being put to having
+     * been written to the wrapped data store.
+     *
+     * @return The latency in milliseconds, 0 if nothing has been flushed yet.
+     */
+    public long getLastFlushLatency() {
+        synchronized (mLock) {
+            return mLastFlushLatency;
+        }
+    }
+
+    /**
+     * Returns the highest latency of all flushes so far.
+     *
+     * @return The latency in milliseconds, 0 if nothing has been flushed yet.
+     * @see #getLastFlushLatency()
+     */
+    public long getMaxFlushLatency() {
+        synchronized (mLock) {
+            return mMaxFlushLatency;
+        }
+    }
+
+    @Nullable
+    @Override
+    public Map<String, ?> getAll() {
+        final Map<String, ?> values = mDataStore.getAll();
+        if (values == null) {
+            return null;
+        }
+
+        final Map<String, Object> result = new HashMap<>(values);
+        synchronized (mLock) {
+            applyPendingValues(result, mWritingValues);
+            applyPendingValues(result, mPendingValues);
+        }
+        return result;
+    }
+
+    private static void applyPendingValues(Map<String, Object> values,
+                                           Map<String, Object> pendingValues) {
+        for (Map.Entry<String, Object> entry : pendingValues.entrySet()) {
+            if (entry.getValue() == NULL) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void putString(String key, @Nullable String value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putStringSet(String key, @Nullable Set<String> values) {
+        putValue(key, values != null ? new HashSet<>(values) : null);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        putValue(key, value);
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        final Object value = getPendingValue(key);
+        if (value == null) {
+            return mDataStore.getString(key, defValue);
+        }
+        return value != NULL ? (String) value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        final Object value = getPendingValue(key);
+        if (value == null) {
+            return mDataStore.getStringSet(key, defValues);
+        }
+        return value != NULL ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        final Object value = getPendingValue(key);
+        if (value == null) {
+            return mDataStore.getInt(key, defValue);
+        }
+        return value != NULL ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        final Object value = getPendingValue(key);
+        if (value == null) {
+            return mDataStore.getLong(key, defValue);
+        }
+        return value != NULL ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        final Object value = getPendingValue(key);
+        if (value == null) {
+            return mDataStore.getFloat(key, defValue);
+        }
+        return value != NULL ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        final Object value = getPendingValue(key);
+        if (value == null) {
+            return mDataStore.getBoolean(key, defValue);
+        }
+        return value != NULL ? (Boolean) value : defValue;
+    }
+}
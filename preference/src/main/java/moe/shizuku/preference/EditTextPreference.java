@@ -182,6 +182,15 @@ public class EditTextPreference extends DialogPreference {
         return mInputType;
     }
 
+    /**
+     * Sets the input type of the dialog's {@link EditText}.
+     *
+     * @param inputType The input type, see {@link InputType}.
+     */
+    public void setInputType(int inputType) {
+        mInputType = inputType;
+    }
+
     /**
      *
      * @return Hint
@@ -190,6 +199,15 @@ public class EditTextPreference extends DialogPreference {
         return mHint;
     }
 
+    /**
+     * Sets the hint of the dialog's {@link EditText}.
+     *
+     * @param hint The hint.
+     */
+    public void setHint(String hint) {
+        mHint = hint;
+    }
+
     /**
      * @return is SingleLine
      */
@@ -197,14 +215,41 @@ public class EditTextPreference extends DialogPreference {
         return mSingleLine;
     }
 
+    /**
+     * Sets whether the dialog's {@link EditText} is constrained to one line.
+     *
+     * @param singleLine Whether to constrain the text to one line.
+     */
+    public void setSingleLine(boolean singleLine) {
+        mSingleLine = singleLine;
+    }
+
     public boolean isSelectAllOnFocus() {
         return mSelectAllOnFocus;
     }
 
+    /**
+     * Sets whether the text is selected when the dialog's {@link EditText} gets focus.
+     *
+     * @param selectAllOnFocus Whether to select all the text on focus.
+     */
+    public void setSelectAllOnFocus(boolean selectAllOnFocus) {
+        mSelectAllOnFocus = selectAllOnFocus;
+    }
+
     public boolean isCommitOnEnter() {
         return mCommitOnEnter;
     }
 
+    /**
+     * Sets whether pressing enter in the dialog's {@link EditText} commits the text.
+     *
+     * @param commitOnEnter Whether to commit the text on enter.
+     */
+    public void setCommitOnEnter(boolean commitOnEnter) {
+        mCommitOnEnter = commitOnEnter;
+    }
+
     @Override
     protected Object onGetDefaultValue(TypedArray a, int index) {
         return a.getString(index);
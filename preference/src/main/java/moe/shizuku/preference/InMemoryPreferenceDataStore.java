@@ -0,0 +1,458 @@
+package moe.shizuku.preference;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A {@link PreferenceDataStore} that keeps its values in memory, without boxing primitive values.
+ *
+ * <p>Values are stored in an open-addressing hash table: ints, longs, floats and booleans in a
+ * {@code long} array and strings and string sets in an object array, so none of the getters
+ * allocate. Keys are interned when they are first stored, which lets lookups with the same key
+ * objects, such as those of the preferences, succeed with a reference comparison.
+ *
+ * <p>It can be used on its own, for values that are only valid per session, or as a cache in
+ * front of a slower data store. In the latter case, values are written through to the other data
+ * store, and if it supports {@link PreferenceDataStore#getAll()}, all of its values are loaded
+ * when this is created so that reads never reach it. Otherwise each key is read from it the first
+ * time it is requested and then kept like the values that were put, including whether it exists.
+ *
+ * <p>Like {@link android.content.SharedPreferences}, the getters throw {@link ClassCastException}
+ * if the value of a key has a different type. Instances are thread-safe.
+ */
+public class InMemoryPreferenceDataStore extends PreferenceDataStore {
+
+    /**
+     * Marks a key that was read through and does not exist in {@link #mDataStore}, so that it is
+     * not read again.
+     */
+    private static final byte TYPE_ABSENT = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_SET = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    @Nullable
+    private final PreferenceDataStore mDataStore;
+
+    /**
+     * Whether all values of {@link #mDataStore} have been loaded.
+     */
+    private final boolean mComplete;
+
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private byte[] mTypes = new byte[INITIAL_CAPACITY];
+    private long[] mPrimitives = new long[INITIAL_CAPACITY];
+    private Object[] mObjects = new Object[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Creates an empty data store.
+     */
+    public InMemoryPreferenceDataStore() {
+        mDataStore = null;
+        mComplete = true;
+    }
+
+    /**
+     * Creates a data store caching the values of another data store. If the other data store
+     * supports {@link PreferenceDataStore#getAll()}, it is called from this constructor.
+     *
+     * @param dataStore The data store to cache.
+     */
+    @SuppressWarnings("unchecked")
+    public InMemoryPreferenceDataStore(@NonNull PreferenceDataStore dataStore) {
+        mDataStore = dataStore;
+
+        final Map<String, ?> values = dataStore.getAll();
+        mComplete = values != null;
+        if (values == null) {
+            return;
+        }
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (key == null || value == null) {
+                continue;
+            }
+            if (value instanceof String) {
+                putObject(key, TYPE_STRING, value);
+            } else if (value instanceof Set) {
+                putObject(key, TYPE_STRING_SET,
+                        Collections.unmodifiableSet(new HashSet<>((Set<String>) value)));
+            } else if (value instanceof Integer) {
+                putPrimitive(key, TYPE_INT, (Integer) value);
+            } else if (value instanceof Long) {
+                putPrimitive(key, TYPE_LONG, (Long) value);
+            } else if (value instanceof Float) {
+                putPrimitive(key, TYPE_FLOAT, Float.floatToRawIntBits((Float) value));
+            } else if (value instanceof Boolean) {
+                putPrimitive(key, TYPE_BOOLEAN, (Boolean) value ? 1 : 0);
+            }
+        }
+    }
+
+    private static int hash(String key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the slot of a key, or -1 if it is not in the table.
+     */
+    private int findSlot(String key) {
+        final String[] keys = mKeys;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        String k;
+        while ((k = keys[i]) != null) {
+            if (k == key || k.equals(key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of a key, adding it to the table if needed.
+     */
+    private int insertSlot(String key) {
+        final int slot = findSlot(key);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        // Keep the table at most three quarters full
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            resize(mKeys.length * 2);
+        }
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key.intern();
+        mSize++;
+        return i;
+    }
+
+    private void resize(int capacity) {
+        final String[] oldKeys = mKeys;
+        final byte[] oldTypes = mTypes;
+        final long[] oldPrimitives = mPrimitives;
+        final Object[] oldObjects = mObjects;
+
+        mKeys = new String[capacity];
+        mTypes = new byte[capacity];
+        mPrimitives = new long[capacity];
+        mObjects = new Object[capacity];
+
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            final String key = oldKeys[j];
+            if (key == null) {
+                continue;
+            }
+            int i = hash(key) & mask;
+            while (mKeys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = key;
+            mTypes[i] = oldTypes[j];
+            mPrimitives[i] = oldPrimitives[j];
+            mObjects[i] = oldObjects[j];
+        }
+    }
+
+    /**
+     * Removes the key in a slot, moving back the keys that follow it so that no lookup stops at
+     * the emptied slot too early.
+     */
+    private void removeSlot(int slot) {
+        final String[] keys = mKeys;
+        final int mask = keys.length - 1;
+        int i = slot;
+        int j = slot;
+        while (true) {
+            keys[i] = null;
+            mObjects[i] = null;
+
+            int home;
+            do {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    mSize--;
+                    return;
+                }
+                home = hash(keys[j]) & mask;
+                // Skip keys whose home slot lies cyclically in (i, j], they are reachable
+            } while (i <= j ? (i < home && home <= j) : (i < home || home <= j));
+
+            keys[i] = keys[j];
+            mTypes[i] = mTypes[j];
+            mPrimitives[i] = mPrimitives[j];
+            mObjects[i] = mObjects[j];
+            i = j;
+        }
+    }
+
+    private synchronized void putPrimitive(String key, byte type, long value) {
+        final int slot = insertSlot(key);
+        mTypes[slot] = type;
+        mPrimitives[slot] = value;
+        mObjects[slot] = null;
+    }
+
+    private synchronized void putObject(String key, byte type, @Nullable Object value) {
+        if (value == null && !shouldReadThrough()) {
+            final int slot = findSlot(key);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            return;
+        }
+        final int slot = insertSlot(key);
+        mTypes[slot] = value != null ? type : TYPE_ABSENT;
+        mPrimitives[slot] = 0;
+        mObjects[slot] = value;
+    }
+
+    /**
+     * Keeps a value read from {@link #mDataStore}, unless the key was put while reading it.
+     *
+     * @param type The type of the value, or {@link #TYPE_ABSENT} if the key does not exist.
+     */
+    private synchronized void cacheValue(String key, byte type, long primitive,
+                                         @Nullable Object object) {
+        if (findSlot(key) >= 0) {
+            return;
+        }
+        final int slot = insertSlot(key);
+        mTypes[slot] = type;
+        mPrimitives[slot] = primitive;
+        mObjects[slot] = object;
+    }
+
+    /**
+     * Returns the slot of a key after checking the type of its value, or -1 if it is not in the
+     * table. The slot of an absent key holds {@link #TYPE_ABSENT}.
+     */
+    private int getSlot(String key, byte type) {
+        final int slot = findSlot(key);
+        if (slot >= 0 && mTypes[slot] != type && mTypes[slot] != TYPE_ABSENT) {
+            throw new ClassCastException("Value of " + key + " has a different type");
+        }
+        return slot;
+    }
+
+    /**
+     * Whether a key that is not in the table has to be read from {@link #mDataStore}.
+     */
+    private boolean shouldReadThrough() {
+        return !mComplete;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        final Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < mKeys.length; i++) {
+            final String key = mKeys[i];
+            if (key == null) {
+                continue;
+            }
+            final long primitive = mPrimitives[i];
+            switch (mTypes[i]) {
+                case TYPE_STRING:
+                case TYPE_STRING_SET:
+                    values.put(key, mObjects[i]);
+                    break;
+                case TYPE_INT:
+                    values.put(key, (int) primitive);
+                    break;
+                case TYPE_LONG:
+                    values.put(key, primitive);
+                    break;
+                case TYPE_FLOAT:
+                    values.put(key, Float.intBitsToFloat((int) primitive));
+                    break;
+                case TYPE_BOOLEAN:
+                    values.put(key, primitive != 0);
+                    break;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void putString(String key, @Nullable String value) {
+        putObject(key, TYPE_STRING, value);
+        if (mDataStore != null) {
+            mDataStore.putString(key, value);
+        }
+    }
+
+    @Override
+    public void putStringSet(String key, @Nullable Set<String> values) {
+        putObject(key, TYPE_STRING_SET,
+                values != null ? Collections.unmodifiableSet(new HashSet<>(values)) : null);
+        if (mDataStore != null) {
+            mDataStore.putStringSet(key, values);
+        }
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        putPrimitive(key, TYPE_INT, value);
+        if (mDataStore != null) {
+            mDataStore.putInt(key, value);
+        }
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        putPrimitive(key, TYPE_LONG, value);
+        if (mDataStore != null) {
+            mDataStore.putLong(key, value);
+        }
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        putPrimitive(key, TYPE_FLOAT, Float.floatToRawIntBits(value));
+        if (mDataStore != null) {
+            mDataStore.putFloat(key, value);
+        }
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        putPrimitive(key, TYPE_BOOLEAN, value ? 1 : 0);
+        if (mDataStore != null) {
+            mDataStore.putBoolean(key, value);
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        synchronized (this) {
+            final int slot = getSlot(key, TYPE_STRING);
+            if (slot >= 0) {
+                return mTypes[slot] == TYPE_STRING ? (String) mObjects[slot] : defValue;
+            }
+            if (!shouldReadThrough()) {
+                return defValue;
+            }
+        }
+        final String value = mDataStore.getString(key, null);
+        cacheValue(key, value != null ? TYPE_STRING : TYPE_ABSENT, 0, value);
+        return value != null ? value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        synchronized (this) {
+            final int slot = getSlot(key, TYPE_STRING_SET);
+            if (slot >= 0) {
+                return mTypes[slot] == TYPE_STRING_SET ? (Set<String>) mObjects[slot] : defValues;
+            }
+            if (!shouldReadThrough()) {
+                return defValues;
+            }
+        }
+        Set<String> values = mDataStore.getStringSet(key, null);
+        if (values != null) {
+            values = Collections.unmodifiableSet(new HashSet<>(values));
+        }
+        cacheValue(key, values != null ? TYPE_STRING_SET : TYPE_ABSENT, 0, values);
+        return values != null ? values : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        synchronized (this) {
+            final int slot = getSlot(key, TYPE_INT);
+            if (slot >= 0) {
+                return mTypes[slot] == TYPE_INT ? (int) mPrimitives[slot] : defValue;
+            }
+            if (!shouldReadThrough()) {
+                return defValue;
+            }
+        }
+        final int value = mDataStore.getInt(key, defValue);
+        // The default value is returned for absent keys, tell them apart with another one
+        final boolean exists = value != defValue || mDataStore.getInt(key, ~defValue) != ~defValue;
+        cacheValue(key, exists ? TYPE_INT : TYPE_ABSENT, value, null);
+        return value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        synchronized (this) {
+            final int slot = getSlot(key, TYPE_LONG);
+            if (slot >= 0) {
+                return mTypes[slot] == TYPE_LONG ? mPrimitives[slot] : defValue;
+            }
+            if (!shouldReadThrough()) {
+                return defValue;
+            }
+        }
+        final long value = mDataStore.getLong(key, defValue);
+        final boolean exists = value != defValue
+                || mDataStore.getLong(key, ~defValue) != ~defValue;
+        cacheValue(key, exists ? TYPE_LONG : TYPE_ABSENT, value, null);
+        return value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        synchronized (this) {
+            final int slot = getSlot(key, TYPE_FLOAT);
+            if (slot >= 0) {
+                return mTypes[slot] == TYPE_FLOAT
+                        ? Float.intBitsToFloat((int) mPrimitives[slot]) : defValue;
+            }
+            if (!shouldReadThrough()) {
+                return defValue;
+            }
+        }
+        final float value = mDataStore.getFloat(key, defValue);
+        final float otherDefValue = defValue == 0 ? 1 : 0;
+        final boolean exists = Float.floatToIntBits(value) != Float.floatToIntBits(defValue)
+                || Float.floatToIntBits(mDataStore.getFloat(key, otherDefValue))
+                != Float.floatToIntBits(otherDefValue);
+        cacheValue(key, exists ? TYPE_FLOAT : TYPE_ABSENT, Float.floatToRawIntBits(value), null);
+        return value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        synchronized (this) {
+            final int slot = getSlot(key, TYPE_BOOLEAN);
+            if (slot >= 0) {
+                return mTypes[slot] == TYPE_BOOLEAN ? mPrimitives[slot] != 0 : defValue;
+            }
+            if (!shouldReadThrough()) {
+                return defValue;
+            }
+        }
+        final boolean value = mDataStore.getBoolean(key, defValue);
+        final boolean exists = value != defValue
+                || mDataStore.getBoolean(key, !defValue) != !defValue;
+        cacheValue(key, exists ? TYPE_BOOLEAN : TYPE_ABSENT, value ? 1 : 0, null);
+        return value;
+    }
+}
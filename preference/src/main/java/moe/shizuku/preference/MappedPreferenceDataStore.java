@@ -0,0 +1,754 @@
+package moe.shizuku.preference;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A {@link PreferenceDataStore} that keeps its values in a memory-mapped, append-only binary log.
+ *
+ * <p>Every change is appended to the log as a single record, so writing a value costs time
+ * proportional to the size of that value instead of rewriting the whole file like
+ * {@link android.content.SharedPreferences} does. All values are also kept in memory, which makes
+ * the getters as cheap as those of {@link android.content.SharedPreferences}. When the log runs out
+ * of space and most of its records have been overwritten, it is compacted into a new file holding
+ * only the current values.
+ *
+ * <p>Changes are written to the mapped file right away and reach the disk when the system flushes
+ * it, even if the process dies. Call {@link #flush()} to force them to disk. A record that was
+ * only partially written is ignored when the file is opened again.
+ *
+ * <p>Like {@link android.content.SharedPreferences}, the getters throw {@link ClassCastException}
+ * if the value of a key has a different type. Instances are thread-safe.
+ *
+ * <p>By default a file must not be opened by more than one instance or process at a time. Use
+ * {@link #MappedPreferenceDataStore(File, boolean)} to share it between processes: writes then
+ * take an exclusive lock on a companion {@code .lock} file and increase a version counter in the
+ * header of the log, and reads replay the records added by other processes, under a shared lock,
+ * whenever the version changed. Changes made by other processes are reported to
+ * {@link OnChangeListener}s, and the preferences of a {@link PreferenceManager} using the data
+ * store are updated automatically.
+ */
+public class MappedPreferenceDataStore extends PreferenceDataStore {
+
+    /**
+     * Interface definition for a callback to be invoked when a value is changed by another
+     * process.
+     *
+     * @see #registerOnChangeListener(OnChangeListener)
+     */
+    public interface OnChangeListener {
+
+        /**
+         * Called on the main thread when another process changed or removed a value.
+         *
+         * @param dataStore The data store.
+         * @param key       The key of the value.
+         */
+        void onValueChanged(@NonNull MappedPreferenceDataStore dataStore, @NonNull String key);
+    }
+
+    private static final String TAG = "MappedPreferenceDataStore";
+
+    private static final int MAGIC = 0x4d505245;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int OFFSET_VERSION = 8;
+    private static final int OFFSET_FLAGS = 12;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Set on a log that was replaced by a compacted one, so that other processes still mapping
+     * it open the new file.
+     */
+    private static final int FLAG_OBSOLETE = 1;
+
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * Logs smaller than this are grown rather than compacted.
+     */
+    private static final int MIN_COMPACT_SIZE = 16 * PAGE_SIZE;
+
+    private static final byte TYPE_REMOVED = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_SET = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final boolean mMultiProcess;
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    /**
+     * The end of the last complete record, where the next one is written.
+     */
+    private int mPosition;
+
+    /**
+     * The number of records in the log, used to tell how much of it is outdated.
+     */
+    private int mRecordCount;
+
+    /**
+     * The version of the log the values in memory correspond to.
+     */
+    private int mVersion;
+
+    /**
+     * The companion lock file, only used when shared between processes.
+     */
+    private RandomAccessFile mLockFile;
+
+    /**
+     * Watches {@link #mLockFile}, which is written after each change, to notice changes made by
+     * other processes. Writes to the mapped log itself are not reported by the system.
+     */
+    private FileObserver mFileObserver;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<OnChangeListener> mListeners = new ArrayList<>();
+
+    /**
+     * Opens the log in the given file for use by this process only, creating it if it does not
+     * exist.
+     *
+     * @param file The file to store the values in.
+     * @throws IOException If the file can not be opened or mapped.
+     */
+    public MappedPreferenceDataStore(@NonNull File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens the log in the given file, creating it if it does not exist.
+     *
+     * @param file         The file to store the values in.
+     * @param multiProcess Whether other processes may use the file at the same time.
+     * @throws IOException If the file can not be opened or mapped.
+     */
+    public MappedPreferenceDataStore(@NonNull File file, boolean multiProcess) throws IOException {
+        mFile = file;
+        mMultiProcess = multiProcess;
+
+        if (!multiProcess) {
+            open(true);
+            return;
+        }
+
+        final File lockFile = new File(file.getPath() + ".lock");
+        mLockFile = new RandomAccessFile(lockFile, "rw");
+        final FileLock lock = mLockFile.getChannel().lock();
+        try {
+            open(true);
+        } finally {
+            lock.release();
+        }
+
+        mFileObserver = new FileObserver(lockFile.getPath(), FileObserver.MODIFY) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                synchronized (MappedPreferenceDataStore.this) {
+                    sync();
+                }
+            }
+        };
+        mFileObserver.startWatching();
+    }
+
+    /**
+     * Opens the file and reads all of its records.
+     *
+     * @param canRepair Whether an unusable file may be rewritten, which requires the exclusive
+     *                  lock when shared between processes.
+     */
+    private void open(boolean canRepair) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        final long fileLength = mRandomAccessFile.length();
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException("File " + mFile + " is too large");
+        }
+        map(Math.max(roundUpToPage((int) fileLength), PAGE_SIZE));
+
+        mPosition = HEADER_SIZE;
+        mRecordCount = 0;
+        if (fileLength < HEADER_SIZE || mBuffer.getInt(0) != MAGIC
+                || mBuffer.getInt(4) != FORMAT_VERSION) {
+            if (canRepair) {
+                if (fileLength > 0) {
+                    Log.w(TAG, "Discarding unrecognized file " + mFile);
+                }
+                reset();
+            }
+            return;
+        }
+
+        mVersion = mBuffer.getInt(OFFSET_VERSION);
+        if (readRecords(null) && canRepair) {
+            // Rewrite the file, so that new records are not followed by garbage
+            Log.w(TAG, "Ignoring corrupted records at " + mPosition + " in " + mFile);
+            compact();
+        }
+    }
+
+    private void reset() throws IOException {
+        mValues.clear();
+        mRecordCount = 0;
+        mRandomAccessFile.setLength(0);
+        map(PAGE_SIZE);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, FORMAT_VERSION);
+        mBuffer.putInt(OFFSET_VERSION, ++mVersion);
+        mPosition = HEADER_SIZE;
+    }
+
+    private void map(int capacity) throws IOException {
+        if (mRandomAccessFile.length() < capacity) {
+            // Extending the file fills it with zeros
+            mRandomAccessFile.setLength(capacity);
+        }
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static int roundUpToPage(int size) {
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Reads the records from {@link #mPosition} on.
+     *
+     * @param changedKeys Optional set to add the keys of the records to.
+     * @return Whether a corrupted record was found.
+     */
+    private boolean readRecords(@Nullable Set<String> changedKeys) {
+        final int capacity = mBuffer.capacity();
+        while (mPosition + 4 <= capacity) {
+            final int length = mBuffer.getInt(mPosition);
+            if (length == 0) {
+                // Past the last record, the rest of the file is zeroed
+                return false;
+            }
+            if (length < 0 || length > capacity - mPosition - 4) {
+                return true;
+            }
+            final String key;
+            try {
+                key = readRecord(mPosition + 4, length);
+            } catch (RuntimeException e) {
+                return true;
+            }
+            if (changedKeys != null) {
+                changedKeys.add(key);
+            }
+            mPosition += 4 + length;
+            mRecordCount++;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a record into {@link #mValues}.
+     *
+     * @return The key of the record.
+     */
+    private String readRecord(int offset, int length) {
+        final ByteBuffer record = mBuffer.duplicate();
+        record.position(offset);
+        record.limit(offset + length);
+
+        final byte type = record.get();
+        final String key = readString(record);
+        switch (type) {
+            case TYPE_REMOVED:
+                mValues.remove(key);
+                break;
+            case TYPE_STRING:
+                mValues.put(key, readString(record));
+                break;
+            case TYPE_STRING_SET:
+                final int size = record.getInt();
+                if (size < 0) {
+                    throw new IllegalArgumentException("Invalid set size " + size);
+                }
+                final Set<String> values = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    values.add(readString(record));
+                }
+                mValues.put(key, Collections.unmodifiableSet(values));
+                break;
+            case TYPE_INT:
+                mValues.put(key, record.getInt());
+                break;
+            case TYPE_LONG:
+                mValues.put(key, record.getLong());
+                break;
+            case TYPE_FLOAT:
+                mValues.put(key, record.getFloat());
+                break;
+            case TYPE_BOOLEAN:
+                mValues.put(key, record.get() != 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+        return key;
+    }
+
+    /**
+     * Brings the values in memory up to date with the changes other processes made, and reports
+     * them to the listeners. Does nothing unless shared between processes.
+     */
+    private void sync() {
+        if (!mMultiProcess || mBuffer == null) {
+            return;
+        }
+        if (mBuffer.getInt(OFFSET_VERSION) == mVersion
+                && (mBuffer.getInt(OFFSET_FLAGS) & FLAG_OBSOLETE) == 0) {
+            return;
+        }
+
+        final Set<String> changedKeys = new HashSet<>();
+        try {
+            final FileLock lock = mLockFile.getChannel().lock(0, Long.MAX_VALUE, true);
+            try {
+                readChanges(changedKeys);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read changes of " + mFile, e);
+        }
+        dispatchChanges(changedKeys);
+    }
+
+    /**
+     * Reads the changes other processes made, must be called with the lock held.
+     */
+    private void readChanges(Set<String> changedKeys) throws IOException {
+        if ((mBuffer.getInt(OFFSET_FLAGS) & FLAG_OBSOLETE) != 0) {
+            // Compacted into a new file, read it from the start
+            final Map<String, Object> oldValues = new HashMap<>(mValues);
+            mValues.clear();
+            mRandomAccessFile.close();
+            open(false);
+
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                if (!entry.getValue().equals(oldValues.remove(entry.getKey()))) {
+                    changedKeys.add(entry.getKey());
+                }
+            }
+            changedKeys.addAll(oldValues.keySet());
+            return;
+        }
+
+        final long fileLength = mRandomAccessFile.length();
+        if (fileLength > mBuffer.capacity() && fileLength <= Integer.MAX_VALUE) {
+            // Grown by another process
+            map((int) fileLength);
+        }
+        if (readRecords(changedKeys)) {
+            Log.w(TAG, "Ignoring corrupted records at " + mPosition + " in " + mFile);
+        }
+        mVersion = mBuffer.getInt(OFFSET_VERSION);
+    }
+
+    private void dispatchChanges(final Set<String> changedKeys) {
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<OnChangeListener> listeners;
+                synchronized (mListeners) {
+                    listeners = new ArrayList<>(mListeners);
+                }
+                for (String key : changedKeys) {
+                    for (OnChangeListener listener : listeners) {
+                        listener.onValueChanged(MappedPreferenceDataStore.this, key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a listener to be notified of changes made by other processes. Only used when the
+     * data store is shared between processes.
+     *
+     * @param listener The listener.
+     * @see #MappedPreferenceDataStore(File, boolean)
+     */
+    public void registerOnChangeListener(@NonNull OnChangeListener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener registered with {@link #registerOnChangeListener(OnChangeListener)}.
+     *
+     * @param listener The listener.
+     */
+    public void unregisterOnChangeListener(@NonNull OnChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Encodes a record, without its length.
+     */
+    private static byte[] encodeRecord(String key, @Nullable Object value) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        byte[][] strings = null;
+        int size = 1 + 4 + keyBytes.length;
+        final byte type;
+        if (value == null) {
+            type = TYPE_REMOVED;
+        } else if (value instanceof String) {
+            type = TYPE_STRING;
+            strings = new byte[][]{((String) value).getBytes(UTF_8)};
+            size += 4 + strings[0].length;
+        } else if (value instanceof Set) {
+            type = TYPE_STRING_SET;
+            final Set<?> set = (Set<?>) value;
+            strings = new byte[set.size()][];
+            size += 4;
+            int i = 0;
+            for (Object string : set) {
+                strings[i] = ((String) string).getBytes(UTF_8);
+                size += 4 + strings[i].length;
+                i++;
+            }
+        } else if (value instanceof Integer) {
+            type = TYPE_INT;
+            size += 4;
+        } else if (value instanceof Long) {
+            type = TYPE_LONG;
+            size += 8;
+        } else if (value instanceof Float) {
+            type = TYPE_FLOAT;
+            size += 4;
+        } else if (value instanceof Boolean) {
+            type = TYPE_BOOLEAN;
+            size += 1;
+        } else {
+            throw new IllegalArgumentException("Unsupported value " + value);
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(size);
+        record.put(type);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        switch (type) {
+            case TYPE_STRING:
+                record.putInt(strings[0].length);
+                record.put(strings[0]);
+                break;
+            case TYPE_STRING_SET:
+                record.putInt(strings.length);
+                for (byte[] string : strings) {
+                    record.putInt(string.length);
+                    record.put(string);
+                }
+                break;
+            case TYPE_INT:
+                record.putInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                record.putLong((Long) value);
+                break;
+            case TYPE_FLOAT:
+                record.putFloat((Float) value);
+                break;
+            case TYPE_BOOLEAN:
+                record.put((byte) ((Boolean) value ? 1 : 0));
+                break;
+        }
+        return record.array();
+    }
+
+    private synchronized void putValue(String key, @Nullable Object value) {
+        if (mBuffer == null) {
+            throw new IllegalStateException("Data store is closed");
+        }
+        if (!mMultiProcess) {
+            writeValue(key, value);
+            return;
+        }
+
+        final Set<String> changedKeys = new HashSet<>();
+        try {
+            final FileLock lock = mLockFile.getChannel().lock();
+            try {
+                readChanges(changedKeys);
+                if (writeValue(key, value)) {
+                    mBuffer.putInt(OFFSET_VERSION, ++mVersion);
+                    // Wake up the file observers of the other processes
+                    mLockFile.getChannel().write(ByteBuffer.allocate(4).putInt(0, mVersion), 0);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + key + " to " + mFile, e);
+        }
+        changedKeys.remove(key);
+        dispatchChanges(changedKeys);
+    }
+
+    /**
+     * Sets a value and appends it to the log. If there is no room for the record and none can be
+     * made, the previous value is kept so that the values in memory match the log.
+     *
+     * @return Whether the value changed.
+     */
+    private boolean writeValue(String key, @Nullable Object value) {
+        final Object oldValue = value != null ? mValues.put(key, value) : mValues.remove(key);
+        if (value != null ? value.equals(oldValue) : oldValue == null) {
+            return false;
+        }
+
+        final byte[] record = encodeRecord(key, value);
+        try {
+            if (record.length > mBuffer.capacity() - mPosition - 4
+                    && makeRoom(record.length + 4)) {
+                // The compacted log already contains the new value
+                return true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + key + " to " + mFile, e);
+            if (oldValue != null) {
+                mValues.put(key, oldValue);
+            } else {
+                mValues.remove(key);
+            }
+            return false;
+        }
+
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mPosition + 4);
+        buffer.put(record);
+        // Write the length last, until then the record is ignored when reading the file
+        mBuffer.putInt(mPosition, record.length);
+        mPosition += 4 + record.length;
+        mRecordCount++;
+        return true;
+    }
+
+    /**
+     * Makes room for a record of the given size, by compacting the log if most of it is outdated
+     * or by growing the file otherwise.
+     *
+     * @return Whether the log was compacted.
+     */
+    private boolean makeRoom(int size) throws IOException {
+        final int capacity = mBuffer.capacity();
+        if (capacity >= MIN_COMPACT_SIZE && mRecordCount > mValues.size() * 2) {
+            compact();
+            return true;
+        }
+        map(roundUpToPage(Math.max(capacity * 2, mPosition + size)));
+        return false;
+    }
+
+    /**
+     * Rewrites the log with only the current values, replacing the file once complete.
+     */
+    private void compact() throws IOException {
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        final RandomAccessFile tempRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+        int position = HEADER_SIZE;
+        try {
+            tempRandomAccessFile.setLength(0);
+            tempRandomAccessFile.writeInt(MAGIC);
+            tempRandomAccessFile.writeInt(FORMAT_VERSION);
+            tempRandomAccessFile.writeInt(mVersion + 1);
+            tempRandomAccessFile.writeInt(0);
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                final byte[] record = encodeRecord(entry.getKey(), entry.getValue());
+                tempRandomAccessFile.writeInt(record.length);
+                tempRandomAccessFile.write(record);
+                position += 4 + record.length;
+            }
+            // Leave as much room as the values take
+            tempRandomAccessFile.setLength(roundUpToPage(Math.max(position * 2, PAGE_SIZE)));
+            tempRandomAccessFile.getFD().sync();
+        } finally {
+            tempRandomAccessFile.close();
+        }
+
+        final int capacity = mBuffer.capacity();
+        mRandomAccessFile.close();
+        final boolean renamed = tempFile.renameTo(mFile);
+        if (!renamed) {
+            // Keep appending to the old log
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            map(capacity);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + mFile);
+        }
+        // Other processes still mapping the old log have to open the new one
+        mBuffer.putInt(OFFSET_FLAGS, FLAG_OBSOLETE);
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        map((int) mRandomAccessFile.length());
+        mPosition = position;
+        mRecordCount = mValues.size();
+        mVersion++;
+    }
+
+    /**
+     * Forces the changes made so far to be written to the disk.
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Flushes the changes and closes the file. The data store can not be used afterwards.
+     */
+    public synchronized void close() {
+        if (mBuffer == null) {
+            return;
+        }
+        mBuffer.force();
+        mBuffer = null;
+        if (mFileObserver != null) {
+            mFileObserver.stopWatching();
+            mFileObserver = null;
+        }
+        try {
+            mRandomAccessFile.close();
+            if (mLockFile != null) {
+                mLockFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + mFile, e);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        sync();
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public void putString(String key, @Nullable String value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putStringSet(String key, @Nullable Set<String> values) {
+        putValue(key, values != null ? Collections.unmodifiableSet(new HashSet<>(values)) : null);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        putValue(key, value);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        putValue(key, value);
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(String key, @Nullable String defValue) {
+        sync();
+        final String value = (String) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public synchronized Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        sync();
+        final Set<String> values = (Set<String>) mValues.get(key);
+        return values != null ? values : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        sync();
+        final Integer value = (Integer) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        sync();
+        final Long value = (Long) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        sync();
+        final Float value = (Float) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        sync();
+        final Boolean value = (Boolean) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+}
@@ -0,0 +1,358 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link PreferenceCategory} for a large number of generated items, such as one per installed
+ * app, which creates the {@link Preference} of an item only when it is about to be shown.
+ * <p>
+ * Items are described by {@link #getItemCount()} and {@link #getItemKey(int)}, which should be
+ * cheap. The preference of an item is created by {@link #onCreateItem(Context, int)}, bound to the
+ * item by {@link #onBindItem(Preference, int)} and added to the group as a child, which reads its
+ * value. Besides the items that are shown, only up to {@link #getPrefetchMargin()} others are kept
+ * as children, the preferences of the items farthest from those being shown are removed and bound
+ * to other items later. A preference obtained from {@link #findPreference(CharSequence)} is thus
+ * only valid as long as its item is shown.
+ * <p>
+ * Children must not be added to or removed from this group directly, and the visibility of items
+ * cannot be changed. After the items change, call {@link #notifyItemsChanged()}.
+ */
+public abstract class PagedPreferenceGroup extends PreferenceCategory {
+
+    /**
+     * The number of items kept that are not shown, unless set otherwise.
+     */
+    public static final int DEFAULT_PREFETCH_MARGIN = 16;
+
+    private int mPrefetchMargin = DEFAULT_PREFETCH_MARGIN;
+
+    /**
+     * The number of items as of the last call to {@link #notifyItemsChanged()}, or -1 if it has
+     * not been read yet.
+     */
+    private int mItemCount = -1;
+
+    /**
+     * Position of each item, by key. Built on first use.
+     */
+    private Map<String, Integer> mKeyIndex;
+
+    /**
+     * Preferences of the items, by position.
+     */
+    private final SparseArray<Preference> mItems = new SparseArray<>();
+
+    private final Map<Preference, Integer> mItemPositions = new IdentityHashMap<>();
+
+    /**
+     * The item type each preference was created for.
+     */
+    private final Map<Preference, Integer> mItemTypes = new IdentityHashMap<>();
+
+    /**
+     * The view holder each shown item is bound to.
+     */
+    private final Map<Preference, PreferenceViewHolder> mBoundItems = new IdentityHashMap<>();
+
+    /**
+     * Preferences removed from items, by item type, to be bound to other items.
+     */
+    private final SparseArray<List<Preference>> mScrap = new SparseArray<>();
+
+    private OnPreferenceChangeInternalListener mItemListener;
+
+    /**
+     * Whether items are being added or removed, which is not a change of the hierarchy.
+     */
+    private boolean mUpdatingItems;
+
+    public PagedPreferenceGroup(
+            Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    public PagedPreferenceGroup(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public PagedPreferenceGroup(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public PagedPreferenceGroup(Context context) {
+        super(context);
+    }
+
+    /**
+     * Returns the number of items. Must not change until {@link #notifyItemsChanged()} is called.
+     *
+     * @return The number of items.
+     */
+    protected abstract int getItemCount();
+
+    /**
+     * Returns the key of the preference of an item, used to find the item without creating its
+     * preference.
+     *
+     * @param position The position of the item.
+     * @return The key of the item.
+     */
+    @NonNull
+    protected abstract String getItemKey(int position);
+
+    /**
+     * Returns the type of an item. Preferences are only bound to items of the type they were
+     * created for.
+     *
+     * @param position The position of the item.
+     * @return The type of the item, 0 by default.
+     */
+    protected int getItemType(int position) {
+        return 0;
+    }
+
+    /**
+     * Creates a preference for items of the given type.
+     *
+     * @param context  The context of this group.
+     * @param itemType The type of the items, see {@link #getItemType(int)}.
+     * @return A new preference.
+     */
+    @NonNull
+    protected abstract Preference onCreateItem(@NonNull Context context, int itemType);
+
+    /**
+     * Binds a preference to an item, setting at least its key to {@link #getItemKey(int)}. The
+     * preference is not in the hierarchy while this is called, and may have been bound to another
+     * item before.
+     *
+     * @param preference The preference, created by {@link #onCreateItem(Context, int)}.
+     * @param position   The position of the item.
+     */
+    protected abstract void onBindItem(@NonNull Preference preference, int position);
+
+    /**
+     * Sets how many items that are not shown keep their preferences, so that they can be shown
+     * again without binding.
+     *
+     * @param prefetchMargin The number of items.
+     */
+    public void setPrefetchMargin(int prefetchMargin) {
+        mPrefetchMargin = prefetchMargin;
+    }
+
+    /**
+     * Returns how many items that are not shown keep their preferences.
+     *
+     * @return The number of items.
+     * @see #setPrefetchMargin(int)
+     */
+    public int getPrefetchMargin() {
+        return mPrefetchMargin;
+    }
+
+    /**
+     * Should be called when the items have changed. All preferences are removed from their items
+     * and the items are shown again.
+     */
+    public void notifyItemsChanged() {
+        mUpdatingItems = true;
+        try {
+            for (int i = mItems.size() - 1; i >= 0; i--) {
+                recycleItem(mItems.keyAt(i));
+            }
+        } finally {
+            mUpdatingItems = false;
+        }
+        mBoundItems.clear();
+        mItemCount = getItemCount();
+        mKeyIndex = null;
+        notifyHierarchyChanged();
+    }
+
+    /**
+     * Returns the number of items shown, which only changes with {@link #notifyItemsChanged()}.
+     */
+    int getShownItemCount() {
+        if (mItemCount < 0) {
+            mItemCount = getItemCount();
+        }
+        return mItemCount;
+    }
+
+    /**
+     * Returns the position of the item with the given key, or -1 if there is none.
+     */
+    int getItemPosition(String key) {
+        if (mKeyIndex == null) {
+            final int count = getShownItemCount();
+            mKeyIndex = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = count - 1; i >= 0; i--) {
+                // Going backwards, the first item with a key wins
+                mKeyIndex.put(getItemKey(i), i);
+            }
+        }
+        final Integer position = mKeyIndex.get(key);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Returns the position of the item a preference is bound to, or -1 if it is not bound to one.
+     */
+    int getItemPosition(Preference preference) {
+        final Integer position = mItemPositions.get(preference);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Returns the preference of an item, binding one to it if needed.
+     */
+    @NonNull
+    Preference obtainItem(int position) {
+        Preference preference = mItems.get(position);
+        if (preference != null) {
+            return preference;
+        }
+
+        mUpdatingItems = true;
+        try {
+            trimItems(position);
+
+            final int itemType = getItemType(position);
+            final List<Preference> scrap = mScrap.get(itemType);
+            if (scrap != null && !scrap.isEmpty()) {
+                preference = scrap.remove(scrap.size() - 1);
+            } else {
+                preference = onCreateItem(getContext(), itemType);
+                mItemTypes.put(preference, itemType);
+            }
+            onBindItem(preference, position);
+            // Keeps the children in the order of the items
+            preference.setOrder(position);
+            addPreference(preference);
+            preference.setOnPreferenceChangeInternalListener(mItemListener);
+        } finally {
+            mUpdatingItems = false;
+        }
+
+        mItems.put(position, preference);
+        mItemPositions.put(preference, position);
+        return preference;
+    }
+
+    /**
+     * Returns the preference of an item if it has one, without binding one.
+     */
+    Preference peekItem(int position) {
+        return mItems.get(position);
+    }
+
+    /**
+     * Removes the preferences of the items farthest from the given position that are not shown,
+     * until no more than {@link #mPrefetchMargin} are left.
+     */
+    private void trimItems(int position) {
+        int unbound = mItems.size() - mBoundItems.size();
+        while (unbound >= mPrefetchMargin && unbound > 0) {
+            int farthest = -1;
+            int farthestDistance = -1;
+            for (int i = 0; i < mItems.size(); i++) {
+                if (mBoundItems.containsKey(mItems.valueAt(i))) {
+                    continue;
+                }
+                final int distance = Math.abs(mItems.keyAt(i) - position);
+                if (distance > farthestDistance) {
+                    farthest = mItems.keyAt(i);
+                    farthestDistance = distance;
+                }
+            }
+            recycleItem(farthest);
+            unbound--;
+        }
+    }
+
+    private void recycleItem(int position) {
+        final Preference preference = mItems.get(position);
+        mItems.remove(position);
+        mItemPositions.remove(preference);
+        mBoundItems.remove(preference);
+        preference.setOnPreferenceChangeInternalListener(null);
+        removePreference(preference);
+
+        // The items may have changed already, use the type the preference was created for
+        final int itemType = mItemTypes.get(preference);
+        List<Preference> scrap = mScrap.get(itemType);
+        if (scrap == null) {
+            scrap = new ArrayList<>();
+            mScrap.put(itemType, scrap);
+        }
+        // No more than could be taken before others are created
+        if (scrap.size() <= mPrefetchMargin) {
+            scrap.add(preference);
+        } else {
+            mItemTypes.remove(preference);
+        }
+    }
+
+    /**
+     * Called by the adapter when the preference of an item is bound to a view holder.
+     */
+    void onItemBound(Preference preference, PreferenceViewHolder holder) {
+        if (mItemPositions.containsKey(preference)) {
+            mBoundItems.put(preference, holder);
+        }
+    }
+
+    /**
+     * Called by the adapter when a view holder the preference of an item was bound to is recycled
+     * or bound to something else.
+     */
+    void onItemUnbound(Preference preference, PreferenceViewHolder holder) {
+        if (mBoundItems.get(preference) == holder) {
+            mBoundItems.remove(preference);
+        }
+    }
+
+    /**
+     * Sets the listener the preferences of the items report their changes to, the adapter
+     * showing this group.
+     */
+    void setItemListener(OnPreferenceChangeInternalListener listener) {
+        mItemListener = listener;
+        for (int i = 0; i < mItems.size(); i++) {
+            mItems.valueAt(i).setOnPreferenceChangeInternalListener(listener);
+        }
+    }
+
+    @Override
+    protected void notifyHierarchyChanged() {
+        if (!mUpdatingItems) {
+            super.notifyHierarchyChanged();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Items are found by their key without creating their preferences first.
+     */
+    @Override
+    public Preference findPreference(CharSequence key) {
+        final Preference preference = super.findPreference(key);
+        if (preference != null || key == null) {
+            return preference;
+        }
+        final int position = getItemPosition(key.toString());
+        return position >= 0 ? obtainItem(position) : null;
+    }
+}
@@ -37,7 +37,10 @@ import android.widget.TextView;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import androidx.annotation.CallSuper;
@@ -129,6 +132,10 @@ public class Preference implements Comparable<Preference> {
     private int mOrder = DEFAULT_ORDER;
     private int mViewId = 0;
     private CharSequence mTitle;
+    /**
+     * Lazily computed by {@link #getTitleSortKey()}, reset whenever the title changes.
+     */
+    private String mTitleSortKey;
     private CharSequence mSummary;
     /**
      * mIconResId is overridden by mIcon, if mIcon is specified.
@@ -145,6 +152,18 @@ public class Preference implements Comparable<Preference> {
     private boolean mPersistent = true;
     private String mDependencyKey;
     private Object mDefaultValue;
+    /**
+     * The value last written or found by one of the persist methods, or null if unknown. Only
+     * valid while the value of the key has not changed since {@link #mPersistedValueGeneration},
+     * see {@link PreferenceManager#isStorageUnchangedSince(String, int)}.
+     */
+    private Object mPersistedValue;
+    private int mPersistedValueGeneration;
+    /**
+     * Set while waiting for an {@link AsyncPreferenceDataStore} to load the value of this
+     * preference, to the callback that will set the initial value.
+     */
+    private Runnable mPendingValueCallback;
     private boolean mDependencyMet = true;
     private boolean mParentDependencyMet = true;
     private boolean mVisible = true;
@@ -181,6 +200,13 @@ public class Preference implements Comparable<Preference> {
     private int mLayoutResId = R.layout.preference_material;
     private int mWidgetLayoutResId;
 
+    /**
+     * View type given to this Preference by the adapter that showed it last, only valid for
+     * that adapter and until the layouts are changed.
+     */
+    private int mViewType = RecyclerView.INVALID_TYPE;
+    private Object mViewTypeOwner;
+
     private OnPreferenceChangeInternalListener mListener;
 
     private List<Preference> mDependents;
@@ -467,6 +493,7 @@ public class Preference implements Comparable<Preference> {
      */
     public void setPreferenceDataStore(PreferenceDataStore dataStore) {
         mPreferenceDataStore = dataStore;
+        mPersistedValue = null;
     }
 
     /**
@@ -530,6 +557,7 @@ public class Preference implements Comparable<Preference> {
      */
     public void setLayoutResource(int layoutResId) {
         mLayoutResId = layoutResId;
+        mViewTypeOwner = null;
     }
 
     /**
@@ -555,6 +583,7 @@ public class Preference implements Comparable<Preference> {
      */
     public void setWidgetLayoutResource(int widgetLayoutResId) {
         mWidgetLayoutResId = widgetLayoutResId;
+        mViewTypeOwner = null;
     }
 
     /**
@@ -566,6 +595,22 @@ public class Preference implements Comparable<Preference> {
         return mWidgetLayoutResId;
     }
 
+    /**
+     * Returns the view type cached for the given owner, or {@link RecyclerView#INVALID_TYPE}
+     * if there is none or the layouts have been changed since it was cached.
+     */
+    int getCachedViewType(Object owner) {
+        return owner == mViewTypeOwner ? mViewType : RecyclerView.INVALID_TYPE;
+    }
+
+    /**
+     * Caches the view type the given owner assigned to this Preference.
+     */
+    void setCachedViewType(Object owner, int viewType) {
+        mViewTypeOwner = owner;
+        mViewType = viewType;
+    }
+
     /**
      * Binds the created View to the data for this Preference.
      * <p>
@@ -579,17 +624,29 @@ public class Preference implements Comparable<Preference> {
      *               returns.
      */
     public void onBindViewHolder(PreferenceViewHolder holder) {
-        holder.itemView.setOnClickListener(mClickListener);
+        // Only what differs from the views, or from what was applied when this preference was
+        // bound to them last, is set again, as setting text or the enabled state of all views
+        // costs a layout pass or a walk of the row even if nothing changed
+        final boolean rebind = holder.mBoundPreference == this;
+        if (!rebind) {
+            holder.itemView.setOnClickListener(mClickListener);
+            holder.mBoundHasSingleLineTitle = false;
+        }
         holder.itemView.setId(mViewId);
 
         final TextView titleView = (TextView) holder.findViewById(android.R.id.title);
         if (titleView != null) {
             final CharSequence title = getTitle();
             if (!TextUtils.isEmpty(title)) {
-                titleView.setText(title);
+                if (!isSameText(titleView.getText(), title)) {
+                    titleView.setText(title);
+                }
                 titleView.setVisibility(View.VISIBLE);
-                if (mHasSingleLineTitleAttr) {
+                if (mHasSingleLineTitleAttr && !(rebind && holder.mBoundHasSingleLineTitle
+                        && holder.mBoundSingleLineTitle == mSingleLineTitle)) {
                     titleView.setSingleLine(mSingleLineTitle);
+                    holder.mBoundSingleLineTitle = mSingleLineTitle;
+                    holder.mBoundHasSingleLineTitle = true;
                 }
             } else {
                 titleView.setVisibility(View.GONE);
@@ -600,7 +657,9 @@ public class Preference implements Comparable<Preference> {
         if (summaryView != null) {
             final CharSequence summary = getSummary();
             if (!TextUtils.isEmpty(summary)) {
-                summaryView.setText(summary);
+                if (!isSameText(summaryView.getText(), summary)) {
+                    summaryView.setText(summary);
+                }
                 summaryView.setVisibility(View.VISIBLE);
             } else {
                 summaryView.setVisibility(View.GONE);
@@ -613,8 +672,10 @@ public class Preference implements Comparable<Preference> {
                 if (mIcon == null) {
                     mIcon = ContextCompat.getDrawable(getContext(), mIconResId);
                 }
-                if (mIcon != null) {
+                // Setting a drawable, even the same one, requests a layout
+                if (mIcon != null && !(rebind && holder.mBoundIcon == mIcon)) {
                     imageView.setImageDrawable(mIcon);
+                    holder.mBoundIcon = mIcon;
                 }
             }
             if (mIcon != null) {
@@ -633,20 +694,43 @@ public class Preference implements Comparable<Preference> {
             }
         }
 
-        if (mShouldDisableView) {
-            setEnabledStateOnViews(holder.itemView, isEnabled());
-        } else {
-            setEnabledStateOnViews(holder.itemView, true);
+        final boolean valuePending = isValuePending();
+        final boolean enabled = !valuePending && (!mShouldDisableView || isEnabled());
+        // Views a subclass enables on its own after this are set again by it on every bind
+        if (!rebind || holder.mBoundEnabled != enabled
+                || holder.itemView.isEnabled() != enabled) {
+            setEnabledStateOnViews(holder.itemView, enabled);
+            holder.mBoundEnabled = enabled;
+        }
+
+        // Don't show a widget for a value that has not been loaded yet
+        final View widgetFrame = holder.findViewById(android.R.id.widget_frame);
+        if (widgetFrame != null) {
+            widgetFrame.setAlpha(valuePending ? 0f : 1f);
         }
 
         final boolean selectable = isSelectable();
-        holder.itemView.setFocusable(selectable);
-        holder.itemView.setClickable(selectable);
+        if (holder.itemView.isFocusable() != selectable) {
+            holder.itemView.setFocusable(selectable);
+        }
+        if (holder.itemView.isClickable() != selectable) {
+            holder.itemView.setClickable(selectable);
+        }
+
+        holder.mBoundPreference = this;
 
         /*holder.setDividerAllowedAbove(mDividerAboveVisibility);
         holder.setDividerAllowedBelow(mDividerBelowVisibility);*/
     }
 
+    /**
+     * Whether a view showing {@code current} already shows {@code text}. Styled text is only
+     * the same if it is the same object, as its spans are not compared.
+     */
+    private static boolean isSameText(CharSequence current, CharSequence text) {
+        return current == text || text instanceof String && text.equals(current);
+    }
+
     /**
      * Called when ViewHolder is recycled.
      *
@@ -689,8 +773,13 @@ public class Preference implements Comparable<Preference> {
         if (order != mOrder) {
             mOrder = order;
 
-            // Reorder the list
-            notifyHierarchyChanged();
+            // Reorder the list, it's the parent's children that need to be sorted again
+            if (mParentGroup != null) {
+                mParentGroup.onPreferenceSortKeyChanged(this);
+                mParentGroup.notifyHierarchyChanged();
+            } else {
+                notifyHierarchyChanged();
+            }
         }
     }
 
@@ -726,6 +815,11 @@ public class Preference implements Comparable<Preference> {
     public void setTitle(CharSequence title) {
         if (title == null && mTitle != null || title != null && !title.equals(mTitle)) {
             mTitle = title;
+            mTitleSortKey = null;
+            // Like setOrder(), the parent's children need to be laid out again if this one moved
+            if (mParentGroup != null && mParentGroup.onPreferenceSortKeyChanged(this)) {
+                mParentGroup.notifyHierarchyChanged();
+            }
             notifyChanged();
         }
     }
@@ -777,6 +871,15 @@ public class Preference implements Comparable<Preference> {
         mIconResId = iconResId;
     }
 
+    /**
+     * Sets the icon resource the way inflation does, leaving the drawable to be loaded by
+     * {@link #getIcon()}.
+     */
+    void setIconResId(int iconResId) {
+        mIcon = null;
+        mIconResId = iconResId;
+    }
+
     /**
      * Returns the icon of this Preference.
      *
@@ -947,7 +1050,13 @@ public class Preference implements Comparable<Preference> {
      * @param key The key for the preference.
      */
     public void setKey(String key) {
+        final String oldKey = mKey;
         mKey = key;
+        mPersistedValue = null;
+
+        if (mParentGroup != null && !TextUtils.equals(oldKey, key)) {
+            mParentGroup.onDescendantKeyChanged(this, oldKey);
+        }
 
         if (mRequiresKey && !hasKey()) {
             requireKey();
@@ -1135,7 +1244,7 @@ public class Preference implements Comparable<Preference> {
     @RestrictTo(LIBRARY_GROUP)
     public void performClick() {
 
-        if (!isEnabled()) {
+        if (!isEnabled() || isValuePending()) {
             return;
         }
 
@@ -1222,8 +1331,26 @@ public class Preference implements Comparable<Preference> {
             return -1;
         } else {
             // Do name comparison
-            return mTitle.toString().compareToIgnoreCase(another.mTitle.toString());
+            return getTitleSortKey().compareTo(another.getTitleSortKey());
+        }
+    }
+
+    /**
+     * Returns the title with every character folded the way
+     * {@link String#compareToIgnoreCase(String)} compares them, so that comparing two sort keys
+     * gives the same result without converting the titles on every comparison.
+     */
+    private String getTitleSortKey() {
+        if (mTitleSortKey == null) {
+            final String title = mTitle.toString();
+            final int length = title.length();
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(title.charAt(i)));
+            }
+            mTitleSortKey = new String(chars);
         }
+        return mTitleSortKey;
     }
 
     /**
@@ -1273,6 +1400,7 @@ public class Preference implements Comparable<Preference> {
      */
     protected void onAttachedToHierarchy(PreferenceManager preferenceManager) {
         mPreferenceManager = preferenceManager;
+        mPersistedValue = null;
 
         if (!mHasId) {
             mId = preferenceManager.getNextId();
@@ -1353,6 +1481,9 @@ public class Preference implements Comparable<Preference> {
 
         if (TextUtils.isEmpty(mDependencyKey)) return;
 
+        // Not in a hierarchy yet, the dependency is registered in onAttached()
+        if (mPreferenceManager == null) return;
+
         Preference preference = findPreferenceInHierarchy(mDependencyKey);
         if (preference != null) {
             preference.registerDependent(this);
@@ -1509,6 +1640,14 @@ public class Preference implements Comparable<Preference> {
         return mDependencyKey;
     }
 
+    /**
+     * Sets the dependency key the way inflation does, without registering it. Only for
+     * preferences that are not attached yet.
+     */
+    void setDependencyKey(String dependencyKey) {
+        mDependencyKey = dependencyKey;
+    }
+
     /**
      * Returns the {@link PreferenceGroup} which is this Preference assigned to or null if this
      * preference is not assigned to any group or is a root Preference.
@@ -1540,15 +1679,38 @@ public class Preference implements Comparable<Preference> {
         mDefaultValue = defaultValue;
     }
 
+    Object getDefaultValue() {
+        return mDefaultValue;
+    }
+
     private void dispatchSetInitialValue() {
-        if (getPreferenceDataStore() != null) {
+        final PreferenceDataStore dataStore = getPreferenceDataStore();
+        mPendingValueCallback = null;
+        if (dataStore instanceof AsyncPreferenceDataStore && shouldPersist()
+                && !((AsyncPreferenceDataStore) dataStore).isLoaded(mKey)) {
+            mPendingValueCallback = new Runnable() {
+                @Override
+                public void run() {
+                    if (mPendingValueCallback == this) {
+                        mPendingValueCallback = null;
+                        onSetInitialValue(true, mDefaultValue);
+                        notifyChanged();
+                    }
+                }
+            };
+            ((AsyncPreferenceDataStore) dataStore).preload(Collections.singleton(mKey),
+                    mPendingValueCallback);
+            return;
+        }
+
+        if (dataStore != null) {
             onSetInitialValue(true, mDefaultValue);
             return;
         }
 
         // By now, we know if we are persistent.
         final boolean shouldPersist = shouldPersist();
-        if (!shouldPersist || !getSharedPreferences().contains(mKey)) {
+        if (!shouldPersist || !containsPersistedValue()) {
             if (mDefaultValue != null) {
                 onSetInitialValue(false, mDefaultValue);
             }
@@ -1557,6 +1719,51 @@ public class Preference implements Comparable<Preference> {
         }
     }
 
+    /**
+     * Sets the value of this preference again from its storage, after it was changed elsewhere.
+     *
+     * @see PreferenceManager#notifyStorageChanged(String)
+     */
+    void reloadPersistedValue() {
+        if (!shouldPersist()) {
+            return;
+        }
+        mPersistedValue = null;
+        dispatchSetInitialValue();
+        notifyChanged();
+    }
+
+    private boolean containsPersistedValue() {
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            return bulkValues.containsKey(mKey);
+        }
+        return getSharedPreferences().contains(mKey);
+    }
+
+    /**
+     * Returns the values {@link PreferenceManager#getBulkValues()} loaded if this preference
+     * uses the storage of its manager, or null.
+     */
+    @Nullable
+    private Map<String, ?> getBulkValues() {
+        if (mPreferenceDataStore != null) {
+            return null;
+        }
+        return mPreferenceManager.getBulkValues();
+    }
+
+    /**
+     * Returns whether this preference is waiting for an {@link AsyncPreferenceDataStore} to load
+     * its value. While waiting, it is shown disabled and without its widget, and
+     * {@link #onSetInitialValue(boolean, Object)} is called once the value has been loaded.
+     *
+     * @return Whether the value of this preference is being loaded.
+     */
+    public boolean isValuePending() {
+        return mPendingValueCallback != null;
+    }
+
     /**
      * Implement this to set the initial value of the Preference.
      *
@@ -1610,9 +1817,15 @@ public class Preference implements Comparable<Preference> {
             return false;
         }
 
+        if (isPersistedValue(value)) {
+            // Already written, no need to read it back
+            return true;
+        }
+
         // Shouldn't store null
         if (TextUtils.equals(value, getPersistedString(null))) {
             // It's already there, so the same as persisting
+            setPersistedValue(value);
             return true;
         }
 
@@ -1624,6 +1837,7 @@ public class Preference implements Comparable<Preference> {
             editor.putString(mKey, value);
             tryCommit(editor);
         }
+        onValuePersisted(value);
         return true;
     }
 
@@ -1641,6 +1855,12 @@ public class Preference implements Comparable<Preference> {
             return defaultReturnValue;
         }
 
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            final Object value = bulkValues.get(mKey);
+            return value != null ? (String) value : defaultReturnValue;
+        }
+
         PreferenceDataStore dataStore = getPreferenceDataStore();
         if (dataStore != null) {
             return dataStore.getString(mKey, defaultReturnValue);
@@ -1664,9 +1884,15 @@ public class Preference implements Comparable<Preference> {
             return false;
         }
 
+        if (isPersistedValue(values)) {
+            // Already written, no need to read it back
+            return true;
+        }
+
         // Shouldn't store null
         if (values.equals(getPersistedStringSet(null))) {
             // It's already there, so the same as persisting
+            setPersistedValue(new HashSet<>(values));
             return true;
         }
 
@@ -1678,6 +1904,7 @@ public class Preference implements Comparable<Preference> {
             editor.putStringSet(mKey, values);
             tryCommit(editor);
         }
+        onValuePersisted(new HashSet<>(values));
         return true;
     }
 
@@ -1689,11 +1916,18 @@ public class Preference implements Comparable<Preference> {
      * @return the value from the storage or the default return value
      * @see #persistStringSet(Set)
      */
+    @SuppressWarnings("unchecked")
     public Set<String> getPersistedStringSet(Set<String> defaultReturnValue) {
         if (!shouldPersist()) {
             return defaultReturnValue;
         }
 
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            final Object value = bulkValues.get(mKey);
+            return value != null ? (Set<String>) value : defaultReturnValue;
+        }
+
         PreferenceDataStore dataStore = getPreferenceDataStore();
         if (dataStore != null) {
             return dataStore.getStringSet(mKey, defaultReturnValue);
@@ -1718,8 +1952,14 @@ public class Preference implements Comparable<Preference> {
             return false;
         }
 
+        if (isPersistedValue(value)) {
+            // Already written, no need to read it back
+            return true;
+        }
+
         if (value == getPersistedInt(~value)) {
             // It's already there, so the same as persisting
+            setPersistedValue(value);
             return true;
         }
 
@@ -1731,6 +1971,7 @@ public class Preference implements Comparable<Preference> {
             editor.putInt(mKey, value);
             tryCommit(editor);
         }
+        onValuePersisted(value);
         return true;
     }
 
@@ -1749,6 +1990,12 @@ public class Preference implements Comparable<Preference> {
             return defaultReturnValue;
         }
 
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            final Object value = bulkValues.get(mKey);
+            return value != null ? (Integer) value : defaultReturnValue;
+        }
+
         PreferenceDataStore dataStore = getPreferenceDataStore();
         if (dataStore != null) {
             return dataStore.getInt(mKey, defaultReturnValue);
@@ -1773,8 +2020,14 @@ public class Preference implements Comparable<Preference> {
             return false;
         }
 
+        if (isPersistedValue(value)) {
+            // Already written, no need to read it back
+            return true;
+        }
+
         if (value == getPersistedFloat(Float.NaN)) {
             // It's already there, so the same as persisting
+            setPersistedValue(value);
             return true;
         }
 
@@ -1786,6 +2039,7 @@ public class Preference implements Comparable<Preference> {
             editor.putFloat(mKey, value);
             tryCommit(editor);
         }
+        onValuePersisted(value);
         return true;
     }
 
@@ -1804,6 +2058,12 @@ public class Preference implements Comparable<Preference> {
             return defaultReturnValue;
         }
 
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            final Object value = bulkValues.get(mKey);
+            return value != null ? (Float) value : defaultReturnValue;
+        }
+
         PreferenceDataStore dataStore = getPreferenceDataStore();
         if (dataStore != null) {
             return dataStore.getFloat(mKey, defaultReturnValue);
@@ -1828,8 +2088,14 @@ public class Preference implements Comparable<Preference> {
             return false;
         }
 
+        if (isPersistedValue(value)) {
+            // Already written, no need to read it back
+            return true;
+        }
+
         if (value == getPersistedLong(~value)) {
             // It's already there, so the same as persisting
+            setPersistedValue(value);
             return true;
         }
 
@@ -1841,6 +2107,7 @@ public class Preference implements Comparable<Preference> {
             editor.putLong(mKey, value);
             tryCommit(editor);
         }
+        onValuePersisted(value);
         return true;
     }
 
@@ -1859,6 +2126,12 @@ public class Preference implements Comparable<Preference> {
             return defaultReturnValue;
         }
 
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            final Object value = bulkValues.get(mKey);
+            return value != null ? (Long) value : defaultReturnValue;
+        }
+
         PreferenceDataStore dataStore = getPreferenceDataStore();
         if (dataStore != null) {
             return dataStore.getLong(mKey, defaultReturnValue);
@@ -1883,8 +2156,14 @@ public class Preference implements Comparable<Preference> {
             return false;
         }
 
+        if (isPersistedValue(value)) {
+            // Already written, no need to read it back
+            return true;
+        }
+
         if (value == getPersistedBoolean(!value)) {
             // It's already there, so the same as persisting
+            setPersistedValue(value);
             return true;
         }
 
@@ -1896,6 +2175,7 @@ public class Preference implements Comparable<Preference> {
             editor.putBoolean(mKey, value);
             tryCommit(editor);
         }
+        onValuePersisted(value);
         return true;
     }
 
@@ -1914,6 +2194,12 @@ public class Preference implements Comparable<Preference> {
             return defaultReturnValue;
         }
 
+        final Map<String, ?> bulkValues = getBulkValues();
+        if (bulkValues != null) {
+            final Object value = bulkValues.get(mKey);
+            return value != null ? (Boolean) value : defaultReturnValue;
+        }
+
         PreferenceDataStore dataStore = getPreferenceDataStore();
         if (dataStore != null) {
             return dataStore.getBoolean(mKey, defaultReturnValue);
@@ -1922,6 +2208,27 @@ public class Preference implements Comparable<Preference> {
         return mPreferenceManager.getSharedPreferences().getBoolean(mKey, defaultReturnValue);
     }
 
+    /**
+     * Whether the given value is known to be the one in the storage, so that persisting it can be
+     * skipped without reading it back.
+     */
+    private boolean isPersistedValue(Object value) {
+        return mPersistedValue != null
+                && mPersistedValue.equals(value)
+                && mPreferenceManager.isStorageUnchangedSince(mKey, mPersistedValueGeneration);
+    }
+
+    private void onValuePersisted(Object value) {
+        // Other preferences may use the same key, their cached values are outdated now
+        mPreferenceManager.onValuePersisted(mKey, value, mPreferenceDataStore == null);
+        setPersistedValue(value);
+    }
+
+    private void setPersistedValue(Object value) {
+        mPersistedValue = value;
+        mPersistedValueGeneration = mPreferenceManager.getStorageGeneration();
+    }
+
     @Override
     public String toString() {
         return getFilterableStringBuilder().toString();
@@ -16,6 +16,7 @@
 
 package moe.shizuku.preference;
 
+import java.util.Map;
 import java.util.Set;
 
 import androidx.annotation.Nullable;
@@ -33,7 +34,8 @@ import androidx.annotation.Nullable;
  * <p>Once a put method is called it is full responsibility of the data store implementation to
  * safely store the given values. Time expensive operations need to be done in the background to
  * prevent from blocking the UI. You also need to have a plan on how to serialize the data in case
- * the activity holding this object gets destroyed.
+ * the activity holding this object gets destroyed. For storage that cannot be read on the main
+ * thread either, extend {@link AsyncPreferenceDataStore}.
  *
  * <p>By default, all "put" methods throw {@link UnsupportedOperationException}.
  *
@@ -193,5 +195,17 @@ public abstract class PreferenceDataStore {
     public boolean getBoolean(String key, boolean defValue) {
         return defValue;
     }
-}
 
+    /**
+     * Retrieves all values from the data store at once. When a hierarchy is inflated, its
+     * preferences read their initial values from the result instead of calling the getters one
+     * by one, so override this if the storage can be queried more efficiently in bulk.
+     *
+     * @return the values by key, as {@link String}, {@code Set<String>}, {@link Integer},
+     * {@link Long}, {@link Float} or {@link Boolean}, or {@code null} if not supported
+     */
+    @Nullable
+    public Map<String, ?> getAll() {
+        return null;
+    }
+}
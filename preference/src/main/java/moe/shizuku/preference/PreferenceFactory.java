@@ -0,0 +1,27 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.util.AttributeSet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Creates instances of a {@link Preference} class while inflating preference XML, without going
+ * through reflection.
+ *
+ * @see PreferenceManager#registerPreferenceFactory(Class, PreferenceFactory)
+ */
+public interface PreferenceFactory {
+
+    /**
+     * Creates a new preference, typically by calling its {@code (Context, AttributeSet)}
+     * constructor.
+     *
+     * @param context The context the preference is inflated with.
+     * @param attrs   The XML attributes of the preference element.
+     * @return The new preference.
+     */
+    @NonNull
+    Preference create(@NonNull Context context, @Nullable AttributeSet attrs);
+}
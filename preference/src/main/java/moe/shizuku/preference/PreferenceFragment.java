@@ -23,15 +23,25 @@ import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.util.DisplayMetrics;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.ContextThemeWrapper;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ProgressBar;
 
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.XmlRes;
@@ -129,6 +139,17 @@ public abstract class PreferenceFragment extends Fragment implements
     private boolean mHavePrefs;
     private boolean mInitDone;
 
+    /**
+     * Incremented for every hierarchy set or started in the background, so that a hierarchy
+     * inflated in the background can tell whether it is still wanted.
+     */
+    private int mInflateGeneration;
+    private boolean mInflatingAsync;
+    private View mPlaceholder;
+
+    private Executor mRowPreinflationExecutor;
+    private PreferenceViewPreinflater mPreinflater;
+
     private Context mStyledContext;
 
     private int mLayoutResId = R.layout.preference_list_fragment;
@@ -294,6 +315,16 @@ public abstract class PreferenceFragment extends Fragment implements
             throw new RuntimeException("Could not create RecyclerView");
         }
 
+        final RecyclerView.RecycledViewPool pool = getSharedRecycledViewPool(theme);
+        if (pool != null) {
+            listView.setRecycledViewPool(pool);
+            final RecyclerView.LayoutManager layoutManager = listView.getLayoutManager();
+            if (layoutManager instanceof LinearLayoutManager) {
+                // Hand the rows over to the pool when the list goes away, for the next screen
+                ((LinearLayoutManager) layoutManager).setRecycleChildrenOnDetach(true);
+            }
+        }
+
         mList = listView;
 
         mDividerDecoration = onCreateItemDecoration();
@@ -309,6 +340,7 @@ public abstract class PreferenceFragment extends Fragment implements
 
         listContainer.addView(mList);
         mHandler.post(mRequestFocus);
+        showPlaceholder();
 
         return view;
     }
@@ -387,6 +419,11 @@ public abstract class PreferenceFragment extends Fragment implements
     @Override
     public void onStop() {
         super.onStop();
+        final PreferenceDataStore dataStore = mPreferenceManager.getPreferenceDataStore();
+        if (dataStore instanceof CoalescingPreferenceDataStore) {
+            // Don't leave changes in memory only while in the background
+            ((CoalescingPreferenceDataStore) dataStore).flush();
+        }
         mPreferenceManager.dispatchActivityStop();
         mPreferenceManager.setOnPreferenceTreeClickListener(null);
         mPreferenceManager.setOnDisplayPreferenceDialogListener(null);
@@ -396,10 +433,12 @@ public abstract class PreferenceFragment extends Fragment implements
     public void onDestroyView() {
         mHandler.removeCallbacks(mRequestFocus);
         mHandler.removeMessages(MSG_BIND_PREFERENCES);
+        cancelRowPreinflation();
         if (mHavePrefs) {
             unbindPreferences();
         }
         mList = null;
+        mPlaceholder = null;
         super.onDestroyView();
     }
 
@@ -431,11 +470,16 @@ public abstract class PreferenceFragment extends Fragment implements
     }
 
     /**
-     * Sets the root of the preference hierarchy that this fragment is showing.
+     * Sets the root of the preference hierarchy that this fragment is showing. A hierarchy still
+     * being inflated by {@link #setPreferencesFromResourceAsync(int, String)} is dropped.
      *
      * @param preferenceScreen The root {@link PreferenceScreen} of the preference hierarchy.
      */
     public void setPreferenceScreen(PreferenceScreen preferenceScreen) {
+        // Drop any hierarchy still being inflated in the background
+        mInflateGeneration++;
+        hidePlaceholder();
+
         if (mPreferenceManager.setPreferences(preferenceScreen) && preferenceScreen != null) {
             onUnbindPreferences();
             mHavePrefs = true;
@@ -482,6 +526,57 @@ public abstract class PreferenceFragment extends Fragment implements
         final PreferenceScreen xmlRoot = mPreferenceManager.inflateFromResource(mStyledContext,
                 preferencesResId, null);
 
+        setPreferenceScreen(findRootScreen(xmlRoot, key));
+    }
+
+    /**
+     * Like {@link #setPreferencesFromResource(int, String)}, but inflates the XML resource on a
+     * background thread. Until the hierarchy is ready, the list shows the view returned by
+     * {@link #onCreatePlaceholderView(LayoutInflater, ViewGroup)}.
+     *
+     * @param preferencesResId The XML resource ID to inflate.
+     * @param key              The preference key of the {@link PreferenceScreen} to use as the root of the
+     *                         preference hierarchy, or null to use the root {@link PreferenceScreen}.
+     * @see #setPreferencesFromResourceAsync(int, String, Executor)
+     */
+    public void setPreferencesFromResourceAsync(@XmlRes int preferencesResId,
+                                                @Nullable String key) {
+        setPreferencesFromResourceAsync(preferencesResId, key, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Like {@link #setPreferencesFromResourceAsync(int, String)}, but inflates on the given
+     * executor.
+     *
+     * @param preferencesResId The XML resource ID to inflate.
+     * @param key              The preference key of the {@link PreferenceScreen} to use as the root of the
+     *                         preference hierarchy, or null to use the root {@link PreferenceScreen}.
+     * @param executor         The executor to inflate on.
+     */
+    public void setPreferencesFromResourceAsync(@XmlRes int preferencesResId,
+                                                @Nullable final String key,
+                                                @NonNull Executor executor) {
+        requirePreferenceManager();
+
+        final int generation = ++mInflateGeneration;
+        mInflatingAsync = true;
+        showPlaceholder();
+
+        mPreferenceManager.inflateFromResourceAsync(mStyledContext, preferencesResId, executor,
+                new PreferenceManager.OnPreferenceScreenInflatedListener() {
+                    @Override
+                    public void onPreferenceScreenInflated(PreferenceScreen preferenceScreen) {
+                        // Superseded by another call, or the fragment is gone
+                        if (generation != mInflateGeneration || isDetached()
+                                || getActivity() == null) {
+                            return;
+                        }
+                        setPreferenceScreen(findRootScreen(preferenceScreen, key));
+                    }
+                });
+    }
+
+    private PreferenceScreen findRootScreen(PreferenceScreen xmlRoot, @Nullable String key) {
         final Preference root;
         if (key != null) {
             root = xmlRoot.findPreference(key);
@@ -492,8 +587,49 @@ public abstract class PreferenceFragment extends Fragment implements
         } else {
             root = xmlRoot;
         }
+        return (PreferenceScreen) root;
+    }
 
-        setPreferenceScreen((PreferenceScreen) root);
+    /**
+     * Creates the view shown in place of the list while preferences are inflated by
+     * {@link #setPreferencesFromResourceAsync(int, String)}. By default it is an indeterminate
+     * progress bar.
+     *
+     * @param inflater The LayoutInflater object that can be used to inflate the view.
+     * @param parent   The parent that the placeholder will be added to.
+     * @return The placeholder view, or null for none.
+     */
+    @Nullable
+    public View onCreatePlaceholderView(LayoutInflater inflater, ViewGroup parent) {
+        final ProgressBar progressBar = new ProgressBar(inflater.getContext());
+        progressBar.setIndeterminate(true);
+        progressBar.setLayoutParams(new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT,
+                Gravity.CENTER));
+        return progressBar;
+    }
+
+    private void showPlaceholder() {
+        if (!mInflatingAsync || mList == null || mPlaceholder != null) {
+            return;
+        }
+        final ViewGroup listContainer = (ViewGroup) mList.getParent();
+        mPlaceholder = onCreatePlaceholderView(
+                LayoutInflater.from(listContainer.getContext()), listContainer);
+        if (mPlaceholder != null) {
+            listContainer.addView(mPlaceholder);
+        }
+    }
+
+    private void hidePlaceholder() {
+        mInflatingAsync = false;
+        if (mPlaceholder != null) {
+            final ViewGroup parent = (ViewGroup) mPlaceholder.getParent();
+            if (parent != null) {
+                parent.removeView(mPlaceholder);
+            }
+            mPlaceholder = null;
+        }
     }
 
     /**
@@ -567,12 +703,71 @@ public abstract class PreferenceFragment extends Fragment implements
     private void bindPreferences() {
         final PreferenceScreen preferenceScreen = getPreferenceScreen();
         if (preferenceScreen != null) {
-            getListView().setAdapter(onCreateAdapter(preferenceScreen));
+            final RecyclerView.Adapter adapter = onCreateAdapter(preferenceScreen);
+            if (adapter instanceof PreferenceGroupAdapter) {
+                preinflateRows((PreferenceGroupAdapter) adapter);
+            }
+            getListView().setAdapter(adapter);
             preferenceScreen.onAttached();
         }
         onBindPreferences();
     }
 
+    /**
+     * Starts inflating the rows the first layout of the adapter needs in the background, leaving
+     * out those already in the pool of the list.
+     */
+    private void preinflateRows(PreferenceGroupAdapter adapter) {
+        cancelRowPreinflation();
+        if (mRowPreinflationExecutor == null || !adapter.canPreinflateRows()) {
+            return;
+        }
+
+        final RecyclerView list = getListView();
+        final RecyclerView.RecycledViewPool pool = list.getRecycledViewPool();
+        final SparseIntArray expectedCounts = adapter.getViewTypeCounts(getExpectedRowCount(list));
+        final SparseIntArray counts = new SparseIntArray();
+        for (int i = 0; i < expectedCounts.size(); i++) {
+            final int viewType = expectedCounts.keyAt(i);
+            final int count = expectedCounts.valueAt(i) - pool.getRecycledViewCount(viewType);
+            if (count > 0) {
+                counts.put(viewType, count);
+            }
+        }
+        if (counts.size() == 0) {
+            return;
+        }
+
+        mPreinflater = new PreferenceViewPreinflater(list, adapter, counts);
+        adapter.setPreinflater(mPreinflater);
+        mPreinflater.start(mRowPreinflationExecutor);
+    }
+
+    private void cancelRowPreinflation() {
+        if (mPreinflater != null) {
+            mPreinflater.cancel();
+            mPreinflater = null;
+        }
+    }
+
+    /**
+     * Returns how many rows fit on the screen, assuming they are as short as a row can be.
+     */
+    private static int getExpectedRowCount(RecyclerView list) {
+        final DisplayMetrics metrics = list.getResources().getDisplayMetrics();
+        final TypedValue tv = new TypedValue();
+        int rowHeight = 0;
+        if (list.getContext().getTheme().resolveAttribute(
+                android.R.attr.listPreferredItemHeightSmall, tv, true)
+                && tv.type == TypedValue.TYPE_DIMENSION) {
+            rowHeight = TypedValue.complexToDimensionPixelSize(tv.data, metrics);
+        }
+        if (rowHeight <= 0) {
+            rowHeight = (int) (48 * metrics.density);
+        }
+        return metrics.heightPixels / rowHeight + 1;
+    }
+
     private void unbindPreferences() {
         final PreferenceScreen preferenceScreen = getPreferenceScreen();
         if (preferenceScreen != null) {
@@ -636,6 +831,69 @@ public abstract class PreferenceFragment extends Fragment implements
         return new LinearLayoutManager(getActivity());
     }
 
+    /**
+     * Sets the executor on which the rows needed to first show the preferences are inflated, so
+     * that they are ready by the time the list is laid out. Rows are not inflated in the
+     * background by default.
+     * <p>
+     * Like {@code AsyncLayoutInflater}, rows inflated in the background are inflated without the
+     * factories of the activity, so views are created as written in the layouts, without the
+     * substitutions a factory such as the one of AppCompat makes. As rows inflated later on the
+     * main thread do go through the factories, only use this if the layouts of the rows do not
+     * rely on them. Rows whose views cannot be created off the main thread are still inflated on
+     * it, and so are all rows if {@link #onCreateAdapter} returns a {@link PreferenceGroupAdapter}
+     * whose {@link PreferenceGroupAdapter#canPreinflateRows()} returns false.
+     *
+     * @param executor The executor to inflate on, such as {@link AsyncTask#THREAD_POOL_EXECUTOR},
+     *                 or null to inflate every row on the main thread as it is laid out.
+     */
+    public void setRowPreinflationExecutor(@Nullable Executor executor) {
+        mRowPreinflationExecutor = executor;
+    }
+
+    /**
+     * Creates the pool of rows shared by the lists of the preference fragments of this activity
+     * that use the same preference theme, so that rows inflated for one screen are reused by the
+     * next. Only called by the first of those fragments to create its list.
+     *
+     * <p>Override to set how many rows the pool keeps, or return null for this fragment to use a
+     * pool of its own.
+     *
+     * @return A new {@link PreferenceRecycledViewPool}, or null.
+     */
+    @Nullable
+    public PreferenceRecycledViewPool onCreateRecycledViewPool() {
+        return new PreferenceRecycledViewPool();
+    }
+
+    /**
+     * Returns the pool shared within this activity for the given preference theme. Pools are kept
+     * on the decor view of the activity, as the rows in them are bound to its context.
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private RecyclerView.RecycledViewPool getSharedRecycledViewPool(int theme) {
+        final View decorView = getActivity().getWindow().peekDecorView();
+        if (decorView == null) {
+            return null;
+        }
+        SparseArray<RecyclerView.RecycledViewPool> pools =
+                (SparseArray<RecyclerView.RecycledViewPool>) decorView.getTag(
+                        R.id.preference_recycled_view_pools);
+        if (pools == null) {
+            pools = new SparseArray<>();
+            decorView.setTag(R.id.preference_recycled_view_pools, pools);
+        }
+        RecyclerView.RecycledViewPool pool = pools.get(theme);
+        if (pool == null) {
+            pool = onCreateRecycledViewPool();
+            if (pool != null) {
+                pools.put(theme, pool);
+            }
+        }
+        return pool;
+    }
+
     /**
      * Creates the root adapter.
      *
@@ -21,12 +21,15 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import androidx.annotation.RestrictTo;
 import androidx.collection.SimpleArrayMap;
@@ -57,14 +60,40 @@ public abstract class PreferenceGroup extends Preference {
      */
     private List<Preference> mPreferenceList;
 
+    /**
+     * Whether {@link #mPreferenceList} is in order. Cleared when the sort key of a child changes
+     * so that it is out of order, and the list is sorted again the next time it is read.
+     */
+    private boolean mPreferenceListSorted = true;
+
     private boolean mOrderingAsAdded = true;
 
     private int mCurrentPreferenceOrder = 0;
 
     private boolean mAttachedToHierarchy = false;
 
+    /**
+     * The keyed preferences anywhere below this group, so that {@link #findPreference} does not
+     * have to walk the hierarchy. Kept up to date by the descendants as they are added, removed
+     * or change their keys.
+     */
+    private final Map<String, Preference> mKeyIndex = new HashMap<>();
+
+    /**
+     * Keys used by more than one preference below this group, with the number of preferences
+     * using them. These are still looked up by walking the hierarchy, so the first one in order
+     * wins as before.
+     */
+    private final Map<String, Integer> mDuplicateKeys = new HashMap<>();
+
+    /**
+     * The number of {@link PagedPreferenceGroup}s below this group, whose items are looked up
+     * by walking the hierarchy only if there are any.
+     */
+    private int mPagedGroupCount;
+
     private final SimpleArrayMap<String, Long> mIdRecycleCache = new SimpleArrayMap<>();
-    private final Handler mHandler = new Handler();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private final Runnable mClearRecycleCacheRunnable = new Runnable() {
         @Override
         public void run() {
@@ -146,6 +175,9 @@ public abstract class PreferenceGroup extends Preference {
      * @return The {@link Preference}.
      */
     public Preference getPreference(int index) {
+        if (!mPreferenceListSorted) {
+            sortPreferences();
+        }
         return mPreferenceList.get(index);
     }
 
@@ -174,6 +206,9 @@ public abstract class PreferenceGroup extends Preference {
             }
         }
 
+        if (!mPreferenceListSorted) {
+            sortPreferences();
+        }
         int insertionIndex = Collections.binarySearch(mPreferenceList, preference);
         if (insertionIndex < 0) {
             insertionIndex = insertionIndex * -1 - 1;
@@ -198,6 +233,7 @@ public abstract class PreferenceGroup extends Preference {
         }
         preference.onAttachedToHierarchy(preferenceManager, id);
         preference.assignParent(this);
+        indexPreference(preference);
 
         if (mAttachedToHierarchy) {
             preference.onAttached();
@@ -228,6 +264,8 @@ public abstract class PreferenceGroup extends Preference {
             }
             boolean success = mPreferenceList.remove(preference);
             if (success) {
+                unindexPreference(preference);
+
                 // If this preference, or another preference with the same key, gets re-added
                 // immediately, we want it to have the same id so that it can be correctly tracked
                 // in the adapter by RecyclerView, to make it appear as if it has only been
@@ -295,6 +333,18 @@ public abstract class PreferenceGroup extends Preference {
         if (TextUtils.equals(getKey(), key)) {
             return this;
         }
+        if (key == null) {
+            return findPreferenceInChildren(null);
+        }
+
+        final String keyString = key.toString();
+        if (mDuplicateKeys.containsKey(keyString)) {
+            return findPreferenceInChildren(keyString);
+        }
+        return mKeyIndex.get(keyString);
+    }
+
+    private Preference findPreferenceInChildren(CharSequence key) {
         final int preferenceCount = getPreferenceCount();
         for (int i = 0; i < preferenceCount; i++) {
             final Preference preference = getPreference(i);
@@ -316,6 +366,168 @@ public abstract class PreferenceGroup extends Preference {
         return null;
     }
 
+    /**
+     * Adds a preference that was just added to this group, along with everything below it, to
+     * the key index of this group and of all its ancestors.
+     */
+    private void indexPreference(Preference preference) {
+        final int pagedGroupCount = countPagedGroups(preference);
+        for (PreferenceGroup group = this; group != null; group = group.getParent()) {
+            group.mPagedGroupCount += pagedGroupCount;
+            group.putKey(preference.getKey(), preference, 1);
+
+            if (preference instanceof PreferenceGroup) {
+                final PreferenceGroup subtree = (PreferenceGroup) preference;
+                for (Map.Entry<String, Preference> entry : subtree.mKeyIndex.entrySet()) {
+                    group.putKey(entry.getKey(), entry.getValue(),
+                            subtree.getKeyCount(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a preference that was just removed from this group, along with everything below
+     * it, from the key index of this group and of all its ancestors.
+     */
+    private void unindexPreference(Preference preference) {
+        final int pagedGroupCount = countPagedGroups(preference);
+        for (PreferenceGroup group = this; group != null; group = group.getParent()) {
+            group.mPagedGroupCount -= pagedGroupCount;
+            group.removeKey(preference.getKey(), preference, 1);
+
+            if (preference instanceof PreferenceGroup) {
+                final PreferenceGroup subtree = (PreferenceGroup) preference;
+                for (Map.Entry<String, Preference> entry : subtree.mKeyIndex.entrySet()) {
+                    group.removeKey(entry.getKey(), entry.getValue(),
+                            subtree.getKeyCount(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of paged groups a preference is or contains.
+     */
+    private static int countPagedGroups(Preference preference) {
+        if (!(preference instanceof PreferenceGroup)) {
+            return 0;
+        }
+        final int count = ((PreferenceGroup) preference).mPagedGroupCount;
+        return preference instanceof PagedPreferenceGroup ? count + 1 : count;
+    }
+
+    /**
+     * Returns the number of {@link PagedPreferenceGroup}s below this group.
+     */
+    int getPagedGroupCount() {
+        return mPagedGroupCount;
+    }
+
+    /**
+     * Called by a preference below this group when its key changes.
+     *
+     * @param preference The preference.
+     * @param oldKey     The previous key of the preference.
+     */
+    void onDescendantKeyChanged(Preference preference, String oldKey) {
+        for (PreferenceGroup group = this; group != null; group = group.getParent()) {
+            group.removeKey(oldKey, preference, 1);
+            group.putKey(preference.getKey(), preference, 1);
+        }
+    }
+
+    /**
+     * Returns the number of keys used by more than one preference below this group.
+     */
+    int getDuplicateKeyCount() {
+        return mDuplicateKeys.size();
+    }
+
+    /**
+     * Returns the number of preferences below this group using an indexed key.
+     */
+    private int getKeyCount(String key) {
+        final Integer count = mDuplicateKeys.get(key);
+        return count != null ? count : 1;
+    }
+
+    /**
+     * Indexes a key used by the given number of preferences, the given preference among them.
+     */
+    private void putKey(String key, Preference preference, int count) {
+        if (key == null) {
+            return;
+        }
+        final Preference existing = mKeyIndex.get(key);
+        if (existing == null) {
+            mKeyIndex.put(key, preference);
+            if (count > 1) {
+                mDuplicateKeys.put(key, count);
+            }
+        } else if (existing != preference || count > 1) {
+            mDuplicateKeys.put(key, getKeyCount(key) + count);
+        }
+    }
+
+    /**
+     * Unindexes a key no longer used by the given number of preferences, the given preference
+     * among them. Once a duplicate key is used by a single preference again, that preference is
+     * looked up and indexed, and the key is no longer a duplicate.
+     */
+    private void removeKey(String key, Preference preference, int count) {
+        if (key == null) {
+            return;
+        }
+        final Integer duplicateCount = mDuplicateKeys.get(key);
+        if (duplicateCount == null) {
+            if (mKeyIndex.get(key) == preference) {
+                mKeyIndex.remove(key);
+            }
+            return;
+        }
+
+        final int remaining = duplicateCount - count;
+        if (remaining > 1) {
+            // The indexed preference may be the one removed, but it is not used while the key
+            // is a duplicate
+            mDuplicateKeys.put(key, remaining);
+            return;
+        }
+        mDuplicateKeys.remove(key);
+        final Preference remainingPreference =
+                remaining == 1 ? findIndexedPreferenceInChildren(key) : null;
+        if (remainingPreference != null) {
+            mKeyIndex.put(key, remainingPreference);
+        } else {
+            mKeyIndex.remove(key);
+        }
+    }
+
+    /**
+     * Finds the first preference with a key below this group like {@link #findPreference} does,
+     * but only through the key indexes, so that subclasses do not inflate or page in anything.
+     */
+    private Preference findIndexedPreferenceInChildren(String key) {
+        final int preferenceCount = getPreferenceCount();
+        for (int i = 0; i < preferenceCount; i++) {
+            final Preference preference = getPreference(i);
+            if (key.equals(preference.getKey())) {
+                return preference;
+            }
+            if (preference instanceof PreferenceGroup) {
+                final PreferenceGroup group = (PreferenceGroup) preference;
+                final Preference returnedPreference = group.mDuplicateKeys.containsKey(key)
+                        ? group.findIndexedPreferenceInChildren(key)
+                        : group.mKeyIndex.get(key);
+                if (returnedPreference != null) {
+                    return returnedPreference;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Whether this preference group should be shown on the same screen as its
      * contained preferences.
@@ -378,9 +590,46 @@ public abstract class PreferenceGroup extends Preference {
         }
     }
 
+    /**
+     * Makes sure the children are sorted. They are kept in order as they are added, and sorted
+     * again only after the order or title of a child moved it.
+     */
     void sortPreferences() {
         synchronized (this) {
-            Collections.sort(mPreferenceList);
+            if (!mPreferenceListSorted) {
+                // Mostly sorted, which the merge sort handles in about linear time
+                Collections.sort(mPreferenceList);
+                mPreferenceListSorted = true;
+            }
+        }
+    }
+
+    /**
+     * Called by a child when its order or title changes. If that moves the child, the children
+     * are sorted again the next time they are read, so that changing many titles sorts once.
+     *
+     * @param preference The child whose sort key changed.
+     * @return Whether the position of the child changes.
+     */
+    boolean onPreferenceSortKeyChanged(Preference preference) {
+        synchronized (this) {
+            if (!mPreferenceListSorted) {
+                // The position is only known after sorting, assume it changes
+                return true;
+            }
+            final List<Preference> preferences = mPreferenceList;
+            final int index = preferences.indexOf(preference);
+            if (index < 0) {
+                return false;
+            }
+            final int last = preferences.size() - 1;
+            if ((index == 0 || preferences.get(index - 1).compareTo(preference) <= 0)
+                    && (index == last || preference.compareTo(preferences.get(index + 1)) <= 0)) {
+                // Still in order
+                return false;
+            }
+            mPreferenceListSorted = false;
+            return true;
         }
     }
 
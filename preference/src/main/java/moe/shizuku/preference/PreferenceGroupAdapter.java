@@ -18,15 +18,25 @@ package moe.shizuku.preference;
 
 import android.os.Handler;
 import android.text.TextUtils;
+import android.util.SparseIntArray;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import androidx.annotation.RestrictTo;
 import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
 import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP;
@@ -44,6 +54,8 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
 
     private static final String TAG = "PreferenceGroupAdapter";
 
+    private static final Object PAYLOAD_CHANGED = new Object();
+
     /**
      * The group that we are providing data from.
      */
@@ -63,56 +75,118 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
     private List<Preference> mPreferenceListInternal;
 
     /**
-     * List of unique Preference and its subclasses' names and layouts.
+     * View types shared by all adapters, so that their view holders can be shared through a
+     * {@link PreferenceRecycledViewPool}.
+     */
+    private final PreferenceViewTypes mViewTypes = PreferenceViewTypes.getInstance();
+
+    /**
+     * Number of flattened descendants of each {@link PreferenceGroup} shown by this adapter, used
+     * to find the range a group occupies in {@link #mPreferenceListInternal} so that only that
+     * range has to be re-flattened when the group changes.
+     */
+    private final Map<PreferenceGroup, Integer> mSubtreeSizes = new HashMap<>();
+
+    /**
+     * Groups that have added, removed or reordered children since the last sync.
+     */
+    private final List<PreferenceGroup> mDirtyGroups = new ArrayList<>();
+
+    /**
+     * Position of each preference in {@link #mPreferenceList}, and of the first preference with
+     * each key. Rebuilt on first use after the list has changed, or shifted when a single
+     * preference is shown or hidden.
      */
-    private List<PreferenceLayout> mPreferenceLayouts;
+    private final Map<Preference, Integer> mPositions = new IdentityHashMap<>();
+    private final Map<String, Integer> mKeyPositions = new HashMap<>();
 
+    private boolean mPositionsValid;
 
-    private PreferenceLayout mTempPreferenceLayout = new PreferenceLayout();
+    /**
+     * Position of each preference in {@link #mPreferenceListInternal}, which does not change
+     * with the visibility of preferences.
+     */
+    private final Map<Preference, Integer> mInternalPositions = new IdentityHashMap<>();
+
+    private boolean mInternalPositionsValid;
+
+    /**
+     * The {@link PagedPreferenceGroup}s in {@link #mPreferenceList}, in order, with their index in
+     * it and their number of items. Their items follow them in the adapter positions but are not
+     * in the lists. Rebuilt with the positions.
+     */
+    private final List<PagedPreferenceGroup> mPagedGroups = new ArrayList<>();
+    private int[] mPagedGroupIndices = new int[0];
+    private int[] mPagedGroupItemCounts = new int[0];
+    private int mPagedItemCount;
+
+    /**
+     * Whether a paged group is in the list, or was when observers were last notified. Changes to
+     * the list are then dispatched as a change of the whole data set, as their positions would
+     * have to account for the items of the groups. Updated from {@link #mPagedGroupCount} once
+     * a change has been dispatched.
+     */
+    private boolean mHasPagedGroups;
+
+    /**
+     * The number of {@link PagedPreferenceGroup}s in {@link #mPreferenceListInternal}.
+     */
+    private int mPagedGroupCount;
+
+    /**
+     * The item of a paged group each view holder is bound to.
+     */
+    private final Map<PreferenceViewHolder, Preference> mBoundItems = new IdentityHashMap<>();
+
+    /**
+     * Incremented for every diff of the visible list, so that the result of a background diff
+     * can tell whether it is still the latest one.
+     */
+    private int mDiffGeneration;
+
+    /**
+     * Whether a background diff is running, in which case {@link #mPreferenceList} is still the
+     * list it was started from.
+     */
+    private boolean mDiffPending;
+
+    /**
+     * Rows being inflated in the background for the first layout, if any.
+     */
+    private PreferenceViewPreinflater mPreinflater;
 
     private Handler mHandler = new Handler();
 
     private Runnable mSyncRunnable = new Runnable() {
         @Override
         public void run() {
-            syncMyPreferences();
+            syncDirtyGroups();
         }
     };
 
-    private static class PreferenceLayout {
-        private int resId;
-        private int widgetResId;
-        private String name;
+    /**
+     * Preferences that changed since the last frame, dispatched together from
+     * {@link #mChangeFrameCallback}.
+     */
+    private final Set<Preference> mChangedPreferences =
+            Collections.newSetFromMap(new IdentityHashMap<Preference, Boolean>());
 
-        public PreferenceLayout() {
+    private Choreographer.FrameCallback mChangeFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatchChangedPreferences();
         }
+    };
 
-        public PreferenceLayout(PreferenceLayout other) {
-            resId = other.resId;
-            widgetResId = other.widgetResId;
-            name = other.name;
-        }
+    /**
+     * Number of {@link RecyclerView}s this adapter is attached to. Changes are only dispatched
+     * while it is attached to one.
+     */
+    private int mAttachedCount;
 
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof PreferenceLayout)) {
-                return false;
-            }
-            final PreferenceLayout other = (PreferenceLayout) o;
-            return resId == other.resId
-                    && widgetResId == other.widgetResId
-                    && TextUtils.equals(name, other.name);
-        }
+    private int mChangeNotificationCount;
 
-        @Override
-        public int hashCode() {
-            int result = 17;
-            result = 31 * result + resId;
-            result = 31 * result + widgetResId;
-            result = 31 * result + name.hashCode();
-            return result;
-        }
-    }
+    private int mChangeDispatchCount;
 
     public PreferenceGroupAdapter(PreferenceGroup preferenceGroup) {
         mPreferenceGroup = preferenceGroup;
@@ -121,7 +195,6 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
 
         mPreferenceList = new ArrayList<>();
         mPreferenceListInternal = new ArrayList<>();
-        mPreferenceLayouts = new ArrayList<>();
 
         if (mPreferenceGroup instanceof PreferenceScreen) {
             setHasStableIds(((PreferenceScreen) mPreferenceGroup).shouldUseGeneratedIds());
@@ -136,8 +209,12 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
         for (final Preference preference : mPreferenceListInternal) {
             // Clear out the listeners in anticipation of some items being removed. This listener
             // will be (re-)added to the remaining prefs when we flatten.
-            preference.setOnPreferenceChangeInternalListener(null);
+            setListener(preference, null);
         }
+        mSubtreeSizes.clear();
+        mDirtyGroups.clear();
+        mPagedGroupCount = 0;
+
         final List<Preference> fullPreferenceList = new ArrayList<>(mPreferenceListInternal.size());
         flattenPreferenceGroup(fullPreferenceList, mPreferenceGroup);
 
@@ -152,49 +229,523 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
         final List<Preference> oldVisibleList = mPreferenceList;
         mPreferenceList = visiblePreferenceList;
         mPreferenceListInternal = fullPreferenceList;
+        invalidatePositions();
 
         final PreferenceManager preferenceManager = mPreferenceGroup.getPreferenceManager();
         if (preferenceManager != null
-                && preferenceManager.getPreferenceComparisonCallback() != null) {
-            final PreferenceManager.PreferenceComparisonCallback comparisonCallback =
-                    preferenceManager.getPreferenceComparisonCallback();
-            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
-                @Override
-                public int getOldListSize() {
-                    return oldVisibleList.size();
-                }
+                && preferenceManager.getPreferenceComparisonCallback() != null
+                && !mHasPagedGroups) {
+            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new PreferenceDiffCallback(
+                    oldVisibleList, visiblePreferenceList,
+                    preferenceManager.getPreferenceComparisonCallback()));
+
+            result.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+        onChangeDispatched();
+
+        for (final Preference preference : fullPreferenceList) {
+            preference.clearWasDetached();
+        }
+    }
+
+    /**
+     * Called once the observers have been notified of the current list, after which the items of
+     * paged groups only have to be accounted for if there still are any.
+     */
+    private void onChangeDispatched() {
+        if (!mDiffPending) {
+            mHasPagedGroups = mPagedGroupCount > 0;
+        }
+    }
+
+    /**
+     * Re-flattens only the groups that changed since the last sync, splicing each group's new
+     * children into the range its old children occupied.
+     */
+    private void syncDirtyGroups() {
+        final List<PreferenceGroup> dirtyGroups = new ArrayList<>(mDirtyGroups);
+        final List<Preference> replaced = new ArrayList<>();
+        final boolean asyncDiff = isAsyncDiff();
+        for (final PreferenceGroup group : dirtyGroups) {
+            if (shouldSyncGroup(group)) {
+                syncGroup(group, replaced, !asyncDiff);
+            }
+        }
+        mDirtyGroups.clear();
 
-                @Override
-                public int getNewListSize() {
-                    return visiblePreferenceList.size();
+        // Preferences that were taken out of one range may have been flattened again as part of
+        // another, only the ones that have really left the screen lose the listener.
+        for (final Preference preference : replaced) {
+            if (isFlattened(preference)) {
+                setListener(preference, this);
+            } else {
+                setListener(preference, null);
+                if (preference instanceof PreferenceGroup) {
+                    mSubtreeSizes.remove(preference);
                 }
+            }
+        }
+
+        if (asyncDiff) {
+            syncVisiblePreferences();
+        } else {
+            onChangeDispatched();
+        }
+    }
+
+    /**
+     * Whether the group is currently shown by this adapter and is not going to be re-flattened
+     * as part of a dirty ancestor anyway.
+     */
+    private boolean shouldSyncGroup(PreferenceGroup group) {
+        if (group == mPreferenceGroup) {
+            return true;
+        }
+        if (!group.isOnSameScreenAsChildren()) {
+            return false;
+        }
+        PreferenceGroup parent = group.getParent();
+        while (parent != null) {
+            if (mDirtyGroups.contains(parent)) {
+                return false;
+            }
+            if (parent == mPreferenceGroup) {
+                return true;
+            }
+            if (!parent.isOnSameScreenAsChildren()) {
+                return false;
+            }
+            parent = parent.getParent();
+        }
+        return false;
+    }
+
+    /**
+     * Whether the preference is in the part of the hierarchy that is flattened into this adapter.
+     */
+    private boolean isFlattened(Preference preference) {
+        PreferenceGroup parent = preference.getParent();
+        while (parent != null) {
+            if (parent == mPreferenceGroup) {
+                return true;
+            }
+            if (!parent.isOnSameScreenAsChildren()) {
+                return false;
+            }
+            parent = parent.getParent();
+        }
+        return false;
+    }
 
-                @Override
-                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
-                    return comparisonCallback.arePreferenceItemsTheSame(
-                            oldVisibleList.get(oldItemPosition),
-                            visiblePreferenceList.get(newItemPosition));
+    /**
+     * Replaces the range of the group's old descendants with its current ones.
+     *
+     * @param updateVisible Whether to patch the visible list and notify observers as well, or to
+     *                      leave that to a diff of the whole list afterwards.
+     */
+    private void syncGroup(PreferenceGroup group, List<Preference> replaced,
+                           boolean updateVisible) {
+        final int start;
+        if (group == mPreferenceGroup) {
+            start = 0;
+        } else {
+            final int groupIndex = getInternalPosition(group);
+            if (groupIndex == RecyclerView.NO_POSITION) {
+                return;
+            }
+            start = groupIndex + 1;
+        }
+        final Integer oldSizeValue = mSubtreeSizes.get(group);
+        final int oldSize = oldSizeValue != null ? oldSizeValue : 0;
+
+        final List<Preference> newRange = new ArrayList<>(oldSize);
+        flattenPreferenceGroup(newRange, group);
+
+        final List<Preference> oldRange = mPreferenceListInternal.subList(start, start + oldSize);
+
+        int visibleStart = 0;
+        List<Preference> oldVisibleRange = null;
+        List<Preference> newVisibleRange = null;
+        if (updateVisible) {
+            visibleStart = getVisiblePosition(start);
+            int oldVisibleSize = 0;
+            for (final Preference preference : oldRange) {
+                if (preference.isVisible()) {
+                    oldVisibleSize++;
                 }
+            }
+            newVisibleRange = new ArrayList<>(newRange.size());
+            for (final Preference preference : newRange) {
+                if (preference.isVisible()) {
+                    newVisibleRange.add(preference);
+                }
+            }
+            final List<Preference> visibleRange =
+                    mPreferenceList.subList(visibleStart, visibleStart + oldVisibleSize);
+            oldVisibleRange = new ArrayList<>(visibleRange);
+            visibleRange.clear();
+            mPreferenceList.addAll(visibleStart, newVisibleRange);
+        }
 
-                @Override
-                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
-                    return comparisonCallback.arePreferenceContentsTheSame(
-                            oldVisibleList.get(oldItemPosition),
-                            visiblePreferenceList.get(newItemPosition));
+        replaced.addAll(oldRange);
+        for (final Preference preference : oldRange) {
+            if (preference instanceof PagedPreferenceGroup) {
+                mPagedGroupCount--;
+            }
+        }
+        oldRange.clear();
+        mPreferenceListInternal.addAll(start, newRange);
+        invalidatePositions();
+
+        final int delta = newRange.size() - oldSize;
+        if (delta != 0 && group != mPreferenceGroup) {
+            PreferenceGroup parent = group.getParent();
+            while (parent != null) {
+                mSubtreeSizes.put(parent, mSubtreeSizes.get(parent) + delta);
+                if (parent == mPreferenceGroup) {
+                    break;
                 }
-            });
+                parent = parent.getParent();
+            }
+        }
 
-            result.dispatchUpdatesTo(this);
-        } else {
+        if (updateVisible) {
+            dispatchRangeUpdate(visibleStart, oldVisibleRange, newVisibleRange);
+
+            for (final Preference preference : newRange) {
+                preference.clearWasDetached();
+            }
+        }
+    }
+
+    /**
+     * Whether changes to the visible list have to go through {@link #syncVisiblePreferences()},
+     * either because diffs are computed in the background or because one is still running.
+     */
+    private boolean isAsyncDiff() {
+        if (mDiffPending) {
+            return true;
+        }
+        final PreferenceManager preferenceManager = mPreferenceGroup.getPreferenceManager();
+        return preferenceManager != null
+                && preferenceManager.getPreferenceComparisonCallback() != null
+                && preferenceManager.getPreferenceComparisonExecutor() != null;
+    }
+
+    /**
+     * Rebuilds the visible list from the flattened one and dispatches the difference. With a
+     * comparison executor set, the diff is computed on it against a snapshot of both lists and the
+     * visible list is only replaced once the result is back on the main thread, results of diffs
+     * that were superseded in the meantime are dropped.
+     */
+    private void syncVisiblePreferences() {
+        final List<Preference> newList = new ArrayList<>(mPreferenceListInternal.size());
+        for (final Preference preference : mPreferenceListInternal) {
+            if (preference.isVisible()) {
+                newList.add(preference);
+            }
+        }
+        final int generation = ++mDiffGeneration;
+
+        final PreferenceManager preferenceManager = mPreferenceGroup.getPreferenceManager();
+        final PreferenceManager.PreferenceComparisonCallback comparisonCallback =
+                preferenceManager != null
+                        ? preferenceManager.getPreferenceComparisonCallback() : null;
+        final Executor executor = preferenceManager != null
+                ? preferenceManager.getPreferenceComparisonExecutor() : null;
+
+        if (comparisonCallback == null || mHasPagedGroups) {
+            mDiffPending = false;
+            mPreferenceList = newList;
+            invalidatePositions();
             notifyDataSetChanged();
+            onChangeDispatched();
+            for (final Preference preference : newList) {
+                preference.clearWasDetached();
+            }
+            return;
         }
 
-        for (final Preference preference : fullPreferenceList) {
+        final List<Preference> oldList = mPreferenceList;
+        if (executor == null) {
+            applyDiff(newList, DiffUtil.calculateDiff(
+                    new PreferenceDiffCallback(oldList, newList, comparisonCallback)));
+            return;
+        }
+
+        mDiffPending = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                        new PreferenceDiffCallback(oldList, newList, comparisonCallback));
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mDiffGeneration) {
+                            applyDiff(newList, result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyDiff(List<Preference> newList, DiffUtil.DiffResult result) {
+        mDiffPending = false;
+        mPreferenceList = newList;
+        invalidatePositions();
+        if (mHasPagedGroups) {
+            // A paged group appeared while diffing
+            notifyDataSetChanged();
+        } else {
+            result.dispatchUpdatesTo(this);
+        }
+        onChangeDispatched();
+        for (final Preference preference : newList) {
             preference.clearWasDetached();
         }
     }
 
+    /**
+     * Notifies observers that the visible rows starting at {@code start} changed from
+     * {@code oldRange} to {@code newRange}. Rows shared by the head and tail of both ranges are
+     * left alone, unless a {@link PreferenceManager.PreferenceComparisonCallback} is set, in which
+     * case the two ranges are diffed with it.
+     */
+    private void dispatchRangeUpdate(int start, List<Preference> oldRange,
+                                     List<Preference> newRange) {
+        if (mHasPagedGroups) {
+            notifyDataSetChanged();
+            return;
+        }
+        final PreferenceManager preferenceManager = mPreferenceGroup.getPreferenceManager();
+        if (preferenceManager != null
+                && preferenceManager.getPreferenceComparisonCallback() != null) {
+            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new PreferenceDiffCallback(
+                    oldRange, newRange, preferenceManager.getPreferenceComparisonCallback()));
+
+            result.dispatchUpdatesTo(new OffsetListUpdateCallback(start));
+            return;
+        }
+
+        final int oldSize = oldRange.size();
+        final int newSize = newRange.size();
+        final int minSize = Math.min(oldSize, newSize);
+        int head = 0;
+        while (head < minSize && oldRange.get(head) == newRange.get(head)) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < minSize - head
+                && oldRange.get(oldSize - 1 - tail) == newRange.get(newSize - 1 - tail)) {
+            tail++;
+        }
+        final int removedCount = oldSize - head - tail;
+        final int insertedCount = newSize - head - tail;
+        if (removedCount > 0) {
+            notifyItemRangeRemoved(start + head, removedCount);
+        }
+        if (insertedCount > 0) {
+            notifyItemRangeInserted(start + head, insertedCount);
+        }
+    }
+
+    private void invalidatePositions() {
+        mPositionsValid = false;
+        mInternalPositionsValid = false;
+    }
+
+    private void ensurePositions() {
+        if (mPositionsValid) {
+            return;
+        }
+        mPositions.clear();
+        mKeyPositions.clear();
+        mPagedGroups.clear();
+
+        final int size = mPreferenceList.size();
+        for (int i = 0; i < size; i++) {
+            final Preference preference = mPreferenceList.get(i);
+            mPositions.put(preference, i);
+            final String key = preference.getKey();
+            if (!mKeyPositions.containsKey(key)) {
+                mKeyPositions.put(key, i);
+            }
+            if (preference instanceof PagedPreferenceGroup) {
+                mPagedGroups.add((PagedPreferenceGroup) preference);
+            }
+        }
+        final int pagedGroupCount = mPagedGroups.size();
+        mPagedGroupIndices = new int[pagedGroupCount];
+        mPagedGroupItemCounts = new int[pagedGroupCount];
+        mPagedItemCount = 0;
+        for (int i = 0; i < pagedGroupCount; i++) {
+            final PagedPreferenceGroup group = mPagedGroups.get(i);
+            mPagedGroupIndices[i] = mPositions.get(group);
+            mPagedGroupItemCounts[i] = group.getShownItemCount();
+            mPagedItemCount += mPagedGroupItemCounts[i];
+        }
+        mPositionsValid = true;
+    }
+
+    private void ensureInternalPositions() {
+        if (mInternalPositionsValid) {
+            return;
+        }
+        mInternalPositions.clear();
+        final int internalSize = mPreferenceListInternal.size();
+        for (int i = 0; i < internalSize; i++) {
+            mInternalPositions.put(mPreferenceListInternal.get(i), i);
+        }
+        mInternalPositionsValid = true;
+    }
+
+    /**
+     * Updates the positions after a preference has been inserted into or removed from
+     * {@link #mPreferenceList} at {@code index}, by shifting those after it rather than
+     * rebuilding all of them.
+     */
+    private void shiftPositions(Preference preference, int index, boolean inserted) {
+        if (!mPositionsValid || preference instanceof PagedPreferenceGroup) {
+            mPositionsValid = false;
+            return;
+        }
+        final String key = preference.getKey();
+        final int delta = inserted ? 1 : -1;
+        boolean findKey = false;
+        if (inserted) {
+            mPositions.put(preference, index);
+        } else {
+            mPositions.remove(preference);
+            final Integer keyPosition = mKeyPositions.get(key);
+            if (keyPosition != null && keyPosition == index) {
+                // The next preference with the key, if any, comes first now
+                mKeyPositions.remove(key);
+                findKey = true;
+            }
+        }
+
+        final int size = mPreferenceList.size();
+        for (int i = inserted ? index + 1 : index; i < size; i++) {
+            final Preference shifted = mPreferenceList.get(i);
+            mPositions.put(shifted, i);
+            final String shiftedKey = shifted.getKey();
+            final Integer keyPosition = mKeyPositions.get(shiftedKey);
+            if (keyPosition != null) {
+                if (keyPosition == i - delta) {
+                    mKeyPositions.put(shiftedKey, i);
+                }
+            } else if (findKey && TextUtils.equals(shiftedKey, key)) {
+                mKeyPositions.put(shiftedKey, i);
+                findKey = false;
+            }
+        }
+
+        if (inserted) {
+            final Integer keyPosition = mKeyPositions.get(key);
+            if (keyPosition == null || keyPosition > index) {
+                mKeyPositions.put(key, index);
+            }
+        }
+        for (int i = 0; i < mPagedGroupIndices.length; i++) {
+            if (inserted ? mPagedGroupIndices[i] >= index : mPagedGroupIndices[i] > index) {
+                mPagedGroupIndices[i] += delta;
+            }
+        }
+    }
+
+    private int getPosition(Preference preference) {
+        ensurePositions();
+        final Integer position = mPositions.get(preference);
+        return position != null ? position : RecyclerView.NO_POSITION;
+    }
+
+    private int getInternalPosition(Preference preference) {
+        ensureInternalPositions();
+        final Integer position = mInternalPositions.get(preference);
+        return position != null ? position : RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * Returns the adapter position of a preference, or of an item of a paged group.
+     */
+    private int getAdapterPosition(Preference preference) {
+        final PreferenceGroup parent = preference.getParent();
+        if (parent instanceof PagedPreferenceGroup) {
+            final int itemPosition = ((PagedPreferenceGroup) parent).getItemPosition(preference);
+            if (itemPosition < 0) {
+                return RecyclerView.NO_POSITION;
+            }
+            final int groupPosition = getAdapterPosition(parent);
+            return groupPosition != RecyclerView.NO_POSITION
+                    ? groupPosition + 1 + itemPosition : RecyclerView.NO_POSITION;
+        }
+        final int index = getPosition(preference);
+        return index != RecyclerView.NO_POSITION ? toAdapterPosition(index) : index;
+    }
+
+    /**
+     * Returns the adapter position of the preference at the given index of
+     * {@link #mPreferenceList}, after the items of the paged groups before it.
+     */
+    private int toAdapterPosition(int index) {
+        ensurePositions();
+        int position = index;
+        for (int i = 0; i < mPagedGroupIndices.length && mPagedGroupIndices[i] < index; i++) {
+            position += mPagedGroupItemCounts[i];
+        }
+        return position;
+    }
+
+    /**
+     * Returns the preference at an adapter position, or the item of a paged group there, which is
+     * bound to a preference if {@code obtain} is true.
+     */
+    private Preference getItem(int position, boolean obtain) {
+        ensurePositions();
+        int offset = 0;
+        for (int i = 0; i < mPagedGroupIndices.length; i++) {
+            final int groupPosition = mPagedGroupIndices[i] + offset;
+            if (position <= groupPosition) {
+                break;
+            }
+            final int itemPosition = position - groupPosition - 1;
+            if (itemPosition < mPagedGroupItemCounts[i]) {
+                final PagedPreferenceGroup group = mPagedGroups.get(i);
+                return obtain ? group.obtainItem(itemPosition) : group.peekItem(itemPosition);
+            }
+            offset += mPagedGroupItemCounts[i];
+        }
+        return mPreferenceList.get(position - offset);
+    }
+
+    private void setListener(Preference preference,
+                             Preference.OnPreferenceChangeInternalListener listener) {
+        preference.setOnPreferenceChangeInternalListener(listener);
+        if (preference instanceof PagedPreferenceGroup) {
+            ((PagedPreferenceGroup) preference).setItemListener(listener);
+        }
+    }
+
+    /**
+     * Returns the position in {@link #mPreferenceList} at which the preference at the given
+     * position of {@link #mPreferenceListInternal} is, or would be, shown.
+     */
+    private int getVisiblePosition(int internalPosition) {
+        for (int i = internalPosition - 1; i >= 0; i--) {
+            final Preference preceding = mPreferenceListInternal.get(i);
+            if (preceding.isVisible()) {
+                return getPosition(preceding) + 1;
+            }
+        }
+        return 0;
+    }
+
     private void flattenPreferenceGroup(List<Preference> preferences, PreferenceGroup group) {
+        final int start = preferences.size();
         group.sortPreferences();
 
         final int groupSize = group.getPreferenceCount();
@@ -203,47 +754,47 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
 
             preferences.add(preference);
 
-            addPreferenceClassName(preference);
+            getViewType(preference);
 
-            if (preference instanceof PreferenceGroup) {
+            if (preference instanceof PagedPreferenceGroup) {
+                // The items are shown as they are bound, not flattened
+                mHasPagedGroups = true;
+                mPagedGroupCount++;
+            } else if (preference instanceof PreferenceGroup) {
                 final PreferenceGroup preferenceAsGroup = (PreferenceGroup) preference;
                 if (preferenceAsGroup.isOnSameScreenAsChildren()) {
                     flattenPreferenceGroup(preferences, preferenceAsGroup);
                 }
             }
 
-            preference.setOnPreferenceChangeInternalListener(this);
+            setListener(preference, this);
         }
+
+        mSubtreeSizes.put(group, preferences.size() - start);
     }
 
     /**
-     * Creates a string that includes the preference name, layout id and widget layout id.
-     * If a particular preference type uses 2 different resources, they will be treated as
-     * different view types.
+     * Returns the number of descendants of a group in the flattened list, or -1 if the group is
+     * not flattened into this adapter.
      */
-    private PreferenceLayout createPreferenceLayout(Preference preference, PreferenceLayout in) {
-        PreferenceLayout pl = in != null ? in : new PreferenceLayout();
-        pl.name = preference.getClass().getName();
-        pl.resId = preference.getLayoutResource();
-        pl.widgetResId = preference.getWidgetLayoutResource();
-        return pl;
+    int getSubtreeSize(PreferenceGroup group) {
+        final Integer size = mSubtreeSizes.get(group);
+        return size != null ? size : -1;
     }
 
-    private void addPreferenceClassName(Preference preference) {
-        final PreferenceLayout pl = createPreferenceLayout(preference, null);
-        if (!mPreferenceLayouts.contains(pl)) {
-            mPreferenceLayouts.add(pl);
-        }
+    private int getViewType(Preference preference) {
+        return mViewTypes.getViewType(preference);
     }
 
     @Override
     public int getItemCount() {
-        return mPreferenceList.size();
+        ensurePositions();
+        return mPreferenceList.size() + mPagedItemCount;
     }
 
     public Preference getItem(int position) {
         if (position < 0 || position >= getItemCount()) return null;
-        return mPreferenceList.get(position);
+        return getItem(position, true);
     }
 
     @Override
@@ -251,82 +802,202 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
         if (!hasStableIds()) {
             return RecyclerView.NO_ID;
         }
-        return this.getItem(position).getId();
+        final Preference preference = this.getItem(position);
+        final PreferenceGroup parent = preference.getParent();
+        if (parent instanceof PagedPreferenceGroup) {
+            // Preferences move between items, identify the item instead, apart from the IDs
+            // generated for preferences, which are not negative
+            final long itemPosition = ((PagedPreferenceGroup) parent).getItemPosition(preference);
+            return ~((parent.getId() + 1) << 32 | itemPosition);
+        }
+        return preference.getId();
     }
 
     @Override
     public void onPreferenceChange(Preference preference) {
-        final int index = mPreferenceList.indexOf(preference);
-        // If we don't find the preference, we don't need to notify anyone
-        if (index != -1) {
-            // Send the pref object as a placeholder to ensure the view holder is recycled in place
-            notifyItemChanged(index, preference);
+        mChangeNotificationCount++;
+        // Positions are resolved when the frame is drawn, so they follow any hierarchy changes
+        // in between
+        if (mChangedPreferences.add(preference) && mChangedPreferences.size() == 1
+                && mAttachedCount > 0) {
+            Choreographer.getInstance().postFrameCallback(mChangeFrameCallback);
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        if (mAttachedCount++ == 0 && !mChangedPreferences.isEmpty()) {
+            // Changes made while detached
+            Choreographer.getInstance().postFrameCallback(mChangeFrameCallback);
         }
     }
 
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        if (--mAttachedCount == 0) {
+            // Kept until the adapter is attached again
+            Choreographer.getInstance().removeFrameCallback(mChangeFrameCallback);
+        }
+    }
+
+    private void dispatchChangedPreferences() {
+        final int[] positions = new int[mChangedPreferences.size()];
+        int count = 0;
+        for (final Preference preference : mChangedPreferences) {
+            final int index = getAdapterPosition(preference);
+            // If we don't find the preference, we don't need to notify anyone
+            if (index != RecyclerView.NO_POSITION) {
+                positions[count++] = index;
+            }
+        }
+        mChangedPreferences.clear();
+        Arrays.sort(positions, 0, count);
+
+        int i = 0;
+        while (i < count) {
+            final int start = positions[i];
+            int end = start + 1;
+            while (++i < count && positions[i] == end) {
+                end++;
+            }
+            mChangeDispatchCount++;
+            // Send a placeholder payload to ensure the view holders are recycled in place
+            notifyItemRangeChanged(start, end - start, PAYLOAD_CHANGED);
+        }
+    }
+
+    /**
+     * Returns how many times preferences of this adapter reported a change. Together with
+     * {@link #getChangeDispatchCount()} this tells how well changes are coalesced.
+     */
+    public int getChangeNotificationCount() {
+        return mChangeNotificationCount;
+    }
+
+    /**
+     * Returns how many change events were dispatched to observers, after merging the changes of
+     * each frame into contiguous ranges.
+     */
+    public int getChangeDispatchCount() {
+        return mChangeDispatchCount;
+    }
+
     @Override
     public void onPreferenceHierarchyChange(Preference preference) {
+        final PreferenceGroup group = preference instanceof PreferenceGroup
+                ? (PreferenceGroup) preference : preference.getParent();
+        if (group == null) {
+            // Not in a group any more, the group it was removed from has been marked already
+            return;
+        }
+        if (group instanceof PagedPreferenceGroup) {
+            // Items are not flattened, but their number has to be seen right away
+            invalidatePositions();
+            notifyDataSetChanged();
+            return;
+        }
+        if (!mDirtyGroups.contains(group)) {
+            mDirtyGroups.add(group);
+        }
         mHandler.removeCallbacks(mSyncRunnable);
         mHandler.post(mSyncRunnable);
     }
 
     @Override
     public void onPreferenceVisibilityChange(Preference preference) {
-        if (!mPreferenceListInternal.contains(preference)) {
+        final int internalPosition = getInternalPosition(preference);
+        if (internalPosition == RecyclerView.NO_POSITION) {
+            return;
+        }
+        if (mDiffPending) {
+            // The visible list is still the one from before the running diff, diff again
+            syncVisiblePreferences();
             return;
         }
         if (preference.isVisible()) {
-            // The preference has become visible, we need to add it in the correct location.
+            // The preference has become visible, we need to add it in the correct location,
+            // just after the previous visible entry.
+            final int insertionIndex = getVisiblePosition(internalPosition);
+            mPreferenceList.add(insertionIndex, preference);
+            shiftPositions(preference, insertionIndex, true);
 
-            // Index (inferred) in mPreferenceList of the item preceding the newly visible pref
-            int previousVisibleIndex = -1;
-            for (final Preference pref : mPreferenceListInternal) {
-                if (preference.equals(pref)) {
-                    break;
-                }
-                if (pref.isVisible()) {
-                    previousVisibleIndex++;
-                }
+            if (mHasPagedGroups) {
+                notifyDataSetChanged();
+            } else {
+                notifyItemInserted(insertionIndex);
             }
-            // Insert this preference into the active list just after the previous visible entry
-            mPreferenceList.add(previousVisibleIndex + 1, preference);
-
-            notifyItemInserted(previousVisibleIndex + 1);
         } else {
             // The preference has become invisible. Find it in the list and remove it.
-
-            int removalIndex;
-            final int listSize = mPreferenceList.size();
-            for (removalIndex = 0; removalIndex < listSize; removalIndex++) {
-                if (preference.equals(mPreferenceList.get(removalIndex))) {
-                    break;
-                }
+            final int removalIndex = getPosition(preference);
+            if (removalIndex == RecyclerView.NO_POSITION) {
+                return;
             }
             mPreferenceList.remove(removalIndex);
-            notifyItemRemoved(removalIndex);
+            shiftPositions(preference, removalIndex, false);
+
+            if (mHasPagedGroups) {
+                notifyDataSetChanged();
+            } else {
+                notifyItemRemoved(removalIndex);
+            }
         }
     }
 
     @Override
     public int getItemViewType(int position) {
-        final Preference preference = this.getItem(position);
-
-        mTempPreferenceLayout = createPreferenceLayout(preference, mTempPreferenceLayout);
+        return getViewType(this.getItem(position));
+    }
 
-        int viewType = mPreferenceLayouts.indexOf(mTempPreferenceLayout);
-        if (viewType != -1) {
-            return viewType;
-        } else {
-            viewType = mPreferenceLayouts.size();
-            mPreferenceLayouts.add(new PreferenceLayout(mTempPreferenceLayout));
-            return viewType;
+    /**
+     * Returns how many rows of each view type the first {@code maxRows} visible preferences need.
+     */
+    SparseIntArray getViewTypeCounts(int maxRows) {
+        final SparseIntArray counts = new SparseIntArray();
+        final int size = Math.min(maxRows, getItemCount());
+        for (int i = 0; i < size; i++) {
+            final int viewType = getItemViewType(i);
+            counts.put(viewType, counts.get(viewType) + 1);
         }
+        return counts;
+    }
+
+    /**
+     * Sets where {@link #onCreateViewHolder} takes rows inflated in the background from.
+     */
+    void setPreinflater(PreferenceViewPreinflater preinflater) {
+        mPreinflater = preinflater;
+    }
+
+    /**
+     * Returns whether the rows of this adapter may be inflated in the background, when
+     * {@link PreferenceFragment#setRowPreinflationExecutor(Executor)} is used. Rows inflated in
+     * the background are only handed out by the implementation of {@link #onCreateViewHolder} of
+     * this class, so a subclass that creates its view holders itself should return false.
+     *
+     * @return Whether rows may be inflated in the background, true by default.
+     */
+    protected boolean canPreinflateRows() {
+        return true;
     }
 
     @Override
     public PreferenceViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-        final PreferenceLayout pl = mPreferenceLayouts.get(viewType);
-        final LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+        if (mPreinflater != null) {
+            final PreferenceViewHolder holder = mPreinflater.poll(viewType);
+            if (holder != null) {
+                return holder;
+            }
+        }
+        return inflateViewHolder(LayoutInflater.from(parent.getContext()), parent, viewType);
+    }
+
+    /**
+     * Inflates the row of a view type. Safe to call on any thread with an inflater of its own.
+     */
+    static PreferenceViewHolder inflateViewHolder(LayoutInflater inflater, ViewGroup parent,
+                                                  int viewType) {
+        final PreferenceViewTypes.PreferenceLayout pl =
+                PreferenceViewTypes.getInstance().getLayout(viewType);
 
         final View view = inflater.inflate(pl.resId, parent, false);
 
@@ -345,24 +1016,70 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
     @Override
     public void onBindViewHolder(PreferenceViewHolder holder, int position) {
         final Preference preference = getItem(position);
+        if (mHasPagedGroups || !mBoundItems.isEmpty()) {
+            unbindItem(holder);
+            if (preference.getParent() instanceof PagedPreferenceGroup) {
+                ((PagedPreferenceGroup) preference.getParent()).onItemBound(preference, holder);
+                mBoundItems.put(holder, preference);
+            }
+        }
         preference.onBindViewHolder(holder);
     }
 
     @Override
     public void onViewRecycled(PreferenceViewHolder holder) {
-        final Preference preference = getItem(holder.getAdapterPosition());
+        // The views may be bound to the same preference again after having been changed by
+        // another one in between, so nothing applied before can be skipped then
+        holder.mBoundPreference = null;
+        holder.mBoundIcon = null;
+        final Preference item = unbindItem(holder);
+        if (item != null) {
+            item.onViewRecycled(holder);
+            return;
+        }
+        final int position = holder.getAdapterPosition();
+        final Preference preference = position >= 0 && position < getItemCount()
+                ? getItem(position, false) : null;
         if (preference != null) {
             preference.onViewRecycled(holder);
         }
     }
 
+    /**
+     * Lets the paged group of the item the view holder is bound to know that it is not shown by
+     * the view holder any more.
+     *
+     * @return The item, or null if the view holder is not bound to an item of a paged group.
+     */
+    private Preference unbindItem(PreferenceViewHolder holder) {
+        final Preference item = mBoundItems.remove(holder);
+        if (item != null && item.getParent() instanceof PagedPreferenceGroup) {
+            ((PagedPreferenceGroup) item.getParent()).onItemUnbound(item, holder);
+        }
+        return item;
+    }
+
     @Override
     public int getPreferenceAdapterPosition(String key) {
-        final int size = mPreferenceList.size();
-        for (int i = 0; i < size; i++) {
-            final Preference candidate = mPreferenceList.get(i);
-            if (TextUtils.equals(key, candidate.getKey())) {
-                return i;
+        final boolean rebuilt = !mPositionsValid;
+        ensurePositions();
+        Integer position = mKeyPositions.get(key);
+        if (!rebuilt && (position == null
+                || !TextUtils.equals(key, mPreferenceList.get(position).getKey()))) {
+            // Keys may have been set or changed since the index was built
+            mPositionsValid = false;
+            ensurePositions();
+            position = mKeyPositions.get(key);
+        }
+        if (position != null) {
+            return toAdapterPosition(position);
+        }
+        if (key != null) {
+            for (int i = 0; i < mPagedGroups.size(); i++) {
+                final int itemPosition = mPagedGroups.get(i).getItemPosition(key);
+                if (itemPosition >= 0) {
+                    return toAdapterPosition(mPagedGroupIndices[i]) + 1 + itemPosition;
+                }
             }
         }
         return RecyclerView.NO_POSITION;
@@ -370,13 +1087,72 @@ public class PreferenceGroupAdapter extends RecyclerView.Adapter<PreferenceViewH
 
     @Override
     public int getPreferenceAdapterPosition(Preference preference) {
-        final int size = mPreferenceList.size();
-        for (int i = 0; i < size; i++) {
-            final Preference candidate = mPreferenceList.get(i);
-            if (candidate != null && candidate.equals(preference)) {
-                return i;
-            }
+        return getAdapterPosition(preference);
+    }
+
+    private static class PreferenceDiffCallback extends DiffUtil.Callback {
+        private final List<Preference> mOldList;
+        private final List<Preference> mNewList;
+        private final PreferenceManager.PreferenceComparisonCallback mComparisonCallback;
+
+        PreferenceDiffCallback(List<Preference> oldList, List<Preference> newList,
+                               PreferenceManager.PreferenceComparisonCallback comparisonCallback) {
+            mOldList = oldList;
+            mNewList = newList;
+            mComparisonCallback = comparisonCallback;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldList.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewList.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mComparisonCallback.arePreferenceItemsTheSame(
+                    mOldList.get(oldItemPosition), mNewList.get(newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mComparisonCallback.arePreferenceContentsTheSame(
+                    mOldList.get(oldItemPosition), mNewList.get(newItemPosition));
+        }
+    }
+
+    /**
+     * Dispatches updates of a sub-range of the visible list to this adapter.
+     */
+    private class OffsetListUpdateCallback implements ListUpdateCallback {
+        private final int mOffset;
+
+        OffsetListUpdateCallback(int offset) {
+            mOffset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position + mOffset, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position + mOffset, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition + mOffset, toPosition + mOffset);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            notifyItemRangeChanged(position + mOffset, count, payload);
         }
-        return RecyclerView.NO_POSITION;
     }
 }
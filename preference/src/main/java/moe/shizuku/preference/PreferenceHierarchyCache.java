@@ -0,0 +1,783 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.SparseIntArray;
+import android.util.TypedValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
+import androidx.core.os.ConfigurationCompat;
+
+/**
+ * Stores a compact binary description of preference hierarchies inflated from XML, keyed by
+ * resource ID and app version, so that later inflations of the same resource can rebuild the
+ * hierarchy without parsing XML.
+ * <p>
+ * Descriptions are also keyed by the parts of the configuration the resource has variants for,
+ * so that each variant has a file of its own. Files of other app versions are deleted the first
+ * time the cache is used in a process.
+ * <p>
+ * Only hierarchies whose elements use nothing but the basic {@link Preference} attributes can be
+ * described. For other resources a marker is stored, so they are not recorded again.
+ */
+final class PreferenceHierarchyCache {
+
+    private static final String TAG = "PreferenceHierarchy";
+
+    private static final String DIRECTORY = "preference_hierarchy";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x50484331;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FIELD_KEY = 1;
+    private static final int FIELD_TITLE = 1 << 1;
+    private static final int FIELD_TITLE_RES = 1 << 2;
+    private static final int FIELD_SUMMARY = 1 << 3;
+    private static final int FIELD_SUMMARY_RES = 1 << 4;
+    private static final int FIELD_ORDER = 1 << 5;
+    private static final int FIELD_FRAGMENT = 1 << 6;
+    private static final int FIELD_ICON = 1 << 7;
+    private static final int FIELD_ENABLED = 1 << 8;
+    private static final int FIELD_SELECTABLE = 1 << 9;
+    private static final int FIELD_PERSISTENT = 1 << 10;
+    private static final int FIELD_DEPENDENCY = 1 << 11;
+    private static final int FIELD_DEFAULT_VALUE = 1 << 12;
+    private static final int FIELD_SHOULD_DISABLE_VIEW = 1 << 13;
+    private static final int FIELD_SINGLE_LINE_TITLE = 1 << 14;
+    private static final int FIELD_ICON_SPACE_RESERVED = 1 << 15;
+    private static final int FIELD_INTENT = 1 << 16;
+
+    private static final byte VALUE_BOOLEAN = 0;
+    private static final byte VALUE_INT = 1;
+    private static final byte VALUE_LONG = 2;
+    private static final byte VALUE_FLOAT = 3;
+    private static final byte VALUE_STRING = 4;
+    private static final byte VALUE_STRING_SET = 5;
+
+    /**
+     * Attributes that can be described, mapped to their field.
+     */
+    private static final SparseIntArray ATTRIBUTES = new SparseIntArray();
+
+    static {
+        putAttribute(R.attr.key, android.R.attr.key, FIELD_KEY);
+        putAttribute(R.attr.title, android.R.attr.title, FIELD_TITLE);
+        putAttribute(R.attr.summary, android.R.attr.summary, FIELD_SUMMARY);
+        putAttribute(R.attr.order, android.R.attr.order, FIELD_ORDER);
+        putAttribute(R.attr.fragment, android.R.attr.fragment, FIELD_FRAGMENT);
+        putAttribute(R.attr.icon, android.R.attr.icon, FIELD_ICON);
+        putAttribute(R.attr.enabled, android.R.attr.enabled, FIELD_ENABLED);
+        putAttribute(R.attr.selectable, android.R.attr.selectable, FIELD_SELECTABLE);
+        putAttribute(R.attr.persistent, android.R.attr.persistent, FIELD_PERSISTENT);
+        putAttribute(R.attr.dependency, android.R.attr.dependency, FIELD_DEPENDENCY);
+        putAttribute(R.attr.defaultValue, android.R.attr.defaultValue, FIELD_DEFAULT_VALUE);
+        putAttribute(R.attr.shouldDisableView, android.R.attr.shouldDisableView,
+                FIELD_SHOULD_DISABLE_VIEW);
+        putAttribute(R.attr.singleLineTitle, android.R.attr.singleLineTitle,
+                FIELD_SINGLE_LINE_TITLE);
+        putAttribute(R.attr.iconSpaceReserved, android.R.attr.iconSpaceReserved,
+                FIELD_ICON_SPACE_RESERVED);
+    }
+
+    private static void putAttribute(int attr, int androidAttr, int field) {
+        ATTRIBUTES.put(attr, field);
+        ATTRIBUTES.put(androidAttr, field);
+    }
+
+    /**
+     * Returned by {@link #read(int)} for resources that are not worth recording.
+     */
+    static final Node UNCACHEABLE = new Node();
+
+    private static volatile long sVersionCode = -1;
+    private static volatile long sLastUpdateTime;
+
+    private final Context mContext;
+    private final Executor mExecutor;
+
+    PreferenceHierarchyCache(Context context) {
+        this(context, AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    /**
+     * @param executor The executor files are written and pruned on, one task at a time.
+     */
+    PreferenceHierarchyCache(Context context, Executor executor) {
+        mContext = context;
+        mExecutor = executor;
+    }
+
+    /**
+     * Describes an element of a preference hierarchy.
+     */
+    static final class Node {
+
+        String className;
+        int fields;
+
+        String key;
+        String title;
+        int titleResId;
+        String summary;
+        int summaryResId;
+        int order;
+        String fragment;
+        int iconResId;
+        boolean enabled;
+        boolean selectable;
+        boolean persistent;
+        String dependency;
+        Object defaultValue;
+        boolean shouldDisableView;
+        boolean singleLineTitle;
+        boolean iconSpaceReserved;
+        String intent;
+        Intent parsedIntent;
+
+        final List<Node> children = new ArrayList<>();
+    }
+
+    /**
+     * Describes a preference that was just constructed from the given attributes.
+     *
+     * @return The description, or null if the preference uses attributes that cannot be
+     * described.
+     */
+    @Nullable
+    static Node record(Preference preference, AttributeSet attrs) {
+        final Node node = new Node();
+        node.className = preference.getClass().getName();
+
+        for (int i = 0, count = attrs.getAttributeCount(); i < count; i++) {
+            int field = ATTRIBUTES.get(attrs.getAttributeNameResource(i));
+            if (field == 0) {
+                return null;
+            }
+            final String value = attrs.getAttributeValue(i);
+            if (value != null && value.startsWith("?")) {
+                // Depends on the theme
+                return null;
+            }
+
+            switch (field) {
+                case FIELD_KEY:
+                    node.key = preference.getKey();
+                    break;
+                case FIELD_TITLE:
+                    node.titleResId = attrs.getAttributeResourceValue(i, 0);
+                    if (node.titleResId != 0) {
+                        field = FIELD_TITLE_RES;
+                    } else {
+                        node.title = value;
+                    }
+                    break;
+                case FIELD_SUMMARY:
+                    node.summaryResId = attrs.getAttributeResourceValue(i, 0);
+                    if (node.summaryResId != 0) {
+                        field = FIELD_SUMMARY_RES;
+                    } else {
+                        node.summary = value;
+                    }
+                    break;
+                case FIELD_ORDER:
+                    node.order = preference.getOrder();
+                    break;
+                case FIELD_FRAGMENT:
+                    node.fragment = preference.getFragment();
+                    break;
+                case FIELD_ICON:
+                    node.iconResId = attrs.getAttributeResourceValue(i, 0);
+                    if (node.iconResId == 0) {
+                        return null;
+                    }
+                    break;
+                case FIELD_ENABLED:
+                    node.enabled = preference.isEnabled();
+                    break;
+                case FIELD_SELECTABLE:
+                    node.selectable = preference.isSelectable();
+                    break;
+                case FIELD_PERSISTENT:
+                    node.persistent = preference.isPersistent();
+                    break;
+                case FIELD_DEPENDENCY:
+                    node.dependency = preference.getDependency();
+                    break;
+                case FIELD_DEFAULT_VALUE:
+                    node.defaultValue = preference.getDefaultValue();
+                    if (!isSupportedValue(node.defaultValue)) {
+                        return null;
+                    }
+                    break;
+                case FIELD_SHOULD_DISABLE_VIEW:
+                    node.shouldDisableView = preference.getShouldDisableView();
+                    break;
+                case FIELD_SINGLE_LINE_TITLE:
+                    node.singleLineTitle = preference.isSingleLineTitle();
+                    break;
+                case FIELD_ICON_SPACE_RESERVED:
+                    node.iconSpaceReserved = preference.isIconSpaceReserved();
+                    break;
+            }
+            node.fields |= field;
+        }
+        return node;
+    }
+
+    /**
+     * Records the intent of the preference described by the given node.
+     */
+    static void recordIntent(Node node, Intent intent) {
+        node.intent = intent.toUri(Intent.URI_INTENT_SCHEME);
+        node.fields |= FIELD_INTENT;
+    }
+
+    private static boolean isSupportedValue(Object value) {
+        if (value instanceof Set) {
+            for (final Object item : (Set<?>) value) {
+                if (!(item instanceof String)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return value instanceof Boolean || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof String;
+    }
+
+    /**
+     * Applies the described attributes to a preference created without attributes. Like the
+     * inflation constructors, this must happen before the preference is added to a group.
+     */
+    static void apply(Node node, Preference preference) {
+        final Context context = preference.getContext();
+        final int fields = node.fields;
+        if ((fields & FIELD_KEY) != 0) {
+            preference.setKey(node.key);
+        }
+        if ((fields & FIELD_TITLE_RES) != 0) {
+            preference.setTitle(context.getText(node.titleResId));
+        } else if ((fields & FIELD_TITLE) != 0) {
+            preference.setTitle(node.title);
+        }
+        if ((fields & FIELD_SUMMARY_RES) != 0) {
+            preference.setSummary(context.getText(node.summaryResId));
+        } else if ((fields & FIELD_SUMMARY) != 0) {
+            preference.setSummary(node.summary);
+        }
+        if ((fields & FIELD_ORDER) != 0) {
+            preference.setOrder(node.order);
+        }
+        if ((fields & FIELD_FRAGMENT) != 0) {
+            preference.setFragment(node.fragment);
+        }
+        if ((fields & FIELD_ICON) != 0) {
+            preference.setIconResId(node.iconResId);
+        }
+        if ((fields & FIELD_ENABLED) != 0) {
+            preference.setEnabled(node.enabled);
+        }
+        if ((fields & FIELD_SELECTABLE) != 0) {
+            preference.setSelectable(node.selectable);
+        }
+        if ((fields & FIELD_PERSISTENT) != 0) {
+            preference.setPersistent(node.persistent);
+        }
+        if ((fields & FIELD_DEPENDENCY) != 0) {
+            preference.setDependencyKey(node.dependency);
+        }
+        if ((fields & FIELD_DEFAULT_VALUE) != 0) {
+            preference.setDefaultValue(node.defaultValue);
+        }
+        if ((fields & FIELD_SHOULD_DISABLE_VIEW) != 0) {
+            preference.setShouldDisableView(node.shouldDisableView);
+        }
+        if ((fields & FIELD_SINGLE_LINE_TITLE) != 0) {
+            preference.setSingleLineTitle(node.singleLineTitle);
+        }
+        if ((fields & FIELD_ICON_SPACE_RESERVED) != 0) {
+            preference.setIconSpaceReserved(node.iconSpaceReserved);
+        }
+        if ((fields & FIELD_INTENT) != 0) {
+            preference.setIntent(node.parsedIntent);
+        }
+    }
+
+    /**
+     * Reads the description of the hierarchy in the given resource.
+     *
+     * @return The root of the hierarchy, {@link #UNCACHEABLE} if the resource is known to contain
+     * attributes that cannot be described, or null if it is not cached.
+     */
+    @Nullable
+    Node read(int resId) {
+        final DataInputStream in = open(resId);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return in.readBoolean() ? readNode(in) : UNCACHEABLE;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cached hierarchy of resource " + resId, e);
+            delete(resId);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores the description of the hierarchy in the given resource in the background.
+     *
+     * @param root The root of the hierarchy, or null to mark the resource as uncacheable.
+     */
+    void write(final int resId, @Nullable final Node root) {
+        loadVersion();
+        // The configuration may change before the file is written
+        final File file = getFile(resId);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+                DataOutputStream out = null;
+                try {
+                    final File directory = file.getParentFile();
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        return;
+                    }
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(tempFile)));
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeLong(sVersionCode);
+                    out.writeLong(sLastUpdateTime);
+                    out.writeBoolean(root != null);
+                    if (root != null) {
+                        writeNode(out, root);
+                    }
+                    out.close();
+                    out = null;
+                    if (!tempFile.renameTo(file)) {
+                        tempFile.delete();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to cache hierarchy of resource " + resId, e);
+                    closeQuietly(out);
+                    tempFile.delete();
+                }
+            }
+        });
+    }
+
+    void delete(int resId) {
+        getFile(resId).delete();
+    }
+
+    private File getDirectory() {
+        return new File(mContext.getCacheDir(), DIRECTORY);
+    }
+
+    private File getFile(int resId) {
+        return new File(getDirectory(),
+                Integer.toHexString(resId) + "_" + Integer.toHexString(getConfigurationKey(resId)));
+    }
+
+    /**
+     * Hashes the parts of the current configuration that select the variant of the given
+     * resource, so that changes the resource has no variants for, such as a change of font scale
+     * or of the size of a window in multi-window mode, keep using the same file.
+     */
+    private int getConfigurationKey(int resId) {
+        final Resources resources = mContext.getResources();
+        final Configuration config = resources.getConfiguration();
+        int changingConfigurations = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final TypedValue value = new TypedValue();
+            try {
+                resources.getValue(resId, value, true);
+                changingConfigurations = value.changingConfigurations;
+            } catch (Resources.NotFoundException e) {
+                // Keyed by the whole configuration
+            }
+        }
+
+        int key = 0;
+        if ((changingConfigurations & ActivityInfo.CONFIG_MCC) != 0) {
+            key = 31 * key + config.mcc;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_MNC) != 0) {
+            key = 31 * key + config.mnc;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_LOCALE) != 0) {
+            key = 31 * key + ConfigurationCompat.getLocales(config).toLanguageTags().hashCode();
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_TOUCHSCREEN) != 0) {
+            key = 31 * key + config.touchscreen;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_KEYBOARD) != 0) {
+            key = 31 * key + config.keyboard;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_KEYBOARD_HIDDEN) != 0) {
+            key = 31 * key + config.keyboardHidden;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_NAVIGATION) != 0) {
+            key = 31 * key + config.navigation;
+            key = 31 * key + config.navigationHidden;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_ORIENTATION) != 0) {
+            key = 31 * key + config.orientation;
+        }
+        // Also holds the layout direction
+        if ((changingConfigurations & (ActivityInfo.CONFIG_SCREEN_LAYOUT
+                | ActivityInfo.CONFIG_LAYOUT_DIRECTION)) != 0) {
+            key = 31 * key + config.screenLayout;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_UI_MODE) != 0) {
+            key = 31 * key + config.uiMode;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_SCREEN_SIZE) != 0) {
+            key = 31 * key + config.screenWidthDp;
+            key = 31 * key + config.screenHeightDp;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_SMALLEST_SCREEN_SIZE) != 0) {
+            key = 31 * key + config.smallestScreenWidthDp;
+        }
+        if ((changingConfigurations & ActivityInfo.CONFIG_DENSITY) != 0) {
+            key = 31 * key + resources.getDisplayMetrics().densityDpi;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && (changingConfigurations & ActivityInfo.CONFIG_COLOR_MODE) != 0) {
+            key = 31 * key + config.colorMode;
+        }
+        return key;
+    }
+
+    /**
+     * Opens the file of the given resource, positioned after a header that matches the current
+     * app version.
+     */
+    @Nullable
+    private DataInputStream open(int resId) {
+        loadVersion();
+        final File file = getFile(resId);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (isCurrent(in)) {
+                return in;
+            }
+        } catch (IOException e) {
+            // Treated as outdated below
+        }
+        closeQuietly(in);
+        file.delete();
+        return null;
+    }
+
+    /**
+     * Reads the header of a file, and returns whether it matches the current app version.
+     */
+    private static boolean isCurrent(DataInputStream in) throws IOException {
+        return in.readInt() == MAGIC
+                && in.readInt() == FORMAT_VERSION
+                && in.readLong() == sVersionCode
+                && in.readLong() == sLastUpdateTime;
+    }
+
+    private void loadVersion() {
+        if (sVersionCode != -1) {
+            return;
+        }
+        synchronized (PreferenceHierarchyCache.class) {
+            if (sVersionCode != -1) {
+                return;
+            }
+            try {
+                final PackageInfo info = mContext.getPackageManager()
+                        .getPackageInfo(mContext.getPackageName(), 0);
+                sLastUpdateTime = info.lastUpdateTime;
+                sVersionCode = PackageInfoCompat.getLongVersionCode(info);
+            } catch (PackageManager.NameNotFoundException e) {
+                sLastUpdateTime = 0;
+                sVersionCode = 0;
+            }
+        }
+        prune();
+    }
+
+    /**
+     * Deletes the files of other app versions in the background, as files are only checked when
+     * the same resource is inflated in the same configuration again.
+     */
+    private void prune() {
+        final File directory = getDirectory();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = directory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (final File file : files) {
+                    // Writes run on the same executor, so temporary files are left over
+                    if (file.getName().endsWith(TEMP_SUFFIX)) {
+                        file.delete();
+                        continue;
+                    }
+                    DataInputStream in = null;
+                    boolean current = false;
+                    try {
+                        in = new DataInputStream(new BufferedInputStream(
+                                new FileInputStream(file)));
+                        current = isCurrent(in);
+                    } catch (IOException e) {
+                        // Deleted below
+                    } finally {
+                        closeQuietly(in);
+                    }
+                    if (!current) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private static Node readNode(DataInputStream in) throws IOException {
+        final Node node = new Node();
+        node.className = in.readUTF();
+        final int fields = node.fields = in.readInt();
+        if ((fields & FIELD_KEY) != 0) {
+            node.key = in.readUTF();
+        }
+        if ((fields & FIELD_TITLE) != 0) {
+            node.title = in.readUTF();
+        }
+        if ((fields & FIELD_TITLE_RES) != 0) {
+            node.titleResId = in.readInt();
+        }
+        if ((fields & FIELD_SUMMARY) != 0) {
+            node.summary = in.readUTF();
+        }
+        if ((fields & FIELD_SUMMARY_RES) != 0) {
+            node.summaryResId = in.readInt();
+        }
+        if ((fields & FIELD_ORDER) != 0) {
+            node.order = in.readInt();
+        }
+        if ((fields & FIELD_FRAGMENT) != 0) {
+            node.fragment = in.readUTF();
+        }
+        if ((fields & FIELD_ICON) != 0) {
+            node.iconResId = in.readInt();
+        }
+        if ((fields & FIELD_ENABLED) != 0) {
+            node.enabled = in.readBoolean();
+        }
+        if ((fields & FIELD_SELECTABLE) != 0) {
+            node.selectable = in.readBoolean();
+        }
+        if ((fields & FIELD_PERSISTENT) != 0) {
+            node.persistent = in.readBoolean();
+        }
+        if ((fields & FIELD_DEPENDENCY) != 0) {
+            node.dependency = in.readUTF();
+        }
+        if ((fields & FIELD_DEFAULT_VALUE) != 0) {
+            node.defaultValue = readValue(in);
+        }
+        if ((fields & FIELD_SHOULD_DISABLE_VIEW) != 0) {
+            node.shouldDisableView = in.readBoolean();
+        }
+        if ((fields & FIELD_SINGLE_LINE_TITLE) != 0) {
+            node.singleLineTitle = in.readBoolean();
+        }
+        if ((fields & FIELD_ICON_SPACE_RESERVED) != 0) {
+            node.iconSpaceReserved = in.readBoolean();
+        }
+        if ((fields & FIELD_INTENT) != 0) {
+            node.intent = in.readUTF();
+            try {
+                node.parsedIntent = Intent.parseUri(node.intent, Intent.URI_INTENT_SCHEME);
+            } catch (URISyntaxException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        final int childCount = in.readInt();
+        for (int i = 0; i < childCount; i++) {
+            node.children.add(readNode(in));
+        }
+        return node;
+    }
+
+    private static void writeNode(DataOutputStream out, Node node) throws IOException {
+        out.writeUTF(node.className);
+        // Null strings are stored as absent fields
+        int fields = node.fields;
+        if (node.key == null) {
+            fields &= ~FIELD_KEY;
+        }
+        if (node.title == null) {
+            fields &= ~FIELD_TITLE;
+        }
+        if (node.summary == null) {
+            fields &= ~FIELD_SUMMARY;
+        }
+        if (node.fragment == null) {
+            fields &= ~FIELD_FRAGMENT;
+        }
+        if (node.dependency == null) {
+            fields &= ~FIELD_DEPENDENCY;
+        }
+        if (node.defaultValue == null) {
+            fields &= ~FIELD_DEFAULT_VALUE;
+        }
+        out.writeInt(fields);
+        if ((fields & FIELD_KEY) != 0) {
+            out.writeUTF(node.key);
+        }
+        if ((fields & FIELD_TITLE) != 0) {
+            out.writeUTF(node.title);
+        }
+        if ((fields & FIELD_TITLE_RES) != 0) {
+            out.writeInt(node.titleResId);
+        }
+        if ((fields & FIELD_SUMMARY) != 0) {
+            out.writeUTF(node.summary);
+        }
+        if ((fields & FIELD_SUMMARY_RES) != 0) {
+            out.writeInt(node.summaryResId);
+        }
+        if ((fields & FIELD_ORDER) != 0) {
+            out.writeInt(node.order);
+        }
+        if ((fields & FIELD_FRAGMENT) != 0) {
+            out.writeUTF(node.fragment);
+        }
+        if ((fields & FIELD_ICON) != 0) {
+            out.writeInt(node.iconResId);
+        }
+        if ((fields & FIELD_ENABLED) != 0) {
+            out.writeBoolean(node.enabled);
+        }
+        if ((fields & FIELD_SELECTABLE) != 0) {
+            out.writeBoolean(node.selectable);
+        }
+        if ((fields & FIELD_PERSISTENT) != 0) {
+            out.writeBoolean(node.persistent);
+        }
+        if ((fields & FIELD_DEPENDENCY) != 0) {
+            out.writeUTF(node.dependency);
+        }
+        if ((fields & FIELD_DEFAULT_VALUE) != 0) {
+            writeValue(out, node.defaultValue);
+        }
+        if ((fields & FIELD_SHOULD_DISABLE_VIEW) != 0) {
+            out.writeBoolean(node.shouldDisableView);
+        }
+        if ((fields & FIELD_SINGLE_LINE_TITLE) != 0) {
+            out.writeBoolean(node.singleLineTitle);
+        }
+        if ((fields & FIELD_ICON_SPACE_RESERVED) != 0) {
+            out.writeBoolean(node.iconSpaceReserved);
+        }
+        if ((fields & FIELD_INTENT) != 0) {
+            out.writeUTF(node.intent);
+        }
+        out.writeInt(node.children.size());
+        for (final Node child : node.children) {
+            writeNode(out, child);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case VALUE_BOOLEAN:
+                return in.readBoolean();
+            case VALUE_INT:
+                return in.readInt();
+            case VALUE_LONG:
+                return in.readLong();
+            case VALUE_FLOAT:
+                return in.readFloat();
+            case VALUE_STRING:
+                return in.readUTF();
+            case VALUE_STRING_SET:
+                final int size = in.readInt();
+                final Set<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(in.readUTF());
+                }
+                return set;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(VALUE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(VALUE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            out.writeUTF((String) value);
+        } else {
+            final Set<String> set = (Set<String>) value;
+            out.writeByte(VALUE_STRING_SET);
+            out.writeInt(set.size());
+            for (final String item : set) {
+                out.writeUTF(item);
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
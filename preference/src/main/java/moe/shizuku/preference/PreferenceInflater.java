@@ -27,8 +27,17 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -43,7 +52,99 @@ class PreferenceInflater {
     private static final Class<?>[] CONSTRUCTOR_SIGNATURE = new Class[]{
             Context.class, AttributeSet.class};
 
-    private static final HashMap<String, Constructor> CONSTRUCTOR_MAP = new HashMap<>();
+    /**
+     * Lookup results of each class loader. Class loaders are weak keys, so that plugin or other
+     * dynamically created loaders can be collected, and the caches are soft values, as the
+     * constructors they hold reference the loader. Each inflater looks its cache up once, the
+     * caches themselves are concurrent maps which are read without locking.
+     */
+    private static final Map<ClassLoader, SoftReference<ClassCache>> CLASS_CACHE_MAP =
+            new WeakHashMap<>();
+
+    /**
+     * Registered factories, by fully qualified class name.
+     */
+    private static final Map<String, PreferenceFactory> FACTORY_MAP = new ConcurrentHashMap<>();
+
+    static {
+        registerFactory(Preference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new Preference(context, attrs);
+            }
+        });
+        registerFactory(PreferenceCategory.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new PreferenceCategory(context, attrs);
+            }
+        });
+        registerFactory(PreferenceScreen.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new PreferenceScreen(context, attrs);
+            }
+        });
+        registerFactory(CheckBoxPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new CheckBoxPreference(context, attrs);
+            }
+        });
+        registerFactory(SwitchPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new SwitchPreference(context, attrs);
+            }
+        });
+        registerFactory(EditTextPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new EditTextPreference(context, attrs);
+            }
+        });
+        registerFactory(ListPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new ListPreference(context, attrs);
+            }
+        });
+        registerFactory(MultiSelectListPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new MultiSelectListPreference(context, attrs);
+            }
+        });
+        registerFactory(DropDownPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new DropDownPreference(context, attrs);
+            }
+        });
+        registerFactory(SeekBarPreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new SeekBarPreference(context, attrs);
+            }
+        });
+        registerFactory(RingtonePreference.class, new PreferenceFactory() {
+            @NonNull
+            @Override
+            public Preference create(@NonNull Context context, @Nullable AttributeSet attrs) {
+                return new RingtonePreference(context, attrs);
+            }
+        });
+    }
 
     static final String DEFAULT_PACKAGE = BuildConfig.APPLICATION_ID + ".";
 
@@ -51,13 +152,89 @@ class PreferenceInflater {
 
     private final Object[] mConstructorArgs = new Object[2];
 
+    /**
+     * The lookup results of the class loader of {@link #mContext}, kept while this is in use.
+     */
+    private ClassCache mClassCache;
+
     private PreferenceManager mPreferenceManager;
 
     private String[] mDefaultPackages;
 
+    /**
+     * Whether {@link #mRecordedRoot} should describe the hierarchy being inflated from XML.
+     */
+    private boolean mRecording;
+
+    @Nullable
+    private PreferenceHierarchyCache.Node mRecordedRoot;
+
+    /**
+     * Whether the children of nested screens are left out, to be inflated on first navigation.
+     */
+    private boolean mLazyScreens;
+
+    /**
+     * The XML resource being inflated, or 0 when inflating from a parser of unknown origin.
+     */
+    private int mResource;
+
+    /**
+     * Index of each element being inflated among the preference elements of its parent, from the
+     * child of the root element down, so that a nested screen can find its element again.
+     */
+    private final List<Integer> mPath = new ArrayList<>();
+
     private static final String INTENT_TAG_NAME = "intent";
     private static final String EXTRA_TAG_NAME = "extra";
 
+    /**
+     * Registers a factory used instead of reflection to create instances of the given class.
+     *
+     * @see PreferenceManager#registerPreferenceFactory(Class, PreferenceFactory)
+     */
+    static void registerFactory(@NonNull Class<? extends Preference> clazz,
+                                @NonNull PreferenceFactory factory) {
+        final PreferenceFactory previous = FACTORY_MAP.put(clazz.getName(), factory);
+        if (previous == factory) {
+            return;
+        }
+        // Only names resolved to this class before have to be resolved again, other entries are
+        // left alone so that inflations running meanwhile keep their lookups
+        final List<ClassCache> caches = new ArrayList<>();
+        synchronized (CLASS_CACHE_MAP) {
+            for (final SoftReference<ClassCache> reference : CLASS_CACHE_MAP.values()) {
+                final ClassCache cache = reference.get();
+                if (cache != null) {
+                    caches.add(cache);
+                }
+            }
+        }
+        for (final ClassCache cache : caches) {
+            for (final Iterator<Constructor> it = cache.constructors.values().iterator();
+                 it.hasNext(); ) {
+                if (it.next().getDeclaringClass() == clazz) {
+                    it.remove();
+                }
+            }
+            if (previous != null) {
+                cache.factories.values().removeAll(Collections.singleton(previous));
+            }
+        }
+    }
+
+    private static ClassCache getClassCache(ClassLoader classLoader) {
+        synchronized (CLASS_CACHE_MAP) {
+            final SoftReference<ClassCache> reference = CLASS_CACHE_MAP.get(classLoader);
+            ClassCache cache = reference != null ? reference.get() : null;
+            if (cache == null) {
+                cache = new ClassCache();
+                CLASS_CACHE_MAP.put(classLoader, new SoftReference<>(cache));
+            }
+            return cache;
+        }
+    }
+
     public PreferenceInflater(Context context, PreferenceManager preferenceManager) {
         mContext = context;
         init(preferenceManager);
@@ -89,6 +266,16 @@ class PreferenceInflater {
         return mDefaultPackages;
     }
 
+    /**
+     * Sets whether the children of nested {@link PreferenceScreen}s are left out of the inflated
+     * hierarchy and inflated when the screen is navigated to.
+     *
+     * @see PreferenceManager#setLazyScreensEnabled(boolean)
+     */
+    public void setLazyScreens(boolean lazyScreens) {
+        mLazyScreens = lazyScreens;
+    }
+
     /**
      * Return the context we are running in, for access to resources, class
      * loader, etc.
@@ -110,13 +297,190 @@ class PreferenceInflater {
      */
     public Preference inflate(int resource, @Nullable PreferenceGroup root) {
         XmlResourceParser parser = getContext().getResources().getXml(resource);
+        synchronized (mConstructorArgs) {
+            mResource = resource;
+            try {
+                return inflate(parser, root);
+            } finally {
+                mResource = 0;
+                parser.close();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #inflate(int, PreferenceGroup)}, but rebuilds the hierarchy from the given
+     * cache if it has a description of the resource, or else records one while inflating the XML.
+     */
+    public Preference inflate(int resource, @Nullable PreferenceGroup root,
+                              PreferenceHierarchyCache cache) {
+        final PreferenceHierarchyCache.Node node = cache.read(resource);
+        if (node == PreferenceHierarchyCache.UNCACHEABLE) {
+            return inflate(resource, root);
+        } else if (node != null) {
+            synchronized (mConstructorArgs) {
+                mConstructorArgs[0] = mContext;
+                final Preference result = onMergeRoots(root,
+                        (PreferenceGroup) createItemFromNode(node));
+                inflateChildren(node, result);
+                return result;
+            }
+        }
+
+        synchronized (mConstructorArgs) {
+            mRecording = true;
+            try {
+                final Preference result = inflate(resource, root);
+                cache.write(resource, mRecording ? mRecordedRoot : null);
+                return result;
+            } finally {
+                mRecording = false;
+                mRecordedRoot = null;
+            }
+        }
+    }
+
+    private Preference createItemFromNode(PreferenceHierarchyCache.Node node) {
+        final Preference item;
         try {
-            return inflate(parser, root);
-        } finally {
-            parser.close();
+            item = createItem(node.className, null, null);
+        } catch (InflateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InflateException("Error inflating cached class " + node.className, e);
+        }
+        PreferenceHierarchyCache.apply(node, item);
+        return item;
+    }
+
+    private void inflateChildren(PreferenceHierarchyCache.Node node, Preference parent) {
+        for (final PreferenceHierarchyCache.Node childNode : node.children) {
+            final Preference item = createItemFromNode(childNode);
+            ((PreferenceGroup) parent).addItemFromInflater(item);
+            if (mLazyScreens && item instanceof PreferenceScreen && !childNode.children.isEmpty()) {
+                final Set<String> keys = new HashSet<>();
+                collectKeys(childNode, keys);
+                ((PreferenceScreen) item).setPendingChildren(
+                        new PreferenceScreen.PendingChildren() {
+                            @Override
+                            public void inflate(PreferenceScreen preferenceScreen) {
+                                synchronized (mConstructorArgs) {
+                                    mConstructorArgs[0] = mContext;
+                                    inflateChildren(childNode, preferenceScreen);
+                                }
+                            }
+                        }, keys);
+            } else {
+                inflateChildren(childNode, item);
+            }
         }
     }
 
+    /**
+     * Adds the keys of the descendants of a cached node to the given set.
+     */
+    private static void collectKeys(PreferenceHierarchyCache.Node node, Set<String> keys) {
+        for (PreferenceHierarchyCache.Node childNode : node.children) {
+            if (childNode.key != null) {
+                keys.add(childNode.key);
+            }
+            collectKeys(childNode, keys);
+        }
+    }
+
+    /**
+     * Inflates the children of the element of a nested screen, left out when the hierarchy of the
+     * given resource was inflated.
+     *
+     * @param path Index of each element on the way to the screen's element, see {@link #mPath}.
+     */
+    private void inflateChildren(int resource, int[] path, PreferenceScreen preferenceScreen) {
+        final XmlResourceParser parser = getContext().getResources().getXml(resource);
+        synchronized (mConstructorArgs) {
+            final AttributeSet attrs = Xml.asAttributeSet(parser);
+            mConstructorArgs[0] = mContext;
+            // Attaching the children may look up and so inflate another screen in the middle
+            final int oldResource = mResource;
+            final List<Integer> oldPath = new ArrayList<>(mPath);
+            mResource = resource;
+            mPath.clear();
+            try {
+                int type;
+                do {
+                    type = parser.next();
+                } while (type != XmlPullParser.START_TAG && type != XmlPullParser.END_DOCUMENT);
+
+                for (final int index : path) {
+                    moveToItem(parser, index);
+                    mPath.add(index);
+                }
+                rInflate(parser, preferenceScreen, null, attrs, null);
+
+            } catch (InflateException e) {
+                throw e;
+            } catch (XmlPullParserException e) {
+                throw new InflateException(e.getMessage(), e);
+            } catch (IOException e) {
+                throw new InflateException(
+                        parser.getPositionDescription()
+                                + ": " + e.getMessage(), e);
+            } finally {
+                mResource = oldResource;
+                mPath.clear();
+                mPath.addAll(oldPath);
+                parser.close();
+            }
+        }
+    }
+
+    /**
+     * Moves the parser from the start tag of an element to the start tag of its preference
+     * element with the given index.
+     */
+    private static void moveToItem(XmlPullParser parser, int index)
+            throws XmlPullParserException, IOException {
+        final int depth = parser.getDepth();
+        int i = 0;
+        int type;
+        while (((type = parser.next()) != XmlPullParser.END_TAG ||
+                parser.getDepth() > depth) && type != XmlPullParser.END_DOCUMENT) {
+
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            final String name = parser.getName();
+            if (!INTENT_TAG_NAME.equals(name) && !EXTRA_TAG_NAME.equals(name) && i++ == index) {
+                return;
+            }
+            skipCurrentTag(parser);
+        }
+        throw new InflateException(parser.getPositionDescription()
+                + ": Element of nested screen not found");
+    }
+
+    /**
+     * Whether the children of the item are to be inflated when its screen is navigated to.
+     */
+    private boolean shouldInflateLazily(Preference item) {
+        // Hierarchies being recorded are described in full
+        return mLazyScreens && mResource != 0 && !mRecording && item instanceof PreferenceScreen;
+    }
+
+    private void setPendingChildren(PreferenceScreen item, Set<String> keys) {
+        final int resource = mResource;
+        final int[] path = new int[mPath.size()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = mPath.get(i);
+        }
+        item.setPendingChildren(new PreferenceScreen.PendingChildren() {
+            @Override
+            public void inflate(PreferenceScreen preferenceScreen) {
+                inflateChildren(resource, path, preferenceScreen);
+            }
+        }, keys);
+    }
+
     /**
      * Inflate a new hierarchy from the specified XML node. Throws
      * InflaterException if there is an error.
@@ -158,10 +522,16 @@ class PreferenceInflater {
                 Preference xmlRoot = createItemFromTag(parser.getName(),
                         attrs);
 
+                PreferenceHierarchyCache.Node rootNode = null;
+                if (mRecording) {
+                    rootNode = mRecordedRoot = PreferenceHierarchyCache.record(xmlRoot, attrs);
+                    mRecording = rootNode != null;
+                }
+
                 result = onMergeRoots(root, (PreferenceGroup) xmlRoot);
 
                 // Inflate all children under temp
-                rInflate(parser, result, attrs);
+                rInflate(parser, result, rootNode, attrs, null);
 
             } catch (InflateException e) {
                 throw e;
@@ -209,39 +579,63 @@ class PreferenceInflater {
     private Preference createItem(@NonNull String name, @Nullable String[] prefixes,
                                   AttributeSet attrs)
             throws ClassNotFoundException, InflateException {
-        Constructor constructor = CONSTRUCTOR_MAP.get(name);
+        final ClassLoader classLoader = mContext.getClassLoader();
+        ClassCache cache = mClassCache;
+        if (cache == null) {
+            cache = mClassCache = getClassCache(classLoader);
+        }
+        PreferenceFactory factory = cache.factories.get(name);
+        Constructor constructor = factory == null ? cache.constructors.get(name) : null;
 
         try {
-            if (constructor == null) {
+            if (factory == null && constructor == null) {
                 // Class not found in the cache, see if it's real,
                 // and try to add it
-                final ClassLoader classLoader = mContext.getClassLoader();
                 Class<?> clazz = null;
                 if (prefixes == null || prefixes.length == 0) {
-                    clazz = classLoader.loadClass(name);
+                    factory = FACTORY_MAP.get(name);
+                    if (factory == null) {
+                        clazz = classLoader.loadClass(name);
+                    }
                 } else {
                     ClassNotFoundException notFoundException = null;
                     for (final String prefix : prefixes) {
+                        final String className = prefix + name;
+                        factory = FACTORY_MAP.get(className);
+                        if (factory != null) {
+                            break;
+                        }
+                        if (cache.missingClasses.contains(className)) {
+                            continue;
+                        }
                         try {
-                            clazz = classLoader.loadClass(prefix + name);
+                            clazz = classLoader.loadClass(className);
                             break;
                         } catch (final ClassNotFoundException e) {
+                            cache.missingClasses.add(className);
                             notFoundException = e;
                         }
                     }
-                    if (clazz == null) {
+                    if (factory == null && clazz == null) {
                         if (notFoundException == null) {
-                            throw new InflateException(attrs
-                                    .getPositionDescription()
-                                    + ": Error inflating class " + name);
+                            // Every prefix is known to be missing
+                            throw new ClassNotFoundException(name);
                         } else {
                             throw notFoundException;
                         }
                     }
                 }
-                constructor = clazz.getConstructor(CONSTRUCTOR_SIGNATURE);
-                constructor.setAccessible(true);
-                CONSTRUCTOR_MAP.put(name, constructor);
+                if (factory != null) {
+                    cache.factories.put(name, factory);
+                } else {
+                    constructor = clazz.getConstructor(CONSTRUCTOR_SIGNATURE);
+                    constructor.setAccessible(true);
+                    cache.constructors.put(name, constructor);
+                }
+            }
+
+            if (factory != null) {
+                return factory.create(mContext, attrs);
             }
 
             Object[] args = mConstructorArgs;
@@ -252,12 +646,16 @@ class PreferenceInflater {
             // If loadClass fails, we should propagate the exception.
             throw e;
         } catch (Exception e) {
-            final InflateException ie = new InflateException(attrs
-                    .getPositionDescription() + ": Error inflating class " + name, e);
+            final InflateException ie = new InflateException(getPositionDescription(attrs)
+                    + ": Error inflating class " + name, e);
             throw ie;
         }
     }
 
+    private static String getPositionDescription(@Nullable AttributeSet attrs) {
+        return attrs != null ? attrs.getPositionDescription() : "cached hierarchy";
+    }
+
     /**
      * This routine is responsible for creating the correct subclass of item
      * given the xml element name. Override it to handle custom item objects. If
@@ -306,10 +704,19 @@ class PreferenceInflater {
     /**
      * Recursive method used to descend down the xml hierarchy and instantiate
      * items, instantiate their children, and then call onFinishInflate().
+     *
+     * @param skippedKeys Null to inflate the child items, otherwise only the intent and extras of
+     *                    the parent are applied, and the child items are skipped and their keys,
+     *                    and those of their descendants, added to the set.
+     * @return Whether child items were skipped.
      */
-    private void rInflate(XmlPullParser parser, Preference parent, final AttributeSet attrs)
+    private boolean rInflate(XmlPullParser parser, Preference parent,
+                             @Nullable PreferenceHierarchyCache.Node parentNode,
+                             final AttributeSet attrs, @Nullable Set<String> skippedKeys)
             throws XmlPullParserException, IOException {
         final int depth = parser.getDepth();
+        int index = 0;
+        boolean skipped = false;
 
         int type;
         while (((type = parser.next()) != XmlPullParser.END_TAG ||
@@ -334,7 +741,12 @@ class PreferenceInflater {
                 }
 
                 parent.setIntent(intent);
+                if (mRecording) {
+                    PreferenceHierarchyCache.recordIntent(parentNode, intent);
+                }
             } else if (EXTRA_TAG_NAME.equals(name)) {
+                // Extras of the preference itself are not described by the cache
+                mRecording = false;
                 getContext().getResources().parseBundleExtra(EXTRA_TAG_NAME, attrs,
                         parent.getExtras());
                 try {
@@ -345,13 +757,83 @@ class PreferenceInflater {
                     ex.initCause(e);
                     throw ex;
                 }
+            } else if (skippedKeys != null) {
+                skipItem(parser, attrs, skippedKeys);
+                skipped = true;
             } else {
                 final Preference item = createItemFromTag(name, attrs);
+                PreferenceHierarchyCache.Node node = null;
+                if (mRecording) {
+                    node = PreferenceHierarchyCache.record(item, attrs);
+                    if (node != null) {
+                        parentNode.children.add(node);
+                    } else {
+                        mRecording = false;
+                    }
+                }
                 ((PreferenceGroup) parent).addItemFromInflater(item);
-                rInflate(parser, item, attrs);
+                mPath.add(index++);
+                try {
+                    if (shouldInflateLazily(item)) {
+                        final Set<String> keys = new HashSet<>();
+                        if (rInflate(parser, item, null, attrs, keys)) {
+                            setPendingChildren((PreferenceScreen) item, keys);
+                        }
+                    } else {
+                        rInflate(parser, item, node, attrs, null);
+                    }
+                } finally {
+                    mPath.remove(mPath.size() - 1);
+                }
             }
         }
 
+        return skipped;
+    }
+
+    /**
+     * Classes resolved through one class loader, by the name used in XML.
+     */
+    private static class ClassCache {
+
+        final Map<String, Constructor> constructors = new ConcurrentHashMap<>();
+
+        /**
+         * Factories resolved for the names used in XML, which may lack the package.
+         */
+        final Map<String, PreferenceFactory> factories = new ConcurrentHashMap<>();
+
+        /**
+         * Fully qualified class names that could not be loaded, so that other prefixes are tried
+         * without throwing and catching {@link ClassNotFoundException} again.
+         */
+        final Set<String> missingClasses =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Skips the element the parser is on, adding its key and those of the elements within to the
+     * given set.
+     */
+    private void skipItem(XmlPullParser parser, AttributeSet attrs, Set<String> keys)
+            throws XmlPullParserException, IOException {
+        final int depth = parser.getDepth();
+        int type = XmlPullParser.START_TAG;
+        do {
+            if (type == XmlPullParser.START_TAG) {
+                for (int i = 0; i < attrs.getAttributeCount(); i++) {
+                    final int nameResource = attrs.getAttributeNameResource(i);
+                    if (nameResource != R.attr.key && nameResource != android.R.attr.key) {
+                        continue;
+                    }
+                    final int resId = attrs.getAttributeResourceValue(i, 0);
+                    keys.add(resId != 0
+                            ? getContext().getString(resId) : attrs.getAttributeValue(i));
+                }
+            }
+            type = parser.next();
+        } while (type != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > depth));
     }
 
     private static void skipCurrentTag(XmlPullParser parser)
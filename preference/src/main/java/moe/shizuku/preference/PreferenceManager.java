@@ -21,11 +21,19 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.core.content.ContextCompat;
@@ -82,6 +90,59 @@ public class PreferenceManager {
     @Nullable
     private PreferenceDataStore mPreferenceDataStore;
 
+    /**
+     * Incremented whenever values in the storage may change, to stamp the values preferences
+     * remember having persisted. Guarded by {@code this}.
+     *
+     * @see #isStorageUnchangedSince(String, int)
+     */
+    private int mStorageGeneration;
+
+    /**
+     * The generation of the last change that may have affected any key. Guarded by {@code this}.
+     */
+    private int mStorageInvalidation;
+
+    /**
+     * The generation of the last change of each key changed since {@link #mStorageInvalidation}.
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Integer> mKeyInvalidations = new HashMap<>();
+
+    /**
+     * The value last persisted by a preference for each key of {@link #mSharedPreferences}, to
+     * tell the change notifications of our own writes from changes made elsewhere. Guarded by
+     * {@code this}.
+     */
+    private final Map<String, Object> mSharedPreferencesValues = new HashMap<>();
+
+    /**
+     * Registered on the {@link MappedPreferenceDataStore} set with
+     * {@link #setPreferenceDataStore(PreferenceDataStore)}, if any, to update the preferences
+     * when another process changes a value.
+     */
+    private final MappedPreferenceDataStore.OnChangeListener mDataStoreChangeListener =
+            new MappedPreferenceDataStore.OnChangeListener() {
+                @Override
+                public void onValueChanged(@NonNull MappedPreferenceDataStore dataStore,
+                                           @NonNull String key) {
+                    notifyStorageChanged(key);
+                }
+            };
+
+    /**
+     * Registered on {@link #mSharedPreferences} to notice changes made elsewhere. Kept here
+     * because {@link SharedPreferences} only holds weak references to its listeners.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSharedPreferenceChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                      String key) {
+                    onSharedPreferencesChanged(sharedPreferences, key);
+                }
+            };
+
     /**
      * If in no-commit mode, the shared editor to give out (which will be
      * committed when exiting no-commit mode).
@@ -90,10 +151,43 @@ public class PreferenceManager {
     private SharedPreferences.Editor mEditor;
 
     /**
-     * Blocks commits from happening on the shared editor. This is used when
-     * inflating the hierarchy. Do not set this directly, use {@link #setNoCommit(boolean)}
+     * Blocks commits from happening on the shared editor. This is used inside
+     * batches. Do not set this directly, use {@link #beginBatch()} and {@link #endBatch()}.
+     */
+    private volatile boolean mNoCommit;
+
+    /**
+     * The inflation running on the current thread, if any. Inflations batch only what the
+     * preferences they create persist, on the thread inflating them, so that changes made on
+     * other threads meanwhile are not held back until the inflation ends.
+     */
+    private final ThreadLocal<InflationBatch> mInflationBatch = new ThreadLocal<>();
+
+    /**
+     * The inflations running on any thread, whose bulk values have to follow the values
+     * persisted meanwhile. Guarded by {@code this}.
+     */
+    private final List<InflationBatch> mInflationBatches = new ArrayList<>();
+
+    /**
+     * The number of {@link #beginBatch()} calls that have not been ended yet.
+     */
+    private int mBatchDepth;
+
+    /**
+     * All values of the storage, loaded at once the first time a preference reads its value in
+     * a batch, or null. Guarded by {@code this}.
+     *
+     * @see #getBulkValues()
      */
-    private boolean mNoCommit;
+    @Nullable
+    private Map<String, Object> mBulkValues;
+
+    /**
+     * Whether {@link #mBulkValues} has been loaded in the current batch, it stays null if the
+     * storage can not load all values at once. Guarded by {@code this}.
+     */
+    private boolean mBulkValuesLoaded;
 
     /**
      * The SharedPreferences name that will be used for all {@link Preference}s
@@ -140,6 +234,11 @@ public class PreferenceManager {
     private List<OnActivityDestroyListener> mActivityDestroyListeners;
 
     private PreferenceComparisonCallback mPreferenceComparisonCallback;
+    @Nullable
+    private Executor mPreferenceComparisonExecutor;
+
+    private boolean mHierarchyCacheEnabled;
+    private boolean mLazyScreensEnabled;
     private OnPreferenceTreeClickListener mOnPreferenceTreeClickListener;
     private OnDisplayPreferenceDialogListener mOnDisplayPreferenceDialogListener;
     private OnNavigateToScreenListener mOnNavigateToScreenListener;
@@ -184,18 +283,120 @@ public class PreferenceManager {
     @RestrictTo(LIBRARY_GROUP)
     public PreferenceScreen inflateFromResource(Context context, int resId,
                                                 PreferenceScreen rootPreferences) {
-        // Block commits
-        setNoCommit(true);
+        // Block commits of the preferences being inflated
+        beginInflationBatch();
+        try {
+            final PreferenceInflater inflater = new PreferenceInflater(context, this);
+            inflater.setDefaultPackages(getDefaultPackages());
+            inflater.setLazyScreens(mLazyScreensEnabled);
+            if (mHierarchyCacheEnabled) {
+                rootPreferences = (PreferenceScreen) inflater.inflate(resId, rootPreferences,
+                        new PreferenceHierarchyCache(context));
+            } else {
+                rootPreferences = (PreferenceScreen) inflater.inflate(resId, rootPreferences);
+            }
+            rootPreferences.onAttachedToHierarchy(this);
+        } finally {
+            // Unblock commits
+            endInflationBatch();
+        }
 
-        final PreferenceInflater inflater = new PreferenceInflater(context, this);
-        inflater.setDefaultPackages(getDefaultPackages());
-        rootPreferences = (PreferenceScreen) inflater.inflate(resId, rootPreferences);
-        rootPreferences.onAttachedToHierarchy(this);
+        return rootPreferences;
+    }
 
-        // Unblock commits
-        setNoCommit(false);
+    /**
+     * Inflates a preference hierarchy from XML on the given executor, and delivers its root on the
+     * main thread. Preferences are constructed and read their initial values on the executor's
+     * thread; they are attached to the rest of the hierarchy only after the listener sets the
+     * screen, on the main thread.
+     *
+     * @param context  The context of the resource.
+     * @param resId    The resource ID of the XML to inflate.
+     * @param executor The executor to inflate on.
+     * @param listener The listener to deliver the root of the new hierarchy to.
+     * @see #inflateFromResource(Context, int, PreferenceScreen)
+     * @hide
+     */
+    @RestrictTo(LIBRARY_GROUP)
+    public void inflateFromResourceAsync(final Context context, final int resId,
+                                         @NonNull Executor executor,
+                                         @NonNull final OnPreferenceScreenInflatedListener listener) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PreferenceScreen preferenceScreen = null;
+                RuntimeException exception = null;
+                try {
+                    preferenceScreen = inflateFromResource(context, resId, null);
+                } catch (RuntimeException e) {
+                    exception = e;
+                }
 
-        return rootPreferences;
+                final PreferenceScreen result = preferenceScreen;
+                final RuntimeException error = exception;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (error != null) {
+                            // Fail the same way inflating on the main thread would
+                            throw error;
+                        }
+                        listener.onPreferenceScreenInflated(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sets whether hierarchies inflated from XML are cached in a compact binary form, so that
+     * inflating the same resource again, until the app is updated, skips parsing the XML.
+     * <p>
+     * Only resources whose preferences use nothing but the attributes common to all preferences
+     * (such as key, title, summary, icon, order, dependency and default value) and no
+     * {@code <extra>} elements are cached; others are always inflated from XML.
+     *
+     * @param enabled Whether to cache inflated hierarchies.
+     */
+    public void setHierarchyCacheEnabled(boolean enabled) {
+        mHierarchyCacheEnabled = enabled;
+    }
+
+    /**
+     * Returns whether hierarchies inflated from XML are cached.
+     *
+     * @see #setHierarchyCacheEnabled(boolean)
+     */
+    public boolean isHierarchyCacheEnabled() {
+        return mHierarchyCacheEnabled;
+    }
+
+    /**
+     * Sets whether the children of nested {@link PreferenceScreen}s are left out when a hierarchy
+     * is inflated from XML, and only inflated once the screen is navigated to. Until then, they
+     * are neither created nor read their values. Looking up one of them by key, through
+     * {@link #findPreference(CharSequence)} or a dependency, inflates the screens holding it.
+     * The keys of the children are noted while they are skipped, so that looking up any other
+     * key inflates nothing.
+     * <p>
+     * Hierarchies are always inflated fully while they are being recorded by the hierarchy cache,
+     * the screens of hierarchies inflated from the cache later on are lazy.
+     *
+     * @param enabled Whether to inflate the children of nested screens lazily.
+     * @see #setHierarchyCacheEnabled(boolean)
+     */
+    public void setLazyScreensEnabled(boolean enabled) {
+        mLazyScreensEnabled = enabled;
+    }
+
+    /**
+     * Returns whether the children of nested screens are inflated lazily.
+     *
+     * @see #setLazyScreensEnabled(boolean)
+     */
+    public boolean isLazyScreensEnabled() {
+        return mLazyScreensEnabled;
     }
 
     public PreferenceScreen createPreferenceScreen(Context context) {
@@ -238,7 +439,7 @@ public class PreferenceManager {
      */
     public void setSharedPreferencesName(String sharedPreferencesName) {
         mSharedPreferencesName = sharedPreferencesName;
-        mSharedPreferences = null;
+        resetSharedPreferences();
     }
 
     /**
@@ -261,7 +462,7 @@ public class PreferenceManager {
      */
     public void setSharedPreferencesMode(int sharedPreferencesMode) {
         mSharedPreferencesMode = sharedPreferencesMode;
-        mSharedPreferences = null;
+        resetSharedPreferences();
     }
 
     /**
@@ -271,7 +472,7 @@ public class PreferenceManager {
     public void setStorageDefault() {
         if (Build.VERSION.SDK_INT >= 24) {
             mStorage = STORAGE_DEFAULT;
-            mSharedPreferences = null;
+            resetSharedPreferences();
         }
     }
 
@@ -298,7 +499,7 @@ public class PreferenceManager {
     public void setStorageDeviceProtected() {
         if (Build.VERSION.SDK_INT >= 24) {
             mStorage = STORAGE_DEVICE_PROTECTED;
-            mSharedPreferences = null;
+            resetSharedPreferences();
         }
     }
 
@@ -343,7 +544,248 @@ public class PreferenceManager {
      * @see Preference#setPreferenceDataStore(PreferenceDataStore)
      */
     public void setPreferenceDataStore(PreferenceDataStore dataStore) {
+        if (mPreferenceDataStore instanceof MappedPreferenceDataStore) {
+            ((MappedPreferenceDataStore) mPreferenceDataStore)
+                    .unregisterOnChangeListener(mDataStoreChangeListener);
+        }
         mPreferenceDataStore = dataStore;
+        if (dataStore instanceof MappedPreferenceDataStore) {
+            // Update the preferences when another process changes their values
+            ((MappedPreferenceDataStore) dataStore)
+                    .registerOnChangeListener(mDataStoreChangeListener);
+        }
+        notifyStorageChanged();
+    }
+
+    /**
+     * Notifies this manager that values in its storage may have been changed by something other
+     * than its preferences, for example by another component writing to the same
+     * {@link PreferenceDataStore}.
+     * <p>
+     * Preferences remember the value they last persisted, so that persisting the same value again
+     * does not have to read it back from the storage first. This makes them forget those values.
+     * Changes to {@link SharedPreferences} are noticed automatically.
+     */
+    public void notifyStorageChanged() {
+        synchronized (this) {
+            mStorageInvalidation = ++mStorageGeneration;
+            mKeyInvalidations.clear();
+            mSharedPreferencesValues.clear();
+            resetBulkValues();
+        }
+    }
+
+    /**
+     * Notifies this manager that the stored value of a key was changed by something other than
+     * its preferences, for example by another process. Unlike {@link #notifyStorageChanged()},
+     * preferences only forget the values they persisted for this key, and the preference with
+     * the key reads its value again, so that it is shown without recreating the screen.
+     *
+     * @param key The key whose value changed.
+     */
+    public void notifyStorageChanged(@NonNull String key) {
+        synchronized (this) {
+            invalidateKey(key);
+            mSharedPreferencesValues.remove(key);
+            resetBulkValues();
+        }
+
+        final Preference preference = findPreference(key);
+        if (preference != null) {
+            preference.reloadPersistedValue();
+        }
+    }
+
+    /**
+     * Called when {@link #mSharedPreferences} changed, which includes the writes of our own
+     * preferences. Only changes made elsewhere make the preferences forget the values they
+     * persisted for the key.
+     */
+    private void onSharedPreferencesChanged(SharedPreferences sharedPreferences,
+                                            @Nullable String key) {
+        if (key == null) {
+            // Cleared
+            notifyStorageChanged();
+            return;
+        }
+        final Object persistedValue;
+        synchronized (this) {
+            persistedValue = mSharedPreferencesValues.get(key);
+        }
+        if (persistedValue != null
+                && persistedValue.equals(getSharedPreference(sharedPreferences, key,
+                persistedValue))) {
+            // Our own write, or one that wrote the same value
+            return;
+        }
+        synchronized (this) {
+            invalidateKey(key);
+            mSharedPreferencesValues.remove(key);
+            resetBulkValues();
+        }
+    }
+
+    /**
+     * Reads the value of a key from {@link SharedPreferences} as the type of another value.
+     *
+     * @return The value, or null if there is none or it has another type.
+     */
+    @Nullable
+    private static Object getSharedPreference(SharedPreferences sharedPreferences,
+                                              String key, Object typeOf) {
+        if (!sharedPreferences.contains(key)) {
+            return null;
+        }
+        try {
+            if (typeOf instanceof String) {
+                return sharedPreferences.getString(key, null);
+            } else if (typeOf instanceof Set) {
+                return sharedPreferences.getStringSet(key, null);
+            } else if (typeOf instanceof Integer) {
+                return sharedPreferences.getInt(key, 0);
+            } else if (typeOf instanceof Long) {
+                return sharedPreferences.getLong(key, 0);
+            } else if (typeOf instanceof Float) {
+                return sharedPreferences.getFloat(key, 0);
+            } else if (typeOf instanceof Boolean) {
+                return sharedPreferences.getBoolean(key, false);
+            }
+        } catch (ClassCastException e) {
+            // Written as another type
+        }
+        return null;
+    }
+
+    /**
+     * Called by a preference after it has written a value. Other preferences with the same key
+     * forget the value they persisted.
+     *
+     * @param key           The key of the preference.
+     * @param value         The value written, or null if the key was removed.
+     * @param sharedStorage Whether the value was written to the storage of this manager, rather
+     *                      than to a data store of the preference's own.
+     */
+    void onValuePersisted(@NonNull String key, @Nullable Object value, boolean sharedStorage) {
+        synchronized (this) {
+            invalidateKey(key);
+            if (sharedStorage) {
+                putBulkValue(mBulkValues, key, value);
+                for (final InflationBatch batch : mInflationBatches) {
+                    putBulkValue(batch.bulkValues, key, value);
+                }
+                if (mPreferenceDataStore == null && value != null) {
+                    mSharedPreferencesValues.put(key, value);
+                } else {
+                    mSharedPreferencesValues.remove(key);
+                }
+            }
+        }
+    }
+
+    private void invalidateKey(@NonNull String key) {
+        mKeyInvalidations.put(key, ++mStorageGeneration);
+    }
+
+    private void resetBulkValues() {
+        mBulkValues = null;
+        mBulkValuesLoaded = false;
+        for (final InflationBatch batch : mInflationBatches) {
+            batch.bulkValues = null;
+            batch.bulkValuesLoaded = false;
+        }
+    }
+
+    private static void putBulkValue(@Nullable Map<String, Object> bulkValues,
+                                     @NonNull String key, @Nullable Object value) {
+        if (bulkValues == null) {
+            return;
+        }
+        if (value != null) {
+            bulkValues.put(key, value);
+        } else {
+            bulkValues.remove(key);
+        }
+    }
+
+    /**
+     * Returns all values of the storage while a batch, such as the inflation of a hierarchy, is in
+     * progress. They are loaded with a single {@link SharedPreferences#getAll()} or
+     * {@link PreferenceDataStore#getAll()} call the first time this is called in a batch, so
+     * that preferences setting their initial values do not query the storage one by one.
+     *
+     * @return The values by key, or null if there is no batch or the data store does not support
+     * loading all values at once.
+     */
+    @Nullable
+    Map<String, ?> getBulkValues() {
+        final InflationBatch batch = mInflationBatch.get();
+        synchronized (this) {
+            if (batch != null) {
+                if (!batch.bulkValuesLoaded) {
+                    batch.bulkValuesLoaded = true;
+                    batch.bulkValues = loadBulkValues();
+                }
+                return batch.bulkValues;
+            }
+            if (mBatchDepth == 0) {
+                return null;
+            }
+            if (!mBulkValuesLoaded) {
+                mBulkValuesLoaded = true;
+                mBulkValues = loadBulkValues();
+            }
+            return mBulkValues;
+        }
+    }
+
+    @Nullable
+    private Map<String, Object> loadBulkValues() {
+        final Map<String, ?> values;
+        if (mPreferenceDataStore != null) {
+            values = mPreferenceDataStore.getAll();
+        } else {
+            values = getSharedPreferences().getAll();
+        }
+        if (values == null) {
+            return null;
+        }
+        // Values may still be persisted from the main thread while inflating
+        final Map<String, Object> bulkValues = new ConcurrentHashMap<>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                bulkValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return bulkValues;
+    }
+
+    /**
+     * Returns the current generation of the storage, to stamp a value a preference remembers
+     * having persisted.
+     */
+    synchronized int getStorageGeneration() {
+        return mStorageGeneration;
+    }
+
+    /**
+     * Returns whether the value of a key cannot have changed since the given generation, so that
+     * a value persisted back then is still the one in the storage.
+     */
+    synchronized boolean isStorageUnchangedSince(@NonNull String key, int generation) {
+        if (generation < mStorageInvalidation) {
+            return false;
+        }
+        final Integer keyInvalidation = mKeyInvalidations.get(key);
+        return keyInvalidation == null || generation >= keyInvalidation;
+    }
+
+    private void resetSharedPreferences() {
+        if (mSharedPreferences != null) {
+            mSharedPreferences.unregisterOnSharedPreferenceChangeListener(
+                    mSharedPreferenceChangeListener);
+            mSharedPreferences = null;
+        }
+        notifyStorageChanged();
     }
 
     /**
@@ -384,6 +826,8 @@ public class PreferenceManager {
 
             mSharedPreferences = storageContext.getSharedPreferences(mSharedPreferencesName,
                     mSharedPreferencesMode);
+            mSharedPreferences.registerOnSharedPreferenceChangeListener(
+                    mSharedPreferenceChangeListener);
         }
 
         return mSharedPreferences;
@@ -431,6 +875,9 @@ public class PreferenceManager {
                 mPreferenceScreen.onDetached();
             }
             mPreferenceScreen = preferenceScreen;
+            if (preferenceScreen != null) {
+                preferenceScreen.inflatePendingChildren();
+            }
             return true;
         }
 
@@ -538,12 +985,22 @@ public class PreferenceManager {
             return null;
         }
 
-        if (mNoCommit) {
-            if (mEditor == null) {
-                mEditor = getSharedPreferences().edit();
+        final InflationBatch batch = mInflationBatch.get();
+        if (batch != null) {
+            if (batch.editor == null) {
+                batch.editor = getSharedPreferences().edit();
             }
+            return batch.editor;
+        }
+
+        if (mNoCommit) {
+            synchronized (this) {
+                if (mEditor == null) {
+                    mEditor = getSharedPreferences().edit();
+                }
 
-            return mEditor;
+                return mEditor;
+            }
         } else {
             return getSharedPreferences().edit();
         }
@@ -559,14 +1016,79 @@ public class PreferenceManager {
      * @return Whether the client should commit.
      */
     boolean shouldCommit() {
-        return !mNoCommit;
+        return !mNoCommit && mInflationBatch.get() == null;
+    }
+
+    /**
+     * Starts batching what is persisted on the current thread, by the preferences being inflated
+     * on it. Unlike {@link #beginBatch()}, this does not hold back changes made on other threads.
+     */
+    void beginInflationBatch() {
+        InflationBatch batch = mInflationBatch.get();
+        if (batch == null) {
+            batch = new InflationBatch();
+            mInflationBatch.set(batch);
+            synchronized (this) {
+                mInflationBatches.add(batch);
+            }
+        }
+        batch.depth++;
+    }
+
+    void endInflationBatch() {
+        final InflationBatch batch = mInflationBatch.get();
+        if (--batch.depth > 0) {
+            return;
+        }
+        mInflationBatch.remove();
+        synchronized (this) {
+            mInflationBatches.remove(batch);
+        }
+        if (batch.editor != null) {
+            SharedPreferencesCompat.EditorCompat.getInstance().apply(batch.editor);
+        }
     }
 
-    private void setNoCommit(boolean noCommit) {
-        if (!noCommit && mEditor != null) {
-            SharedPreferencesCompat.EditorCompat.getInstance().apply(mEditor);
+    /**
+     * Starts a batch of changes. Until the matching {@link #endBatch()}, values persisted by
+     * preferences are collected in a single editor instead of being applied one by one, so that
+     * bulk updates, such as restoring or resetting many preferences, are written to disk once.
+     * <p>
+     * Batches can be nested, the changes are applied when the outermost batch ends. This has no
+     * effect if a {@link PreferenceDataStore} is used.
+     *
+     * @see #endBatch()
+     */
+    public void beginBatch() {
+        // Hierarchies may be inflated on a background thread
+        synchronized (this) {
+            mBatchDepth++;
+            mNoCommit = true;
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}, applying the collected changes if this
+     * is the outermost batch.
+     *
+     * @throws IllegalStateException If there is no batch to end.
+     */
+    public void endBatch() {
+        synchronized (this) {
+            if (mBatchDepth == 0) {
+                throw new IllegalStateException("endBatch() called without beginBatch()");
+            }
+            if (--mBatchDepth > 0) {
+                return;
+            }
+            if (mEditor != null) {
+                SharedPreferencesCompat.EditorCompat.getInstance().apply(mEditor);
+                mEditor = null;
+            }
+            mNoCommit = false;
+            mBulkValues = null;
+            mBulkValuesLoaded = false;
         }
-        mNoCommit = noCommit;
     }
 
     /**
@@ -587,6 +1109,27 @@ public class PreferenceManager {
         mPreferenceComparisonCallback = preferenceComparisonCallback;
     }
 
+    @Nullable
+    public Executor getPreferenceComparisonExecutor() {
+        return mPreferenceComparisonExecutor;
+    }
+
+    /**
+     * Sets an {@link Executor} on which the adapter compares the old and new preference lists
+     * with the {@link PreferenceComparisonCallback} when the hierarchy changes. The list keeps
+     * showing its old contents until the result is delivered on the main thread, and results
+     * made obsolete by a later change are dropped.
+     * <p>
+     * The comparison callback is called on the executor's thread, so it must only read the
+     * preferences. If no executor is set (the default), lists are compared on the main thread.
+     *
+     * @param executor The executor to compare on, or {@code null} to compare synchronously.
+     * @see #setPreferenceComparisonCallback(PreferenceComparisonCallback)
+     */
+    public void setPreferenceComparisonExecutor(@Nullable Executor executor) {
+        mPreferenceComparisonExecutor = executor;
+    }
+
     public OnDisplayPreferenceDialogListener getOnDisplayPreferenceDialogListener() {
         return mOnDisplayPreferenceDialogListener;
     }
@@ -607,6 +1150,21 @@ public class PreferenceManager {
         }
     }
 
+    /**
+     * Registers a factory that creates instances of the given class when it is inflated from XML,
+     * instead of looking up and calling its constructor through reflection. Factories of the
+     * built-in preferences are registered already, those of the other modules, such as
+     * {@code SimpleMenuPreference.FACTORY}, have to be registered by the app. Register factories
+     * before inflating, for example in {@code Application.onCreate()}.
+     *
+     * @param clazz   The preference class the factory creates.
+     * @param factory The factory.
+     */
+    public static void registerPreferenceFactory(@NonNull Class<? extends Preference> clazz,
+                                                 @NonNull PreferenceFactory factory) {
+        PreferenceInflater.registerFactory(clazz, factory);
+    }
+
     public final String[] getDefaultPackages() {
         if (mDefaultPackages == null) {
             mDefaultPackages = new String[]{PreferenceInflater.DEFAULT_PACKAGE};
@@ -758,6 +1316,11 @@ public class PreferenceManager {
      * event.
      */
     void dispatchActivityDestroy() {
+        if (mPreferenceDataStore instanceof MappedPreferenceDataStore) {
+            ((MappedPreferenceDataStore) mPreferenceDataStore)
+                    .unregisterOnChangeListener(mDataStoreChangeListener);
+        }
+
         List<OnActivityDestroyListener> list = null;
         synchronized (this) {
             if (mActivityDestroyListeners != null) {
@@ -955,6 +1518,21 @@ public class PreferenceManager {
         void onNavigateToScreen(PreferenceScreen preferenceScreen);
     }
 
+    /**
+     * Interface definition for a callback to be invoked when a preference hierarchy
+     * inflated in the background is ready.
+     *
+     * @see #inflateFromResourceAsync(Context, int, Executor, OnPreferenceScreenInflatedListener)
+     */
+    public interface OnPreferenceScreenInflatedListener {
+        /**
+         * Called on the main thread with the root of the inflated hierarchy.
+         *
+         * @param preferenceScreen The root of the new hierarchy.
+         */
+        void onPreferenceScreenInflated(PreferenceScreen preferenceScreen);
+    }
+
     /**
      * Interface definition for a class that will be called when the container's activity
      * receives an activity result.
@@ -990,4 +1568,15 @@ public class PreferenceManager {
          */
         void onActivityDestroy();
     }
+
+    /**
+     * What the preferences being inflated on one thread have persisted, and the values they read
+     * their initial values from.
+     */
+    private static final class InflationBatch {
+        int depth;
+        SharedPreferences.Editor editor;
+        Map<String, Object> bulkValues;
+        boolean bulkValuesLoaded;
+    }
 }
@@ -0,0 +1,86 @@
+package moe.shizuku.preference;
+
+import android.util.SparseBooleanArray;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * A {@link RecyclerView.RecycledViewPool} shared by the lists of the {@link PreferenceFragment}s
+ * of an activity, so that a screen reuses the rows already inflated for the screens shown before
+ * it instead of inflating its own. View types are the same for all preference adapters of the
+ * process, a row is only reused for preferences of the same class and layouts.
+ *
+ * <p>How many rows are kept can be set per preference class, rather than per view type. A limit
+ * set for a class also applies to its subclasses that have no limit of their own.
+ *
+ * @see PreferenceFragment#onCreateRecycledViewPool()
+ */
+public class PreferenceRecycledViewPool extends RecyclerView.RecycledViewPool {
+
+    /**
+     * The number of rows kept per view type unless set otherwise.
+     */
+    public static final int DEFAULT_MAX_RECYCLED_VIEWS = 10;
+
+    private final Map<Class<?>, Integer> mMaxRecycledViews = new HashMap<>();
+
+    private int mDefaultMaxRecycledViews = DEFAULT_MAX_RECYCLED_VIEWS;
+
+    /**
+     * View types whose limit has been set on the underlying pool.
+     */
+    private final SparseBooleanArray mConfiguredViewTypes = new SparseBooleanArray();
+
+    /**
+     * Sets how many rows to keep for each view type of a preference class and its subclasses.
+     *
+     * @param clazz The preference class.
+     * @param max   The maximum number of rows per view type.
+     */
+    public void setMaxRecycledViews(@NonNull Class<? extends Preference> clazz, int max) {
+        mMaxRecycledViews.put(clazz, max);
+        // Applied to the underlying pool again as rows are put
+        mConfiguredViewTypes.clear();
+    }
+
+    /**
+     * Sets how many rows to keep for each view type of preference classes with no limit set.
+     *
+     * @param max The maximum number of rows per view type.
+     */
+    public void setDefaultMaxRecycledViews(int max) {
+        mDefaultMaxRecycledViews = max;
+        mConfiguredViewTypes.clear();
+    }
+
+    private int getMaxRecycledViews(Class<?> clazz) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            final Integer max = mMaxRecycledViews.get(c);
+            if (max != null) {
+                return max;
+            }
+        }
+        return mDefaultMaxRecycledViews;
+    }
+
+    @Override
+    public void setMaxRecycledViews(int viewType, int max) {
+        mConfiguredViewTypes.put(viewType, true);
+        super.setMaxRecycledViews(viewType, max);
+    }
+
+    @Override
+    public void putRecycledView(RecyclerView.ViewHolder scrap) {
+        final int viewType = scrap.getItemViewType();
+        if (!mConfiguredViewTypes.get(viewType)) {
+            // View types are registered as preferences are shown, set their limit lazily
+            setMaxRecycledViews(viewType, getMaxRecycledViews(
+                    PreferenceViewTypes.getInstance().getLayout(viewType).clazz));
+        }
+        super.putRecycledView(scrap);
+    }
+}
@@ -20,6 +20,11 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.util.AttributeSet;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 
 import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP;
@@ -80,6 +85,29 @@ public final class PreferenceScreen extends PreferenceGroup {
 
     private boolean mShouldUseGeneratedIds = true;
 
+    /**
+     * Inflates the children left out when this screen was inflated, if any.
+     *
+     * @see PreferenceManager#setLazyScreensEnabled(boolean)
+     */
+    @Nullable
+    private PendingChildren mPendingChildren;
+
+    /**
+     * The keys of the preferences {@link #mPendingChildren} inflates, including those of nested
+     * screens.
+     */
+    @Nullable
+    private Set<String> mPendingKeys;
+
+    /**
+     * Inflates the children of a nested screen, which were left out when the hierarchy it belongs
+     * to was inflated.
+     */
+    interface PendingChildren {
+        void inflate(PreferenceScreen preferenceScreen);
+    }
+
     /**
      * Do NOT use this constructor, use {@link PreferenceManager#createPreferenceScreen(Context)}.
      *
@@ -93,6 +121,7 @@ public final class PreferenceScreen extends PreferenceGroup {
 
     @Override
     protected void onClick() {
+        inflatePendingChildren();
         if (getIntent() != null || getFragment() != null || getPreferenceCount() == 0) {
             return;
         }
@@ -108,6 +137,130 @@ public final class PreferenceScreen extends PreferenceGroup {
         return false;
     }
 
+    void setPendingChildren(@Nullable PendingChildren pendingChildren,
+                            @Nullable Set<String> pendingKeys) {
+        mPendingChildren = pendingChildren;
+        mPendingKeys = pendingKeys;
+    }
+
+    /**
+     * Returns whether the children of this screen have not been inflated yet, because it was
+     * inflated as part of a hierarchy with lazy screens.
+     *
+     * @return Whether the children are still to be inflated.
+     * @see PreferenceManager#setLazyScreensEnabled(boolean)
+     */
+    public boolean hasPendingChildren() {
+        return mPendingChildren != null;
+    }
+
+    /**
+     * Inflates the children of this screen if they have not been inflated yet. Called when the
+     * screen is navigated to or becomes the root of a {@link PreferenceFragment}.
+     */
+    void inflatePendingChildren() {
+        if (mPendingChildren == null) {
+            return;
+        }
+        final PendingChildren pendingChildren = mPendingChildren;
+        mPendingChildren = null;
+        mPendingKeys = null;
+
+        final PreferenceManager preferenceManager = getPreferenceManager();
+        if (preferenceManager != null) {
+            preferenceManager.beginInflationBatch();
+        }
+        try {
+            pendingChildren.inflate(this);
+        } finally {
+            if (preferenceManager != null) {
+                preferenceManager.endInflationBatch();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If no preference with the key has been inflated yet, the items of
+     * {@link PagedPreferenceGroup}s are looked up, then the nested screens whose children are
+     * still to be inflated and hold a preference with the key are inflated.
+     */
+    @Override
+    public Preference findPreference(CharSequence key) {
+        Preference preference = super.findPreference(key);
+        if (preference != null || key == null) {
+            return preference;
+        }
+        if (getPagedGroupCount() > 0) {
+            preference = findPagedItem(this, key);
+            if (preference != null) {
+                return preference;
+            }
+        }
+
+        final List<PreferenceScreen> pendingScreens = new ArrayList<>();
+        collectPendingScreens(this, key.toString(), pendingScreens);
+        while (!pendingScreens.isEmpty()) {
+            final PreferenceScreen screen = pendingScreens.remove(pendingScreens.size() - 1);
+            screen.inflatePendingChildren();
+            // The new descendants are indexed in this screen as well
+            preference = super.findPreference(key);
+            if (preference == null && screen.getPagedGroupCount() > 0) {
+                preference = findPagedItem(screen, key);
+            }
+            if (preference != null) {
+                return preference;
+            }
+            collectPendingScreens(screen, key.toString(), pendingScreens);
+        }
+        return null;
+    }
+
+    /**
+     * Finds an item of the paged groups in the group, whose preference may not exist yet.
+     */
+    private static Preference findPagedItem(PreferenceGroup group, CharSequence key) {
+        final int count = group.getPreferenceCount();
+        for (int i = 0; i < count; i++) {
+            final Preference preference = group.getPreference(i);
+            Preference item = null;
+            if (preference instanceof PagedPreferenceGroup) {
+                item = ((PagedPreferenceGroup) preference).findPreference(key);
+            } else if (preference instanceof PreferenceGroup
+                    && ((PreferenceGroup) preference).getPagedGroupCount() > 0) {
+                item = findPagedItem((PreferenceGroup) preference, key);
+            }
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the screens in the group whose children are still to be inflated and hold a
+     * preference with the given key.
+     */
+    private static void collectPendingScreens(PreferenceGroup group, String key,
+                                              List<PreferenceScreen> pendingScreens) {
+        if (group instanceof PreferenceScreen
+                && ((PreferenceScreen) group).hasPendingChildren()) {
+            final Set<String> pendingKeys = ((PreferenceScreen) group).mPendingKeys;
+            if (pendingKeys != null && pendingKeys.contains(key)) {
+                pendingScreens.add((PreferenceScreen) group);
+            }
+            return;
+        }
+        final int count = group.getPreferenceCount();
+        for (int i = 0; i < count; i++) {
+            final Preference preference = group.getPreference(i);
+            if (preference instanceof PreferenceGroup) {
+                collectPendingScreens((PreferenceGroup) preference, key, pendingScreens);
+            }
+        }
+    }
+
     /**
      * See {@link #setShouldUseGeneratedIds(boolean)}
      *
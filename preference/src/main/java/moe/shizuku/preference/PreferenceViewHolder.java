@@ -16,6 +16,7 @@
 
 package moe.shizuku.preference;
 
+import android.graphics.drawable.Drawable;
 import android.util.SparseArray;
 import android.view.View;
 
@@ -33,14 +34,29 @@ public class PreferenceViewHolder extends RecyclerView.ViewHolder {
     private boolean mDividerAllowedAbove;
     private boolean mDividerAllowedBelow;
 
+    /**
+     * The preference last bound by {@link Preference#onBindViewHolder(PreferenceViewHolder)}, and
+     * the state it applied to the views that cannot be read back from them. Only valid while the
+     * view holder is bound to the same preference again, so that rebinding it skips what has not
+     * changed.
+     */
+    Preference mBoundPreference;
+    boolean mBoundEnabled;
+    boolean mBoundHasSingleLineTitle;
+    boolean mBoundSingleLineTitle;
+    Drawable mBoundIcon;
+
     /* package */ PreferenceViewHolder(View itemView) {
         super(itemView);
 
-        // Pre-cache the views that we know in advance we'll want to find
+        // Pre-cache the views that we know in advance we'll want to find, including whether they
+        // are missing, so that binding does not look for them again
         mCachedViews.put(android.R.id.title, itemView.findViewById(android.R.id.title));
         mCachedViews.put(android.R.id.summary, itemView.findViewById(android.R.id.summary));
         mCachedViews.put(android.R.id.icon, itemView.findViewById(android.R.id.icon));
         mCachedViews.put(R.id.icon_frame, itemView.findViewById(R.id.icon_frame));
+        mCachedViews.put(android.R.id.widget_frame,
+                itemView.findViewById(android.R.id.widget_frame));
     }
 
     /**
@@ -54,14 +70,16 @@ public class PreferenceViewHolder extends RecyclerView.ViewHolder {
     /**
      * Returns a cached reference to a subview managed by this object. If the view reference is not
      * yet cached, it falls back to calling {@link View#findViewById(int)} and caches the result.
+     * The views of the default layouts are cached when the view holder is created, even if they
+     * are missing.
      *
      * @param id Resource ID of the view to find
      * @return The view, or null if no view with the requested ID is found.
      */
     public View findViewById(@IdRes int id) {
-        final View cachedView = mCachedViews.get(id);
-        if (cachedView != null) {
-            return cachedView;
+        final int index = mCachedViews.indexOfKey(id);
+        if (index >= 0) {
+            return mCachedViews.valueAt(index);
         } else {
             final View v = itemView.findViewById(id);
             if (v != null) {
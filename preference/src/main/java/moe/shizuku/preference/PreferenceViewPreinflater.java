@@ -0,0 +1,172 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Inflates the rows a {@link PreferenceGroupAdapter} is expected to need for its first layout on
+ * a background thread.
+ * <p>
+ * Like {@code AsyncLayoutInflater}, it inflates with a {@link LayoutInflater} of its own that has
+ * none of the factories of the activity, as those are not meant to be called off the main thread.
+ * Views are therefore created as written in the layouts, without the substitutions a factory such
+ * as the one of AppCompat makes.
+ * <p>
+ * Each row is handed out by {@link #poll(int)} as soon as it is inflated, so that the adapter can
+ * return it from {@link PreferenceGroupAdapter#onCreateViewHolder} even if the first layout runs
+ * before the main thread got to anything posted by the background thread. Once all rows are
+ * inflated, those still left are put into the pool of the list. Rows that fail to inflate off the
+ * main thread, for instance because a view needs a {@link Looper}, are left to the adapter.
+ */
+final class PreferenceViewPreinflater {
+
+    private static final String TAG = "PreferenceViewPreinflat";
+
+    private final RecyclerView mList;
+    private final PreferenceGroupAdapter mAdapter;
+    private final LayoutInflater mInflater;
+    private final SparseIntArray mCounts;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Inflated rows by view type. The queues are all created before inflation starts.
+     */
+    private final SparseArray<Queue<PreferenceViewHolder>> mHolders = new SparseArray<>();
+
+    private volatile boolean mCancelled;
+
+    /**
+     * @param list    The list the rows are for, used as their parent while inflating.
+     * @param adapter The adapter of the list.
+     * @param counts  The number of rows to inflate for each view type.
+     */
+    PreferenceViewPreinflater(RecyclerView list, PreferenceGroupAdapter adapter,
+                              SparseIntArray counts) {
+        mList = list;
+        mAdapter = adapter;
+        mInflater = new BasicInflater(list.getContext());
+        mCounts = counts;
+        for (int i = 0; i < counts.size(); i++) {
+            mHolders.put(counts.keyAt(i), new ConcurrentLinkedQueue<PreferenceViewHolder>());
+        }
+    }
+
+    void start(Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                inflate();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        seedPool();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops inflating, rows that have not been taken yet are dropped.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private void inflate() {
+        for (int i = 0; i < mCounts.size() && !mCancelled; i++) {
+            final int viewType = mCounts.keyAt(i);
+            final int count = mCounts.valueAt(i);
+            final Queue<PreferenceViewHolder> holders = mHolders.get(viewType);
+            try {
+                for (int j = 0; j < count && !mCancelled; j++) {
+                    holders.add(PreferenceGroupAdapter.inflateViewHolder(
+                            mInflater, mList, viewType));
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to inflate view type " + viewType
+                        + " in the background, inflating on the main thread", e);
+            }
+        }
+    }
+
+    /**
+     * Returns a row inflated for the given view type, if one is ready.
+     */
+    @Nullable
+    PreferenceViewHolder poll(int viewType) {
+        if (mCancelled) {
+            return null;
+        }
+        final Queue<PreferenceViewHolder> holders = mHolders.get(viewType);
+        return holders != null ? holders.poll() : null;
+    }
+
+    private void seedPool() {
+        if (mCancelled || mList.getAdapter() != mAdapter) {
+            return;
+        }
+        final RecyclerView.RecycledViewPool pool = mList.getRecycledViewPool();
+        for (int i = 0; i < mHolders.size(); i++) {
+            final int viewType = mHolders.keyAt(i);
+            final Queue<PreferenceViewHolder> holders = mHolders.valueAt(i);
+            for (int n = holders.size(); n > 0; n--) {
+                // Goes through onCreateViewHolder, which takes the row from the queue, so that
+                // the adapter can tag it with its view type
+                pool.putRecycledView(mAdapter.createViewHolder(mList, viewType));
+            }
+        }
+        mAdapter.setPreinflater(null);
+    }
+
+    /**
+     * An inflater without factories, which resolves the framework views a
+     * {@code PhoneLayoutInflater} would.
+     */
+    private static class BasicInflater extends LayoutInflater {
+
+        private static final String[] CLASS_PREFIXES = {
+                "android.widget.",
+                "android.webkit.",
+                "android.app."
+        };
+
+        BasicInflater(Context context) {
+            super(context);
+        }
+
+        @Override
+        public LayoutInflater cloneInContext(Context newContext) {
+            return new BasicInflater(newContext);
+        }
+
+        @Override
+        protected View onCreateView(String name, AttributeSet attrs) throws ClassNotFoundException {
+            for (String prefix : CLASS_PREFIXES) {
+                try {
+                    final View view = createView(name, prefix, attrs);
+                    if (view != null) {
+                        return view;
+                    }
+                } catch (ClassNotFoundException e) {
+                    // Try the next prefix
+                }
+            }
+            return super.onCreateView(name, attrs);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package moe.shizuku.preference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Assigns view types to the combinations of preference class, layout and widget layout, the same
+ * for every {@link PreferenceGroupAdapter} of the process, so that adapters can share a
+ * {@link RecyclerView.RecycledViewPool}.
+ */
+final class PreferenceViewTypes {
+
+    private static final PreferenceViewTypes sInstance = new PreferenceViewTypes();
+
+    /**
+     * Layouts indexed by view type.
+     */
+    private final List<PreferenceLayout> mLayouts = new ArrayList<>();
+
+    private final Map<PreferenceLayout, Integer> mViewTypes = new HashMap<>();
+
+    private final PreferenceLayout mTempLayout = new PreferenceLayout();
+
+    static final class PreferenceLayout {
+        int resId;
+        int widgetResId;
+        Class<?> clazz;
+
+        PreferenceLayout() {
+        }
+
+        PreferenceLayout(PreferenceLayout other) {
+            resId = other.resId;
+            widgetResId = other.widgetResId;
+            clazz = other.clazz;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PreferenceLayout)) {
+                return false;
+            }
+            final PreferenceLayout other = (PreferenceLayout) o;
+            return resId == other.resId
+                    && widgetResId == other.widgetResId
+                    && clazz == other.clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 31 * result + resId;
+            result = 31 * result + widgetResId;
+            result = 31 * result + clazz.hashCode();
+            return result;
+        }
+    }
+
+    private PreferenceViewTypes() {
+    }
+
+    static PreferenceViewTypes getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the view type of the preference, registering a new one if its class and layouts
+     * have not been seen before. The result is cached in the preference until its layouts change.
+     */
+    int getViewType(Preference preference) {
+        final int cachedViewType = preference.getCachedViewType(this);
+        if (cachedViewType != RecyclerView.INVALID_TYPE) {
+            return cachedViewType;
+        }
+
+        final int viewType;
+        synchronized (this) {
+            mTempLayout.clazz = preference.getClass();
+            mTempLayout.resId = preference.getLayoutResource();
+            mTempLayout.widgetResId = preference.getWidgetLayoutResource();
+
+            final Integer existing = mViewTypes.get(mTempLayout);
+            if (existing != null) {
+                viewType = existing;
+            } else {
+                final PreferenceLayout pl = new PreferenceLayout(mTempLayout);
+                viewType = mLayouts.size();
+                mLayouts.add(pl);
+                mViewTypes.put(pl, viewType);
+            }
+        }
+        preference.setCachedViewType(this, viewType);
+        return viewType;
+    }
+
+    /**
+     * Returns the layouts of a view type returned by {@link #getViewType(Preference)}.
+     */
+    synchronized PreferenceLayout getLayout(int viewType) {
+        return mLayouts.get(viewType);
+    }
+}
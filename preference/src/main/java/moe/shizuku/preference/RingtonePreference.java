@@ -156,6 +156,24 @@ public class RingtonePreference extends Preference implements
         mShowSilent = showSilent;
     }
 
+    /**
+     * Returns the summary value shown when 'Silent' is picked.
+     *
+     * @return The summary value for 'Silent'.
+     */
+    public String getSummaryNone() {
+        return mSummaryNone;
+    }
+
+    /**
+     * Sets the summary value shown when 'Silent' is picked.
+     *
+     * @param summaryNone The summary value for 'Silent'.
+     */
+    public void setSummaryNone(String summaryNone) {
+        mSummaryNone = summaryNone;
+    }
+
     @Override
     protected void onClick() {
         // Launch the ringtone picker
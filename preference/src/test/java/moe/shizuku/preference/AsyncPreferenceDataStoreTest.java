@@ -0,0 +1,146 @@
+package moe.shizuku.preference;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class AsyncPreferenceDataStoreTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class TestDataStore extends AsyncPreferenceDataStore {
+
+        final Map<String, Object> mStorage = new HashMap<>();
+        boolean mFailLoad;
+        int mLoadCount;
+
+        TestDataStore() {
+            super(DIRECT_EXECUTOR);
+        }
+
+        @Override
+        protected Map<String, ?> onLoad(Set<String> keys) {
+            mLoadCount++;
+            if (mFailLoad) {
+                throw new IllegalStateException("Storage unavailable");
+            }
+            final Map<String, Object> values = new HashMap<>();
+            for (String key : keys) {
+                if (mStorage.containsKey(key)) {
+                    values.put(key, mStorage.get(key));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        protected void onWrite(String key, Object value) {
+            if (value != null) {
+                mStorage.put(key, value);
+            } else {
+                mStorage.remove(key);
+            }
+        }
+    }
+
+    private static class CountingRunnable implements Runnable {
+
+        int mRunCount;
+
+        @Override
+        public void run() {
+            mRunCount++;
+        }
+    }
+
+    @Test
+    public void requestsOfAFrameAreLoadedTogether() {
+        final TestDataStore dataStore = new TestDataStore();
+        dataStore.mStorage.put("a", 1);
+        dataStore.mStorage.put("b", "b");
+        final CountingRunnable callback = new CountingRunnable();
+
+        dataStore.preload(Collections.singleton("a"), callback);
+        dataStore.preload(Arrays.asList("b", "c"), callback);
+        assertFalse(dataStore.isLoaded("a"));
+        assertEquals(0, dataStore.getInt("a", 0));
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, dataStore.mLoadCount);
+        assertEquals(2, callback.mRunCount);
+        assertTrue(dataStore.isLoaded("a"));
+        assertTrue(dataStore.isLoaded("c"));
+        assertEquals(1, dataStore.getInt("a", 0));
+        assertEquals("b", dataStore.getString("b", null));
+        assertEquals("default", dataStore.getString("c", "default"));
+    }
+
+    @Test
+    public void loadedKeysAreNotLoadedAgain() {
+        final TestDataStore dataStore = new TestDataStore();
+        dataStore.preload(Collections.singleton("a"), null);
+        ShadowLooper.idleMainLooper();
+
+        final CountingRunnable callback = new CountingRunnable();
+        dataStore.preload(Collections.singleton("a"), callback);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, dataStore.mLoadCount);
+        assertEquals(1, callback.mRunCount);
+    }
+
+    @Test
+    public void failedLoadFallsBackToDefaults() {
+        final TestDataStore dataStore = new TestDataStore();
+        dataStore.mStorage.put("a", true);
+        dataStore.mFailLoad = true;
+        final CountingRunnable callback = new CountingRunnable();
+
+        dataStore.preload(Collections.singleton("a"), callback);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, callback.mRunCount);
+        assertTrue(dataStore.isLoaded("a"));
+        assertFalse(dataStore.getBoolean("a", false));
+    }
+
+    @Test
+    public void valueSetWhileLoadingIsKept() {
+        final TestDataStore dataStore = new TestDataStore();
+        dataStore.mStorage.put("a", 1);
+        dataStore.preload(Collections.singleton("a"), null);
+        dataStore.putInt("a", 2);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(2, dataStore.getInt("a", 0));
+        assertEquals(2, dataStore.mStorage.get("a"));
+    }
+
+    @Test
+    public void removedValueReturnsDefault() {
+        final TestDataStore dataStore = new TestDataStore();
+        dataStore.putString("a", "a");
+        assertTrue(dataStore.isLoaded("a"));
+        assertEquals("a", dataStore.getString("a", null));
+
+        dataStore.putString("a", null);
+        assertEquals("default", dataStore.getString("a", "default"));
+        assertFalse(dataStore.mStorage.containsKey("a"));
+    }
+}
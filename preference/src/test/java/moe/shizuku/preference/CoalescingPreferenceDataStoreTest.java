@@ -0,0 +1,166 @@
+package moe.shizuku.preference;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class CoalescingPreferenceDataStoreTest {
+
+    private static final long WINDOW_MILLIS = 500;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Counts the writes that reach it.
+     */
+    private static class TestDataStore extends PreferenceDataStore {
+
+        final Map<String, Object> mStorage = new HashMap<>();
+        int mWriteCount;
+
+        @Override
+        public void putString(String key, String value) {
+            mWriteCount++;
+            if (value != null) {
+                mStorage.put(key, value);
+            } else {
+                mStorage.remove(key);
+            }
+        }
+
+        @Override
+        public void putInt(String key, int value) {
+            mWriteCount++;
+            mStorage.put(key, value);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            final Object value = mStorage.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            final Object value = mStorage.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+    }
+
+    /**
+     * Runs the writes on the test thread once {@link #runAll()} is called.
+     */
+    private static class QueueExecutor implements Executor {
+
+        final List<Runnable> mCommands = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mCommands.add(command);
+        }
+
+        void runAll() {
+            for (Runnable command : mCommands) {
+                command.run();
+            }
+            mCommands.clear();
+        }
+    }
+
+    @Test
+    public void putsWithinWindowAreWrittenOnce() {
+        final TestDataStore wrapped = new TestDataStore();
+        final CoalescingPreferenceDataStore dataStore =
+                new CoalescingPreferenceDataStore(wrapped, WINDOW_MILLIS, DIRECT_EXECUTOR);
+
+        for (int i = 0; i < 5; i++) {
+            dataStore.putInt("key", i);
+        }
+        assertEquals(0, wrapped.mWriteCount);
+        assertEquals(4, dataStore.getInt("key", -1));
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, wrapped.mWriteCount);
+        assertEquals(4, wrapped.getInt("key", -1));
+        assertEquals(1, dataStore.getWriteCount());
+        assertEquals(4, dataStore.getCoalescedWriteCount());
+        assertEquals(1, dataStore.getFlushCount());
+        assertEquals(WINDOW_MILLIS, dataStore.getLastFlushLatency());
+        assertEquals(WINDOW_MILLIS, dataStore.getMaxFlushLatency());
+    }
+
+    @Test
+    public void putsOfDifferentKeysAreNotCoalesced() {
+        final TestDataStore wrapped = new TestDataStore();
+        final CoalescingPreferenceDataStore dataStore =
+                new CoalescingPreferenceDataStore(wrapped, WINDOW_MILLIS, DIRECT_EXECUTOR);
+
+        dataStore.putInt("a", 1);
+        dataStore.putString("b", "b");
+        dataStore.putString("c", null);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(3, wrapped.mWriteCount);
+        assertEquals(3, dataStore.getWriteCount());
+        assertEquals(0, dataStore.getCoalescedWriteCount());
+        assertEquals(1, dataStore.getFlushCount());
+    }
+
+    @Test
+    public void valuesBeingWrittenAreRead() {
+        final TestDataStore wrapped = new TestDataStore();
+        wrapped.mStorage.put("key", "old");
+        final QueueExecutor executor = new QueueExecutor();
+        final CoalescingPreferenceDataStore dataStore =
+                new CoalescingPreferenceDataStore(wrapped, WINDOW_MILLIS, executor);
+
+        dataStore.putString("key", "new");
+        dataStore.flush();
+        assertEquals("old", wrapped.getString("key", null));
+        assertEquals("new", dataStore.getString("key", null));
+
+        // Put again while the first flush is still writing
+        dataStore.putString("key", null);
+        assertNull(dataStore.getString("key", null));
+        dataStore.flush();
+
+        executor.runAll();
+        assertFalse(wrapped.mStorage.containsKey("key"));
+        assertNull(dataStore.getString("key", null));
+        assertEquals(2, dataStore.getWriteCount());
+        assertEquals(2, dataStore.getFlushCount());
+    }
+
+    @Test
+    public void flushWritesWithoutWaitingForWindow() {
+        final TestDataStore wrapped = new TestDataStore();
+        final CoalescingPreferenceDataStore dataStore =
+                new CoalescingPreferenceDataStore(wrapped, WINDOW_MILLIS, DIRECT_EXECUTOR);
+
+        dataStore.putInt("key", 1);
+        dataStore.flush();
+        assertEquals(1, wrapped.getInt("key", -1));
+        assertEquals(0, dataStore.getLastFlushLatency());
+
+        // Nothing is left for the end of the window
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, wrapped.mWriteCount);
+        assertEquals(1, dataStore.getFlushCount());
+    }
+}
@@ -0,0 +1,149 @@
+package moe.shizuku.preference;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryPreferenceDataStoreTest {
+
+    /**
+     * A data store without {@link PreferenceDataStore#getAll()}, counting its reads.
+     */
+    private static class CountingDataStore extends PreferenceDataStore {
+
+        final Map<String, Object> mValues = new HashMap<>();
+        int mReadCount;
+
+        @Override
+        public void putString(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public void putInt(String key, int value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public void putBoolean(String key, boolean value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            mReadCount++;
+            final String value = (String) mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            mReadCount++;
+            final Set<String> values = (Set<String>) mValues.get(key);
+            return values != null ? values : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            mReadCount++;
+            final Integer value = (Integer) mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            mReadCount++;
+            final Float value = (Float) mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            mReadCount++;
+            final Boolean value = (Boolean) mValues.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Test
+    public void valuesArePutAndRemoved() {
+        final InMemoryPreferenceDataStore dataStore = new InMemoryPreferenceDataStore();
+        for (int i = 0; i < 100; i++) {
+            dataStore.putInt("int" + i, i);
+            dataStore.putString("string" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            dataStore.putString("string" + i, null);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, dataStore.getInt("int" + i, -1));
+            assertEquals(i % 2 == 0 ? null : "value" + i, dataStore.getString("string" + i, null));
+        }
+        assertEquals(150, dataStore.getAll().size());
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void getterOfAnotherTypeThrows() {
+        final InMemoryPreferenceDataStore dataStore = new InMemoryPreferenceDataStore();
+        dataStore.putInt("int", 1);
+        dataStore.getLong("int", 0);
+    }
+
+    @Test
+    public void readThroughValuesAreKept() {
+        final CountingDataStore backing = new CountingDataStore();
+        backing.mValues.put("string", "value");
+        backing.mValues.put("int", 0);
+        backing.mValues.put("boolean", true);
+        final InMemoryPreferenceDataStore dataStore = new InMemoryPreferenceDataStore(backing);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("value", dataStore.getString("string", null));
+            assertEquals(0, dataStore.getInt("int", 0));
+            assertTrue(dataStore.getBoolean("boolean", false));
+        }
+        // A value equal to the default value takes a second read to tell it exists
+        assertEquals(4, backing.mReadCount);
+        assertEquals(3, dataStore.getAll().size());
+    }
+
+    @Test
+    public void absentKeysAreNotReadAgain() {
+        final CountingDataStore backing = new CountingDataStore();
+        final InMemoryPreferenceDataStore dataStore = new InMemoryPreferenceDataStore(backing);
+
+        for (int i = 0; i < 3; i++) {
+            assertNull(dataStore.getString("string", null));
+            assertEquals(Collections.singleton("default"),
+                    dataStore.getStringSet("set", Collections.singleton("default")));
+            assertEquals(i, dataStore.getInt("int", i));
+            assertEquals(i, dataStore.getFloat("float", i), 0);
+            assertEquals(i % 2 == 0, dataStore.getBoolean("boolean", i % 2 == 0));
+        }
+        assertEquals(2 + 3 * 2, backing.mReadCount);
+        assertTrue(dataStore.getAll().isEmpty());
+    }
+
+    @Test
+    public void putValuesAreNotReadThrough() {
+        final CountingDataStore backing = new CountingDataStore();
+        final InMemoryPreferenceDataStore dataStore = new InMemoryPreferenceDataStore(backing);
+
+        dataStore.putInt("int", 1);
+        dataStore.putString("string", "value");
+        dataStore.putString("string", null);
+        assertEquals(1, dataStore.getInt("int", 0));
+        assertEquals("default", dataStore.getString("string", "default"));
+        assertEquals(0, backing.mReadCount);
+        assertEquals(1, backing.mValues.get("int"));
+        assertNull(backing.mValues.get("string"));
+    }
+}
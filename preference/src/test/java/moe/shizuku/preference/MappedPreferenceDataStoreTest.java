@@ -0,0 +1,223 @@
+package moe.shizuku.preference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class MappedPreferenceDataStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File newFile() {
+        return new File(mFolder.getRoot(), "preferences.log");
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws IOException {
+        final File file = newFile();
+        final Set<String> set = new HashSet<>(Arrays.asList("a", "b", "\u00fc"));
+        MappedPreferenceDataStore dataStore = new MappedPreferenceDataStore(file);
+        dataStore.putString("string", "value");
+        dataStore.putStringSet("set", set);
+        dataStore.putInt("int", 1);
+        dataStore.putLong("long", 1L << 40);
+        dataStore.putFloat("float", 1.5f);
+        dataStore.putBoolean("boolean", true);
+        dataStore.putString("removed", "value");
+        dataStore.putString("removed", null);
+        dataStore.close();
+
+        dataStore = new MappedPreferenceDataStore(file);
+        assertEquals("value", dataStore.getString("string", null));
+        assertEquals(set, dataStore.getStringSet("set", null));
+        assertEquals(1, dataStore.getInt("int", 0));
+        assertEquals(1L << 40, dataStore.getLong("long", 0));
+        assertEquals(1.5f, dataStore.getFloat("float", 0), 0);
+        assertTrue(dataStore.getBoolean("boolean", false));
+        assertNull(dataStore.getString("removed", null));
+        assertEquals(6, dataStore.getAll().size());
+        dataStore.close();
+    }
+
+    @Test
+    public void unrecognizedFileIsDiscarded() throws IOException {
+        final File file = newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("not a log".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        MappedPreferenceDataStore dataStore = new MappedPreferenceDataStore(file);
+        assertTrue(dataStore.getAll().isEmpty());
+        dataStore.putInt("int", 1);
+        dataStore.close();
+
+        dataStore = new MappedPreferenceDataStore(file);
+        assertEquals(1, dataStore.getInt("int", 0));
+        dataStore.close();
+    }
+
+    @Test
+    public void outdatedRecordsAreCompacted() throws IOException {
+        final File file = newFile();
+        MappedPreferenceDataStore dataStore = new MappedPreferenceDataStore(file);
+        for (int i = 0; i < 100000; i++) {
+            dataStore.putInt("int" + i % 10, i);
+        }
+        // Compacted whenever a 64 KB log is full
+        assertTrue(file.length() <= 64 * 1024);
+        dataStore.close();
+
+        dataStore = new MappedPreferenceDataStore(file);
+        assertEquals(10, dataStore.getAll().size());
+        assertEquals(99999, dataStore.getInt("int9", 0));
+        dataStore.close();
+    }
+
+    @Test
+    public void failedCompactionKeepsPreviousValues() throws IOException {
+        final File file = newFile();
+        // Compaction writes the new log to this path first
+        assertTrue(new File(file.getPath() + ".tmp").mkdir());
+
+        MappedPreferenceDataStore dataStore = new MappedPreferenceDataStore(file);
+        for (int i = 0; i < 100000; i++) {
+            dataStore.putInt("int" + i % 10, i);
+        }
+        assertFalse(dataStore.getInt("int9", 0) == 99999);
+        final Map<String, ?> values = dataStore.getAll();
+        dataStore.close();
+
+        dataStore = new MappedPreferenceDataStore(file);
+        assertEquals(values, dataStore.getAll());
+        dataStore.close();
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void getterOfAnotherTypeThrows() throws IOException {
+        final MappedPreferenceDataStore dataStore = new MappedPreferenceDataStore(newFile());
+        try {
+            dataStore.putInt("int", 1);
+            dataStore.getString("int", null);
+        } finally {
+            dataStore.close();
+        }
+    }
+
+    /**
+     * Collects the keys reported as changed by other processes.
+     */
+    private static class KeyCollector implements MappedPreferenceDataStore.OnChangeListener {
+
+        final List<String> mKeys = new ArrayList<>();
+
+        @Override
+        public void onValueChanged(MappedPreferenceDataStore dataStore, String key) {
+            mKeys.add(key);
+        }
+    }
+
+    // Two instances in multi-process mode stand for two processes, the file locks are only taken
+    // one at a time by the test
+
+    @Test
+    public void multiProcessChangesAreSeenByOtherInstance() throws IOException {
+        final File file = newFile();
+        final MappedPreferenceDataStore first = new MappedPreferenceDataStore(file, true);
+        final MappedPreferenceDataStore second = new MappedPreferenceDataStore(file, true);
+        try {
+            first.putString("string", "value");
+            assertEquals("value", second.getString("string", null));
+
+            second.putInt("int", 1);
+            second.putString("string", null);
+            assertEquals(1, first.getInt("int", 0));
+            assertNull(first.getString("string", null));
+            assertEquals(first.getAll(), second.getAll());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void multiProcessCompactionIsFollowedByOtherInstance() throws IOException {
+        final File file = newFile();
+        final MappedPreferenceDataStore first = new MappedPreferenceDataStore(file, true);
+        final MappedPreferenceDataStore second = new MappedPreferenceDataStore(file, true);
+        try {
+            second.putString("other", "value");
+            assertEquals("value", first.getString("other", null));
+
+            // Compacted whenever a 64 KB log is full, which replaces the file
+            for (int i = 0; i < 100000; i++) {
+                first.putInt("int" + i % 10, i);
+            }
+            assertTrue(file.length() <= 64 * 1024);
+
+            assertEquals(99999, second.getInt("int9", 0));
+            assertEquals("value", second.getString("other", null));
+            assertEquals(11, second.getAll().size());
+
+            // Writes of the instance that reopened the file reach the other one
+            second.putInt("int0", -1);
+            assertEquals(-1, first.getInt("int0", 0));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void multiProcessChangesAreReportedToListeners() throws IOException {
+        final File file = newFile();
+        final MappedPreferenceDataStore first = new MappedPreferenceDataStore(file, true);
+        final MappedPreferenceDataStore second = new MappedPreferenceDataStore(file, true);
+        final KeyCollector firstKeys = new KeyCollector();
+        final KeyCollector secondKeys = new KeyCollector();
+        first.registerOnChangeListener(firstKeys);
+        second.registerOnChangeListener(secondKeys);
+        try {
+            first.putString("a", "a");
+            first.putInt("b", 1);
+            second.getAll();
+            ShadowLooper.idleMainLooper();
+            Collections.sort(secondKeys.mKeys);
+            assertEquals(Arrays.asList("a", "b"), secondKeys.mKeys);
+            // Own changes are not reported
+            assertTrue(firstKeys.mKeys.isEmpty());
+
+            second.putString("a", null);
+            first.getAll();
+            ShadowLooper.idleMainLooper();
+            assertEquals(Collections.singletonList("a"), firstKeys.mKeys);
+            assertEquals(2, secondKeys.mKeys.size());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
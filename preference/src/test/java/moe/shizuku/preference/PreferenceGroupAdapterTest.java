@@ -0,0 +1,486 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceGroupAdapterTest {
+
+    private Context mContext;
+    private PreferenceScreen mScreen;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mScreen = new PreferenceManager(mContext).createPreferenceScreen(mContext);
+    }
+
+    private Preference addPreference(PreferenceGroup group, String key) {
+        final Preference preference = new Preference(mContext);
+        preference.setKey(key);
+        preference.setPersistent(false);
+        group.addPreference(preference);
+        return preference;
+    }
+
+    private PreferenceCategory addCategory(PreferenceGroup group, String key) {
+        final PreferenceCategory category = new PreferenceCategory(mContext);
+        category.setKey(key);
+        group.addPreference(category);
+        return category;
+    }
+
+    private PagedPreferenceGroup addPagedGroup(PreferenceGroup group, String key,
+                                               String itemKeyPrefix, int itemCount) {
+        final PagedPreferenceGroup pagedGroup =
+                new TestPagedPreferenceGroup(mContext, itemKeyPrefix, itemCount);
+        pagedGroup.setKey(key);
+        group.addPreference(pagedGroup);
+        return pagedGroup;
+    }
+
+    private PreferenceGroupAdapter createAdapter() {
+        final PreferenceGroupAdapter adapter = new PreferenceGroupAdapter(mScreen);
+        ShadowLooper.idleMainLooper();
+        return adapter;
+    }
+
+    /**
+     * Checks the indexed positions of every row against the rows themselves.
+     */
+    private static void assertPositionsConsistent(PreferenceGroupAdapter adapter) {
+        for (int i = 0; i < adapter.getItemCount(); i++) {
+            final Preference preference = adapter.getItem(i);
+            assertEquals(i, adapter.getPreferenceAdapterPosition(preference));
+            assertEquals(i, adapter.getPreferenceAdapterPosition(preference.getKey()));
+        }
+    }
+
+    /**
+     * Applies the range events of an adapter to a copy of its rows, so that the rows it ends up
+     * with can be checked against a full re-flatten of the hierarchy.
+     */
+    private static class RangeRecorder extends RecyclerView.AdapterDataObserver {
+
+        /**
+         * The rows as told by the events, with null for inserted rows.
+         */
+        final List<Preference> mRows = new ArrayList<>();
+        boolean mDataSetChanged;
+
+        RangeRecorder(PreferenceGroupAdapter adapter) {
+            for (int i = 0; i < adapter.getItemCount(); i++) {
+                mRows.add(adapter.getItem(i));
+            }
+            adapter.registerAdapterDataObserver(this);
+        }
+
+        @Override
+        public void onChanged() {
+            mDataSetChanged = true;
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            for (int i = 0; i < itemCount; i++) {
+                mRows.add(positionStart, null);
+            }
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            mRows.subList(positionStart, positionStart + itemCount).clear();
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            for (int i = 0; i < itemCount; i++) {
+                mRows.add(toPosition + i, mRows.remove(fromPosition + i));
+            }
+        }
+    }
+
+    /**
+     * Flattens the visible descendants of a group the way the adapter shows them.
+     */
+    private static void flatten(PreferenceGroup group, List<Preference> preferences) {
+        for (int i = 0; i < group.getPreferenceCount(); i++) {
+            final Preference preference = group.getPreference(i);
+            if (preference.isVisible()) {
+                preferences.add(preference);
+            }
+            if (preference instanceof PreferenceGroup
+                    && ((PreferenceGroup) preference).isOnSameScreenAsChildren()) {
+                flatten((PreferenceGroup) preference, preferences);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of descendants of a group, visible or not, the adapter flattens.
+     */
+    private static int countDescendants(PreferenceGroup group) {
+        int count = group.getPreferenceCount();
+        for (int i = 0; i < group.getPreferenceCount(); i++) {
+            final Preference preference = group.getPreference(i);
+            if (preference instanceof PreferenceGroup
+                    && ((PreferenceGroup) preference).isOnSameScreenAsChildren()) {
+                count += countDescendants((PreferenceGroup) preference);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks that the events recorded so far turn the old rows into those of a full re-flatten,
+     * leaving the rows that stayed in place, and that the sizes of the given groups are right.
+     */
+    private void assertRangesMatch(PreferenceGroupAdapter adapter, RangeRecorder recorder,
+                                   PreferenceGroup... groups) {
+        ShadowLooper.idleMainLooper();
+        assertFalse(recorder.mDataSetChanged);
+
+        final List<Preference> expected = new ArrayList<>();
+        flatten(mScreen, expected);
+        assertEquals(expected.size(), adapter.getItemCount());
+        assertEquals(expected.size(), recorder.mRows.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), adapter.getItem(i));
+            final Preference row = recorder.mRows.get(i);
+            if (row != null) {
+                assertSame(expected.get(i), row);
+            } else {
+                recorder.mRows.set(i, expected.get(i));
+            }
+        }
+        assertPositionsConsistent(adapter);
+
+        assertEquals(countDescendants(mScreen), adapter.getSubtreeSize(mScreen));
+        for (PreferenceGroup group : groups) {
+            assertEquals(group.getKey(), countDescendants(group), adapter.getSubtreeSize(group));
+        }
+    }
+
+    private void checkNestedChanges() {
+        final PreferenceCategory outer = addCategory(mScreen, "outer");
+        final Preference a = addPreference(outer, "a");
+        addPreference(outer, "b");
+        final PreferenceCategory inner = addCategory(outer, "inner");
+        addPreference(inner, "c");
+        addPreference(inner, "d");
+        final PreferenceCategory other = addCategory(mScreen, "other");
+        final Preference e = addPreference(other, "e");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        final RangeRecorder recorder = new RangeRecorder(adapter);
+
+        addPreference(inner, "f");
+        assertRangesMatch(adapter, recorder, outer, inner, other);
+
+        outer.removePreference(a);
+        assertRangesMatch(adapter, recorder, outer, inner, other);
+
+        final PreferenceCategory added = addCategory(mScreen, "added");
+        addPreference(added, "g");
+        assertRangesMatch(adapter, recorder, outer, inner, other, added);
+
+        other.removePreference(e);
+        addPreference(inner, "h");
+        assertRangesMatch(adapter, recorder, outer, inner, other, added);
+
+        mScreen.removePreference(outer);
+        assertRangesMatch(adapter, recorder, other, added);
+        assertEquals(-1, adapter.getSubtreeSize(inner));
+    }
+
+    @Test
+    public void nestedChangesDispatchExactRanges() {
+        checkNestedChanges();
+    }
+
+    @Test
+    public void nestedChangesDispatchExactRangesWithComparisonCallback() {
+        mScreen.getPreferenceManager().setPreferenceComparisonCallback(
+                new PreferenceManager.SimplePreferenceComparisonCallback());
+        checkNestedChanges();
+    }
+
+    @Test
+    public void movingGroupBetweenParentsKeepsSubtreeSizes() {
+        final PreferenceCategory first = addCategory(mScreen, "first");
+        addPreference(first, "a");
+        final PreferenceCategory moved = addCategory(first, "moved");
+        addPreference(moved, "b");
+        addPreference(moved, "c");
+        final PreferenceCategory second = addCategory(mScreen, "second");
+        addPreference(second, "d");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        final RangeRecorder recorder = new RangeRecorder(adapter);
+
+        first.removePreference(moved);
+        second.addPreference(moved);
+        assertRangesMatch(adapter, recorder, first, second, moved);
+        assertEquals(1, adapter.getSubtreeSize(first));
+        assertEquals(4, adapter.getSubtreeSize(second));
+
+        addPreference(moved, "e");
+        assertRangesMatch(adapter, recorder, first, second, moved);
+        assertEquals(5, adapter.getSubtreeSize(second));
+    }
+
+    @Test
+    public void positionsFollowVisibilityChanges() {
+        final Preference[] preferences = new Preference[10];
+        for (int i = 0; i < preferences.length; i++) {
+            preferences[i] = addPreference(mScreen, "key" + i);
+        }
+        final PreferenceGroupAdapter adapter = createAdapter();
+        assertPositionsConsistent(adapter);
+
+        preferences[3].setVisible(false);
+        assertEquals(9, adapter.getItemCount());
+        assertEquals(RecyclerView.NO_POSITION, adapter.getPreferenceAdapterPosition("key3"));
+        assertEquals(RecyclerView.NO_POSITION,
+                adapter.getPreferenceAdapterPosition(preferences[3]));
+        assertEquals(3, adapter.getPreferenceAdapterPosition("key4"));
+        assertPositionsConsistent(adapter);
+
+        preferences[0].setVisible(false);
+        preferences[9].setVisible(false);
+        assertEquals(7, adapter.getItemCount());
+        assertEquals(0, adapter.getPreferenceAdapterPosition(preferences[1]));
+        assertPositionsConsistent(adapter);
+
+        preferences[3].setVisible(true);
+        preferences[0].setVisible(true);
+        preferences[9].setVisible(true);
+        assertEquals(10, adapter.getItemCount());
+        for (int i = 0; i < preferences.length; i++) {
+            assertEquals(i, adapter.getPreferenceAdapterPosition(preferences[i]));
+        }
+        assertPositionsConsistent(adapter);
+    }
+
+    @Test
+    public void duplicateKeyResolvesToFirstVisible() {
+        final Preference first = addPreference(mScreen, "duplicate");
+        addPreference(mScreen, "other");
+        addPreference(mScreen, "duplicate");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        assertEquals(0, adapter.getPreferenceAdapterPosition("duplicate"));
+
+        first.setVisible(false);
+        assertEquals(1, adapter.getPreferenceAdapterPosition("duplicate"));
+
+        first.setVisible(true);
+        assertEquals(0, adapter.getPreferenceAdapterPosition("duplicate"));
+    }
+
+    @Test
+    public void keySetAfterIndexIsBuiltIsFound() {
+        addPreference(mScreen, "first");
+        final Preference late = addPreference(mScreen, null);
+        final PreferenceGroupAdapter adapter = createAdapter();
+        assertEquals(RecyclerView.NO_POSITION, adapter.getPreferenceAdapterPosition("late"));
+
+        late.setKey("late");
+        assertEquals(1, adapter.getPreferenceAdapterPosition("late"));
+    }
+
+    @Test
+    public void changedKeyIsFound() {
+        final Preference preference = addPreference(mScreen, "before");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        assertEquals(0, adapter.getPreferenceAdapterPosition("before"));
+
+        preference.setKey("after");
+        assertEquals(0, adapter.getPreferenceAdapterPosition("after"));
+        assertEquals(RecyclerView.NO_POSITION, adapter.getPreferenceAdapterPosition("before"));
+    }
+
+    @Test
+    public void backgroundDiffKeepsOldListUntilDelivered() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final PreferenceManager manager = mScreen.getPreferenceManager();
+        manager.setPreferenceComparisonCallback(
+                new PreferenceManager.SimplePreferenceComparisonCallback());
+        manager.setPreferenceComparisonExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        addPreference(mScreen, "a");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        assertEquals(1, adapter.getItemCount());
+
+        addPreference(mScreen, "b");
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, tasks.size());
+        assertEquals(1, adapter.getItemCount());
+
+        tasks.get(0).run();
+        ShadowLooper.idleMainLooper();
+        assertEquals(2, adapter.getItemCount());
+        assertPositionsConsistent(adapter);
+    }
+
+    @Test
+    public void supersededBackgroundDiffIsDropped() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final PreferenceManager manager = mScreen.getPreferenceManager();
+        manager.setPreferenceComparisonCallback(
+                new PreferenceManager.SimplePreferenceComparisonCallback());
+        manager.setPreferenceComparisonExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        addPreference(mScreen, "a");
+        final PreferenceGroupAdapter adapter = createAdapter();
+
+        addPreference(mScreen, "b");
+        ShadowLooper.idleMainLooper();
+        addPreference(mScreen, "c");
+        ShadowLooper.idleMainLooper();
+        assertEquals(2, tasks.size());
+
+        // Delivered out of order, the first result is older than the list shown by then
+        tasks.get(1).run();
+        ShadowLooper.idleMainLooper();
+        assertEquals(3, adapter.getItemCount());
+        tasks.get(0).run();
+        ShadowLooper.idleMainLooper();
+        assertEquals(3, adapter.getItemCount());
+        assertPositionsConsistent(adapter);
+    }
+
+    @Test
+    public void changesOfAFrameAreCoalesced() {
+        final Preference[] preferences = new Preference[5];
+        for (int i = 0; i < preferences.length; i++) {
+            preferences[i] = addPreference(mScreen, "key" + i);
+        }
+        final PreferenceGroupAdapter adapter = createAdapter();
+        adapter.onAttachedToRecyclerView(new RecyclerView(mContext));
+
+        preferences[0].notifyChanged();
+        preferences[1].notifyChanged();
+        preferences[1].notifyChanged();
+        preferences[3].notifyChanged();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(4, adapter.getChangeNotificationCount());
+        // Rows 0 and 1, and row 3
+        assertEquals(2, adapter.getChangeDispatchCount());
+    }
+
+    @Test
+    public void changesAreNotDispatchedWhileDetached() {
+        final Preference preference = addPreference(mScreen, "key");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        final RecyclerView list = new RecyclerView(mContext);
+        adapter.onAttachedToRecyclerView(list);
+
+        preference.notifyChanged();
+        adapter.onDetachedFromRecyclerView(list);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(0, adapter.getChangeDispatchCount());
+
+        preference.notifyChanged();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(0, adapter.getChangeDispatchCount());
+
+        adapter.onAttachedToRecyclerView(list);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, adapter.getChangeDispatchCount());
+    }
+
+    @Test
+    public void titleChangeThatMovesPreferenceUpdatesRows() {
+        mScreen.setOrderingAsAdded(false);
+        final Preference a = addPreference(mScreen, "a");
+        a.setTitle("A");
+        final Preference b = addPreference(mScreen, "b");
+        b.setTitle("B");
+        final PreferenceGroupAdapter adapter = createAdapter();
+        assertEquals(0, adapter.getPreferenceAdapterPosition(a));
+
+        a.setTitle("C");
+        ShadowLooper.idleMainLooper();
+        assertEquals(0, adapter.getPreferenceAdapterPosition(b));
+        assertEquals(1, adapter.getPreferenceAdapterPosition(a));
+        assertPositionsConsistent(adapter);
+    }
+
+    @Test
+    public void pagedItemsFollowTheirGroups() {
+        addPreference(mScreen, "a");
+        addPagedGroup(mScreen, "paged1", "x", 3);
+        final Preference b = addPreference(mScreen, "b");
+        addPagedGroup(mScreen, "paged2", "y", 2);
+        addPreference(mScreen, "c");
+        final PreferenceGroupAdapter adapter = createAdapter();
+
+        final String[] keys = {"a", "paged1", "x0", "x1", "x2", "b", "paged2", "y0", "y1", "c"};
+        assertEquals(keys.length, adapter.getItemCount());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], adapter.getItem(i).getKey());
+        }
+        assertPositionsConsistent(adapter);
+
+        b.setVisible(false);
+        assertEquals(keys.length - 1, adapter.getItemCount());
+        assertEquals(RecyclerView.NO_POSITION, adapter.getPreferenceAdapterPosition("b"));
+        assertEquals(5, adapter.getPreferenceAdapterPosition("paged2"));
+        assertEquals(7, adapter.getPreferenceAdapterPosition("y1"));
+        assertPositionsConsistent(adapter);
+    }
+
+    @Test
+    public void removingLastPagedGroupRestoresRangeUpdates() {
+        addPreference(mScreen, "a");
+        final PagedPreferenceGroup pagedGroup = addPagedGroup(mScreen, "paged", "x", 3);
+        final PreferenceGroupAdapter adapter = createAdapter();
+        final int[] counts = new int[2];
+        adapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                counts[0]++;
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                counts[1]++;
+            }
+        });
+
+        mScreen.removePreference(pagedGroup);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, adapter.getItemCount());
+        // The rows of the items were still shown
+        assertEquals(1, counts[0]);
+
+        addPreference(mScreen, "b");
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        assertPositionsConsistent(adapter);
+    }
+}
@@ -0,0 +1,131 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceGroupTest {
+
+    private Context mContext;
+    private PreferenceScreen mScreen;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mScreen = new PreferenceManager(mContext).createPreferenceScreen(mContext);
+    }
+
+    private Preference addPreference(PreferenceGroup group, String key) {
+        final Preference preference = new Preference(mContext);
+        preference.setKey(key);
+        preference.setPersistent(false);
+        group.addPreference(preference);
+        return preference;
+    }
+
+    private PreferenceCategory addCategory(PreferenceGroup group, String key) {
+        final PreferenceCategory category = new PreferenceCategory(mContext);
+        category.setKey(key);
+        category.setPersistent(false);
+        group.addPreference(category);
+        return category;
+    }
+
+    @Test
+    public void duplicateKeyIsPrunedWhenRemoved() {
+        final Preference first = addPreference(mScreen, "duplicate");
+        final Preference second = addPreference(mScreen, "duplicate");
+        assertEquals(1, mScreen.getDuplicateKeyCount());
+        assertSame(first, mScreen.findPreference("duplicate"));
+
+        mScreen.removePreference(first);
+        assertEquals(0, mScreen.getDuplicateKeyCount());
+        assertSame(second, mScreen.findPreference("duplicate"));
+
+        mScreen.removePreference(second);
+        assertNull(mScreen.findPreference("duplicate"));
+    }
+
+    @Test
+    public void duplicateKeyIsPrunedWhenChanged() {
+        final Preference first = addPreference(mScreen, "duplicate");
+        final Preference second = addPreference(mScreen, "duplicate");
+        final Preference third = addPreference(mScreen, "duplicate");
+        assertEquals(1, mScreen.getDuplicateKeyCount());
+
+        first.setKey("first");
+        assertEquals(1, mScreen.getDuplicateKeyCount());
+        assertSame(second, mScreen.findPreference("duplicate"));
+
+        second.setKey("second");
+        assertEquals(0, mScreen.getDuplicateKeyCount());
+        assertSame(third, mScreen.findPreference("duplicate"));
+        assertSame(first, mScreen.findPreference("first"));
+        assertSame(second, mScreen.findPreference("second"));
+    }
+
+    @Test
+    public void duplicatesInsideRemovedSubtreeArePruned() {
+        final Preference outside = addPreference(mScreen, "duplicate");
+        final PreferenceCategory category = addCategory(mScreen, "category");
+        addPreference(category, "duplicate");
+        addPreference(category, "duplicate");
+        assertEquals(1, category.getDuplicateKeyCount());
+        assertEquals(1, mScreen.getDuplicateKeyCount());
+
+        mScreen.removePreference(category);
+        assertEquals(0, mScreen.getDuplicateKeyCount());
+        assertSame(outside, mScreen.findPreference("duplicate"));
+        assertNull(mScreen.findPreference("category"));
+
+        mScreen.addPreference(category);
+        assertEquals(1, mScreen.getDuplicateKeyCount());
+        assertSame(outside, mScreen.findPreference("duplicate"));
+    }
+
+    @Test
+    public void removeAllClearsTheIndex() {
+        addPreference(mScreen, "duplicate");
+        addPreference(mScreen, "duplicate");
+        addPreference(mScreen, "other");
+
+        mScreen.removeAll();
+        assertEquals(0, mScreen.getDuplicateKeyCount());
+        assertNull(mScreen.findPreference("duplicate"));
+        assertNull(mScreen.findPreference("other"));
+    }
+
+    @Test
+    public void titleChangeMovesPreference() {
+        mScreen.setOrderingAsAdded(false);
+        final Preference a = addPreference(mScreen, "a");
+        a.setTitle("A");
+        final Preference b = addPreference(mScreen, "b");
+        b.setTitle("B");
+        final Preference c = addPreference(mScreen, "c");
+        c.setTitle("C");
+        assertSame(a, mScreen.getPreference(0));
+
+        a.setTitle("D");
+        b.setTitle("E");
+        assertSame(c, mScreen.getPreference(0));
+        assertSame(a, mScreen.getPreference(1));
+        assertSame(b, mScreen.getPreference(2));
+
+        // Sorted again before a new preference is inserted
+        c.setTitle("F");
+        final Preference d = addPreference(mScreen, "d");
+        d.setTitle("A");
+        assertSame(d, mScreen.getPreference(0));
+        assertSame(c, mScreen.getPreference(3));
+    }
+}
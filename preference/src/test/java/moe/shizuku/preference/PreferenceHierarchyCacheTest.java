@@ -0,0 +1,149 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.util.AttributeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceHierarchyCacheTest {
+
+    /**
+     * Not an XML resource, so only the cache can build a hierarchy for it.
+     */
+    private static final int RES_ID = 0x7f7f0001;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private Context mContext;
+    private PreferenceManager mPreferenceManager;
+    private PreferenceHierarchyCache mCache;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mPreferenceManager = new PreferenceManager(mContext);
+        mCache = new PreferenceHierarchyCache(mContext, DIRECT_EXECUTOR);
+        mCache.delete(RES_ID);
+    }
+
+    /**
+     * Constructs a preference the way the inflater does, and records its description under the
+     * given parent.
+     */
+    private Preference record(Preference preference, AttributeSet attrs,
+                              PreferenceHierarchyCache.Node parentNode) {
+        final PreferenceHierarchyCache.Node node =
+                PreferenceHierarchyCache.record(preference, attrs);
+        assertNotNull(node);
+        parentNode.children.add(node);
+        return preference;
+    }
+
+    @Test
+    public void rebuiltHierarchyEqualsRecordedHierarchy() {
+        final AttributeSet screenAttrs = Robolectric.buildAttributeSet()
+                .addAttribute(R.attr.key, "screen")
+                .addAttribute(R.attr.title, "Screen")
+                .build();
+        final PreferenceScreen screen = new PreferenceScreen(mContext, screenAttrs);
+        final PreferenceHierarchyCache.Node root = PreferenceHierarchyCache.record(screen,
+                screenAttrs);
+        assertNotNull(root);
+
+        final AttributeSet categoryAttrs = Robolectric.buildAttributeSet()
+                .addAttribute(R.attr.key, "category")
+                .addAttribute(R.attr.title, "Category")
+                .addAttribute(R.attr.order, "3")
+                .build();
+        final PreferenceCategory category = (PreferenceCategory) record(
+                new PreferenceCategory(mContext, categoryAttrs), categoryAttrs, root);
+        final PreferenceHierarchyCache.Node categoryNode = root.children.get(0);
+
+        final AttributeSet checkBoxAttrs = Robolectric.buildAttributeSet()
+                .addAttribute(R.attr.key, "check")
+                .addAttribute(R.attr.title, "Check")
+                .addAttribute(R.attr.summary, "Summary")
+                .addAttribute(R.attr.defaultValue, "true")
+                .addAttribute(R.attr.dependency, "screen")
+                .build();
+        final Preference checkBox = record(new CheckBoxPreference(mContext, checkBoxAttrs),
+                checkBoxAttrs, categoryNode);
+
+        final AttributeSet preferenceAttrs = Robolectric.buildAttributeSet()
+                .addAttribute(R.attr.key, "plain")
+                .addAttribute(R.attr.title, "Plain")
+                .addAttribute(R.attr.enabled, "false")
+                .addAttribute(R.attr.selectable, "false")
+                .addAttribute(R.attr.persistent, "false")
+                .addAttribute(R.attr.fragment, "moe.shizuku.Fragment")
+                .addAttribute(R.attr.singleLineTitle, "false")
+                .addAttribute(R.attr.iconSpaceReserved, "true")
+                .build();
+        final Preference preference = record(new Preference(mContext, preferenceAttrs),
+                preferenceAttrs, categoryNode);
+
+        mCache.write(RES_ID, root);
+
+        final PreferenceScreen rebuilt = (PreferenceScreen) new PreferenceInflater(
+                mContext, mPreferenceManager).inflate(RES_ID, null, mCache);
+        assertPreferenceEquals(screen, rebuilt);
+        assertEquals(1, rebuilt.getPreferenceCount());
+        final PreferenceCategory rebuiltCategory = (PreferenceCategory) rebuilt.getPreference(0);
+        assertPreferenceEquals(category, rebuiltCategory);
+        assertEquals(2, rebuiltCategory.getPreferenceCount());
+        assertPreferenceEquals(checkBox, rebuiltCategory.getPreference(0));
+        assertPreferenceEquals(preference, rebuiltCategory.getPreference(1));
+    }
+
+    @Test
+    public void uncacheableResourcesAreMarked() {
+        mCache.write(RES_ID, null);
+        assertSame(PreferenceHierarchyCache.UNCACHEABLE, mCache.read(RES_ID));
+    }
+
+    @Test
+    public void deletedResourcesAreNotCached() {
+        mCache.write(RES_ID, null);
+        mCache.delete(RES_ID);
+        assertNull(mCache.read(RES_ID));
+    }
+
+    private static void assertPreferenceEquals(Preference expected, Preference actual) {
+        final String path = expected.getKey();
+        assertEquals(path, expected.getClass(), actual.getClass());
+        assertEquals(path, expected.getKey(), actual.getKey());
+        assertEquals(path, str(expected.getTitle()), str(actual.getTitle()));
+        assertEquals(path, str(expected.getSummary()), str(actual.getSummary()));
+        assertEquals(path, expected.getOrder(), actual.getOrder());
+        assertEquals(path, expected.getFragment(), actual.getFragment());
+        assertEquals(path, expected.isEnabled(), actual.isEnabled());
+        assertEquals(path, expected.isSelectable(), actual.isSelectable());
+        assertEquals(path, expected.isPersistent(), actual.isPersistent());
+        assertEquals(path, expected.getDependency(), actual.getDependency());
+        assertEquals(path, expected.getDefaultValue(), actual.getDefaultValue());
+        assertEquals(path, expected.isSingleLineTitle(), actual.isSingleLineTitle());
+        assertEquals(path, expected.isIconSpaceReserved(), actual.isIconSpaceReserved());
+    }
+
+    private static String str(CharSequence text) {
+        return text != null ? text.toString() : null;
+    }
+}
@@ -0,0 +1,165 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceManagerTest {
+
+    private PreferenceManager mPreferenceManager;
+    private SharedPreferences mSharedPreferences;
+    private PreferenceScreen mScreen;
+
+    @Before
+    public void setUp() {
+        final Context context = RuntimeEnvironment.application;
+        mPreferenceManager = new PreferenceManager(context);
+        mSharedPreferences = mPreferenceManager.getSharedPreferences();
+        mScreen = mPreferenceManager.createPreferenceScreen(context);
+    }
+
+    private Preference addPreference(String key) {
+        final Preference preference = new Preference(RuntimeEnvironment.application);
+        preference.setKey(key);
+        mScreen.addPreference(preference);
+        return preference;
+    }
+
+    @Test
+    public void ownWritesKeepPersistedValues() {
+        final Preference preference = addPreference("key");
+        preference.persistString("value");
+        final int generation = mPreferenceManager.getStorageGeneration();
+        ShadowLooper.idleMainLooper();
+
+        assertTrue(mPreferenceManager.isStorageUnchangedSince("key", generation));
+    }
+
+    @Test
+    public void writesOfOtherKeysKeepPersistedValues() {
+        final Preference preference = addPreference("key");
+        preference.persistString("value");
+        final int generation = mPreferenceManager.getStorageGeneration();
+
+        addPreference("other").persistString("other");
+        mSharedPreferences.edit().putString("elsewhere", "value").commit();
+        ShadowLooper.idleMainLooper();
+
+        assertTrue(mPreferenceManager.isStorageUnchangedSince("key", generation));
+        assertFalse(mPreferenceManager.isStorageUnchangedSince("other", generation));
+    }
+
+    @Test
+    public void writesElsewhereInvalidatePersistedValues() {
+        final Preference preference = addPreference("key");
+        preference.persistString("value");
+        final int generation = mPreferenceManager.getStorageGeneration();
+
+        mSharedPreferences.edit().putString("key", "changed").commit();
+        ShadowLooper.idleMainLooper();
+
+        assertFalse(mPreferenceManager.isStorageUnchangedSince("key", generation));
+    }
+
+    @Test
+    public void otherPreferenceWithSameKeyInvalidatesPersistedValue() {
+        final Preference first = addPreference("key");
+        final Preference second = addPreference("key");
+        first.persistString("value");
+        final int generation = mPreferenceManager.getStorageGeneration();
+
+        second.persistString("changed");
+        assertFalse(mPreferenceManager.isStorageUnchangedSince("key", generation));
+    }
+
+    @Test
+    public void notifyStorageChangedInvalidatesEverything() {
+        addPreference("key").persistString("value");
+        final int generation = mPreferenceManager.getStorageGeneration();
+
+        mPreferenceManager.notifyStorageChanged();
+        assertFalse(mPreferenceManager.isStorageUnchangedSince("key", generation));
+        assertFalse(mPreferenceManager.isStorageUnchangedSince("other", generation));
+    }
+
+    @Test
+    public void nestedBatchesApplyOnOutermostEnd() {
+        final Preference first = addPreference("first");
+        final Preference second = addPreference("second");
+
+        mPreferenceManager.beginBatch();
+        first.persistString("value");
+        mPreferenceManager.beginBatch();
+        second.persistString("value");
+        assertSame(mPreferenceManager.getEditor(), mPreferenceManager.getEditor());
+        mPreferenceManager.endBatch();
+        assertFalse(mSharedPreferences.contains("first"));
+        assertFalse(mSharedPreferences.contains("second"));
+
+        mPreferenceManager.endBatch();
+        assertEquals("value", mSharedPreferences.getString("first", null));
+        assertEquals("value", mSharedPreferences.getString("second", null));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endBatchWithoutBeginThrows() {
+        mPreferenceManager.endBatch();
+    }
+
+    @Test
+    public void persistInBatchIsVisibleThroughSnapshot() {
+        final Preference preference = addPreference("key");
+        mSharedPreferences.edit().putString("key", "old").commit();
+        ShadowLooper.idleMainLooper();
+
+        mPreferenceManager.beginBatch();
+        assertEquals("old", mPreferenceManager.getBulkValues().get("key"));
+        preference.persistString("new");
+        assertEquals("new", mPreferenceManager.getBulkValues().get("key"));
+        mPreferenceManager.endBatch();
+    }
+
+    @Test
+    public void snapshotIsDroppedWhenBatchEnds() {
+        assertNull(mPreferenceManager.getBulkValues());
+
+        mPreferenceManager.beginBatch();
+        assertNotNull(mPreferenceManager.getBulkValues());
+        mPreferenceManager.endBatch();
+        assertNull(mPreferenceManager.getBulkValues());
+    }
+
+    @Test
+    public void snapshotIsDroppedWhenStorageChanges() {
+        mPreferenceManager.beginBatch();
+        final Map<String, ?> snapshot = mPreferenceManager.getBulkValues();
+        assertSame(snapshot, mPreferenceManager.getBulkValues());
+
+        mSharedPreferences.edit().putString("elsewhere", "value").commit();
+        ShadowLooper.idleMainLooper();
+        final Map<String, ?> reloaded = mPreferenceManager.getBulkValues();
+        assertNotSame(snapshot, reloaded);
+        assertEquals("value", reloaded.get("elsewhere"));
+
+        mPreferenceManager.notifyStorageChanged();
+        assertNotSame(reloaded, mPreferenceManager.getBulkValues());
+        mPreferenceManager.endBatch();
+    }
+}
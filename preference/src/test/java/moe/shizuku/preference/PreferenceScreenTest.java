@@ -0,0 +1,91 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceScreenTest {
+
+    private Context mContext;
+    private PreferenceManager mPreferenceManager;
+    private PreferenceScreen mScreen;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mPreferenceManager = new PreferenceManager(mContext);
+        mScreen = mPreferenceManager.createPreferenceScreen(mContext);
+    }
+
+    /**
+     * Adds a nested screen whose children, with the given keys, are inflated when needed.
+     */
+    private PreferenceScreen addPendingScreen(PreferenceGroup group, final String... keys) {
+        final PreferenceScreen screen = mPreferenceManager.createPreferenceScreen(mContext);
+        screen.setPersistent(false);
+        group.addPreference(screen);
+        screen.setPendingChildren(new PreferenceScreen.PendingChildren() {
+            @Override
+            public void inflate(PreferenceScreen preferenceScreen) {
+                for (String key : keys) {
+                    final Preference preference = new Preference(mContext);
+                    preference.setKey(key);
+                    preference.setPersistent(false);
+                    preferenceScreen.addPreference(preference);
+                }
+            }
+        }, new HashSet<>(Arrays.asList(keys)));
+        return screen;
+    }
+
+    @Test
+    public void unknownKeyDoesNotInflatePendingScreens() {
+        final PreferenceScreen first = addPendingScreen(mScreen, "a", "b");
+        final PreferenceScreen second = addPendingScreen(mScreen, "c");
+
+        assertNull(mScreen.findPreference("missing"));
+        assertTrue(first.hasPendingChildren());
+        assertTrue(second.hasPendingChildren());
+    }
+
+    @Test
+    public void pendingKeyInflatesOnlyItsScreen() {
+        final PreferenceScreen first = addPendingScreen(mScreen, "a", "b");
+        final PreferenceScreen second = addPendingScreen(mScreen, "c");
+
+        final Preference preference = mScreen.findPreference("c");
+        assertEquals("c", preference.getKey());
+        assertTrue(first.hasPendingChildren());
+        assertFalse(second.hasPendingChildren());
+        assertEquals(1, second.getPreferenceCount());
+    }
+
+    @Test
+    public void pagedItemsAreOnlyLookedUpWithPagedGroups() {
+        final PreferenceCategory category = new PreferenceCategory(mContext);
+        mScreen.addPreference(category);
+        assertEquals(0, mScreen.getPagedGroupCount());
+
+        category.addPreference(new TestPagedPreferenceGroup(mContext, "item", 3));
+        assertEquals(1, category.getPagedGroupCount());
+        assertEquals(1, mScreen.getPagedGroupCount());
+        assertEquals("item2", mScreen.findPreference("item2").getKey());
+
+        mScreen.removePreference(category);
+        assertEquals(0, mScreen.getPagedGroupCount());
+        assertNull(mScreen.findPreference("item2"));
+    }
+}
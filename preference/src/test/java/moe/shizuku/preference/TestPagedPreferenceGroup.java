@@ -0,0 +1,44 @@
+package moe.shizuku.preference;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A paged group whose items are keyed by a prefix followed by their position.
+ */
+class TestPagedPreferenceGroup extends PagedPreferenceGroup {
+
+    private final String mItemKeyPrefix;
+    private final int mItemCount;
+
+    TestPagedPreferenceGroup(Context context, String itemKeyPrefix, int itemCount) {
+        super(context);
+        mItemKeyPrefix = itemKeyPrefix;
+        mItemCount = itemCount;
+    }
+
+    @Override
+    protected int getItemCount() {
+        return mItemCount;
+    }
+
+    @NonNull
+    @Override
+    protected String getItemKey(int position) {
+        return mItemKeyPrefix + position;
+    }
+
+    @NonNull
+    @Override
+    protected Preference onCreateItem(@NonNull Context context, int itemType) {
+        final Preference preference = new Preference(context);
+        preference.setPersistent(false);
+        return preference;
+    }
+
+    @Override
+    protected void onBindItem(@NonNull Preference preference, int position) {
+        preference.setKey(getItemKey(position));
+    }
+}
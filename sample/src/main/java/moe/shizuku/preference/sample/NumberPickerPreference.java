@@ -64,6 +64,14 @@ public class NumberPickerPreference extends DialogPreference {
         return mNumberPicker;
     }
 
+    public void setMin(int min) {
+        mNumberPicker.setMinValue(min);
+    }
+
+    public void setMax(int max) {
+        mNumberPicker.setMaxValue(max);
+    }
+
     public int getValue() {
         return mValue;
     }
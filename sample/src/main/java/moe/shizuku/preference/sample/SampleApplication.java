@@ -0,0 +1,24 @@
+package moe.shizuku.preference.sample;
+
+import android.app.Application;
+import android.os.Build;
+
+import moe.shizuku.preference.PreferenceManager;
+import moe.shizuku.preference.SimpleMenuPreference;
+import moe.shizuku.preference.SwitchPreferenceCompat;
+
+public class SampleApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Lets these be inflated without reflection
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            PreferenceManager.registerPreferenceFactory(
+                    SimpleMenuPreference.class, SimpleMenuPreference.FACTORY);
+        }
+        PreferenceManager.registerPreferenceFactory(
+                SwitchPreferenceCompat.class, SwitchPreferenceCompat.FACTORY);
+    }
+}
@@ -12,11 +12,15 @@ import moe.shizuku.preference.ListPreference;
 import moe.shizuku.preference.Preference;
 import moe.shizuku.preference.PreferenceCategory;
 import moe.shizuku.preference.PreferenceFragment;
+import moe.shizuku.preference.compiler.PreferenceBuilders;
 
 /**
  * An example of the usage of {@link PreferenceFragment}.
+ * <p>
+ * The annotation generates {@code SettingsPreferenceBuilder}, which creates the hierarchy of
+ * {@code R.xml.settings} without inflating it.
  */
-
+@PreferenceBuilders(value = "settings", defaultPackages = BuildConfig.APPLICATION_ID + ".")
 public class SettingsFragment extends PreferenceFragment implements SharedPreferences.OnSharedPreferenceChangeListener, Preference.OnPreferenceChangeListener {
 
     private static final String TAG = SettingsFragment.class.getSimpleName();
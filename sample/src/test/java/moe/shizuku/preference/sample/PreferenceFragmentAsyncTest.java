@@ -0,0 +1,131 @@
+package moe.shizuku.preference.sample;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import androidx.fragment.app.FragmentActivity;
+
+import moe.shizuku.preference.PreferenceFragment;
+import moe.shizuku.preference.PreferenceScreen;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks {@link PreferenceFragment#setPreferencesFromResourceAsync(int, String, Executor)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceFragmentAsyncTest {
+
+    public static class TestFragment extends PreferenceFragment {
+
+        View mPlaceholder;
+
+        @Override
+        public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+            getPreferenceManager().setDefaultPackages(
+                    new String[]{BuildConfig.APPLICATION_ID + "."});
+            getPreferenceManager().setSharedPreferencesName("async");
+            getPreferenceManager().setSharedPreferencesMode(Context.MODE_PRIVATE);
+        }
+
+        @Override
+        public View onCreatePlaceholderView(LayoutInflater inflater, ViewGroup parent) {
+            mPlaceholder = super.onCreatePlaceholderView(inflater, parent);
+            return mPlaceholder;
+        }
+    }
+
+    /**
+     * Runs the inflations on the test thread once {@link #runAll()} is called.
+     */
+    private static class QueueExecutor implements Executor {
+
+        final List<Runnable> mCommands = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mCommands.add(command);
+        }
+
+        void runAll() {
+            for (Runnable command : mCommands) {
+                command.run();
+            }
+            mCommands.clear();
+            ShadowLooper.idleMainLooper();
+        }
+    }
+
+    private TestFragment mFragment;
+    private QueueExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        final ActivityController<FragmentActivity> controller =
+                Robolectric.buildActivity(FragmentActivity.class);
+        controller.get().setTheme(R.style.AppTheme);
+        final FragmentActivity activity = controller.setup().get();
+        mFragment = new TestFragment();
+        mExecutor = new QueueExecutor();
+        activity.getSupportFragmentManager().beginTransaction()
+                .add(android.R.id.content, mFragment)
+                .commitNow();
+    }
+
+    @Test
+    public void placeholderIsShownUntilHierarchyIsInflated() {
+        mFragment.setPreferencesFromResourceAsync(R.xml.settings, null, mExecutor);
+        assertNotNull(mFragment.mPlaceholder);
+        assertNotNull(mFragment.mPlaceholder.getParent());
+        assertNull(mFragment.getPreferenceScreen());
+
+        mExecutor.runAll();
+        assertNull(mFragment.mPlaceholder.getParent());
+        assertNotNull(mFragment.getPreferenceScreen());
+        assertNotNull(mFragment.findPreference("drop_down2"));
+    }
+
+    @Test
+    public void hierarchySetDirectlySupersedesPendingInflation() {
+        mFragment.setPreferencesFromResourceAsync(R.xml.settings, null, mExecutor);
+        final PreferenceScreen screen = mFragment.getPreferenceManager()
+                .createPreferenceScreen(mFragment.getContext());
+        mFragment.setPreferenceScreen(screen);
+        assertNull(mFragment.mPlaceholder.getParent());
+
+        mExecutor.runAll();
+        assertSame(screen, mFragment.getPreferenceScreen());
+    }
+
+    @Test
+    public void laterInflationSupersedesPendingInflation() {
+        mFragment.setPreferencesFromResourceAsync(R.xml.settings, null, mExecutor);
+        final QueueExecutor laterExecutor = new QueueExecutor();
+        mFragment.setPreferencesFromResourceAsync(R.xml.settings, null, laterExecutor);
+
+        laterExecutor.runAll();
+        final PreferenceScreen screen = mFragment.getPreferenceScreen();
+        assertNotNull(screen);
+        assertNull(mFragment.mPlaceholder.getParent());
+
+        mExecutor.runAll();
+        assertSame(screen, mFragment.getPreferenceScreen());
+    }
+}
@@ -0,0 +1,64 @@
+package moe.shizuku.preference.sample;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+
+import java.util.concurrent.Executor;
+
+import androidx.fragment.app.FragmentActivity;
+
+import moe.shizuku.preference.CoalescingPreferenceDataStore;
+import moe.shizuku.preference.InMemoryPreferenceDataStore;
+import moe.shizuku.preference.PreferenceFragment;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a {@link PreferenceFragment} flushes a {@link CoalescingPreferenceDataStore} when
+ * it is stopped.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceFragmentStopTest {
+
+    public static class TestFragment extends PreferenceFragment {
+
+        @Override
+        public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+        }
+    }
+
+    @Test
+    public void stopFlushesCoalescedWrites() {
+        final ActivityController<FragmentActivity> controller =
+                Robolectric.buildActivity(FragmentActivity.class);
+        controller.get().setTheme(R.style.AppTheme);
+        final FragmentActivity activity = controller.setup().get();
+        final TestFragment fragment = new TestFragment();
+        activity.getSupportFragmentManager().beginTransaction()
+                .add(android.R.id.content, fragment)
+                .commitNow();
+
+        final InMemoryPreferenceDataStore wrapped = new InMemoryPreferenceDataStore();
+        // Long enough for the window not to end during the test
+        final CoalescingPreferenceDataStore dataStore = new CoalescingPreferenceDataStore(
+                wrapped, 60 * 60 * 1000, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                });
+        fragment.getPreferenceManager().setPreferenceDataStore(dataStore);
+
+        dataStore.putInt("key", 1);
+        assertEquals(0, dataStore.getFlushCount());
+
+        controller.pause().stop();
+        assertEquals(1, dataStore.getFlushCount());
+        assertEquals(1, wrapped.getInt("key", 0));
+    }
+}
@@ -0,0 +1,202 @@
+package moe.shizuku.preference.sample;
+
+import android.content.Context;
+import android.view.ContextThemeWrapper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import moe.shizuku.preference.DialogPreference;
+import moe.shizuku.preference.EditTextPreference;
+import moe.shizuku.preference.ListPreference;
+import moe.shizuku.preference.MultiSelectListPreference;
+import moe.shizuku.preference.Preference;
+import moe.shizuku.preference.PreferenceGroup;
+import moe.shizuku.preference.PreferenceManager;
+import moe.shizuku.preference.PreferenceScreen;
+import moe.shizuku.preference.RingtonePreference;
+import moe.shizuku.preference.SeekBarPreference;
+import moe.shizuku.preference.SwitchPreference;
+import moe.shizuku.preference.TwoStatePreference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the generated {@code SettingsPreferenceBuilder} creates the same hierarchy as
+ * inflating {@code R.xml.settings}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SettingsPreferenceBuilderTest {
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        // Themed like PreferenceFragment themes the activity
+        mContext = new ContextThemeWrapper(
+                new ContextThemeWrapper(RuntimeEnvironment.application, R.style.AppTheme),
+                R.style.AppTheme_PreferenceTheme);
+    }
+
+    private PreferenceManager createPreferenceManager(String name) {
+        final PreferenceManager preferenceManager = new PreferenceManager(mContext);
+        preferenceManager.setDefaultPackages(new String[]{BuildConfig.APPLICATION_ID + "."});
+        preferenceManager.setSharedPreferencesName(name);
+        preferenceManager.setSharedPreferencesMode(Context.MODE_PRIVATE);
+        return preferenceManager;
+    }
+
+    @Test
+    public void builtHierarchyEqualsInflatedHierarchy() {
+        final PreferenceScreen inflated = createPreferenceManager("inflated")
+                .inflateFromResource(mContext, R.xml.settings, null);
+        final PreferenceScreen built = SettingsPreferenceBuilder.build(
+                createPreferenceManager("built"), mContext);
+        assertPreferenceEquals(inflated, built);
+    }
+
+    private static void assertPreferenceEquals(Preference expected, Preference actual) {
+        final String path = String.valueOf(expected.getTitle());
+        assertEquals(path, expected.getClass(), actual.getClass());
+        assertEquals(path, expected.getKey(), actual.getKey());
+        assertEquals(path, str(expected.getTitle()), str(actual.getTitle()));
+        assertEquals(path, str(expected.getSummary()), str(actual.getSummary()));
+        assertEquals(path, expected.getOrder(), actual.getOrder());
+        assertEquals(path, expected.getFragment(), actual.getFragment());
+        assertEquals(path, expected.getIcon() == null, actual.getIcon() == null);
+        assertEquals(path, expected.getLayoutResource(), actual.getLayoutResource());
+        assertEquals(path, expected.getWidgetLayoutResource(),
+                actual.getWidgetLayoutResource());
+        assertEquals(path, expected.isEnabled(), actual.isEnabled());
+        assertEquals(path, expected.isSelectable(), actual.isSelectable());
+        assertEquals(path, expected.isPersistent(), actual.isPersistent());
+        assertEquals(path, expected.getDependency(), actual.getDependency());
+        assertEquals(path, expected.getShouldDisableView(), actual.getShouldDisableView());
+        assertEquals(path, expected.isSingleLineTitle(), actual.isSingleLineTitle());
+        assertEquals(path, expected.isIconSpaceReserved(), actual.isIconSpaceReserved());
+        assertEquals(path, expected.getDividerBelowVisibility(),
+                actual.getDividerBelowVisibility());
+
+        if (expected instanceof PreferenceGroup) {
+            final PreferenceGroup expectedGroup = (PreferenceGroup) expected;
+            final PreferenceGroup actualGroup = (PreferenceGroup) actual;
+            assertEquals(path, expectedGroup.isOrderingAsAdded(), actualGroup.isOrderingAsAdded());
+            assertEquals(path, expectedGroup.getPreferenceCount(),
+                    actualGroup.getPreferenceCount());
+            for (int i = 0; i < expectedGroup.getPreferenceCount(); i++) {
+                assertPreferenceEquals(expectedGroup.getPreference(i),
+                        actualGroup.getPreference(i));
+            }
+        }
+        if (expected instanceof TwoStatePreference) {
+            final TwoStatePreference expectedTwoState = (TwoStatePreference) expected;
+            final TwoStatePreference actualTwoState = (TwoStatePreference) actual;
+            assertEquals(path, expectedTwoState.isChecked(), actualTwoState.isChecked());
+            assertEquals(path, str(expectedTwoState.getSummaryOn()),
+                    str(actualTwoState.getSummaryOn()));
+            assertEquals(path, str(expectedTwoState.getSummaryOff()),
+                    str(actualTwoState.getSummaryOff()));
+            assertEquals(path, expectedTwoState.getDisableDependentsState(),
+                    actualTwoState.getDisableDependentsState());
+        }
+        if (expected instanceof SwitchPreference) {
+            assertEquals(path, str(((SwitchPreference) expected).getSwitchTextOn()),
+                    str(((SwitchPreference) actual).getSwitchTextOn()));
+            assertEquals(path, str(((SwitchPreference) expected).getSwitchTextOff()),
+                    str(((SwitchPreference) actual).getSwitchTextOff()));
+        }
+        if (expected instanceof DialogPreference) {
+            final DialogPreference expectedDialog = (DialogPreference) expected;
+            final DialogPreference actualDialog = (DialogPreference) actual;
+            assertEquals(path, str(expectedDialog.getDialogTitle()),
+                    str(actualDialog.getDialogTitle()));
+            assertEquals(path, str(expectedDialog.getDialogMessage()),
+                    str(actualDialog.getDialogMessage()));
+            assertEquals(path, expectedDialog.getDialogIcon() == null,
+                    actualDialog.getDialogIcon() == null);
+            assertEquals(path, str(expectedDialog.getPositiveButtonText()),
+                    str(actualDialog.getPositiveButtonText()));
+            assertEquals(path, str(expectedDialog.getNegativeButtonText()),
+                    str(actualDialog.getNegativeButtonText()));
+            assertEquals(path, expectedDialog.getDialogLayoutResource(),
+                    actualDialog.getDialogLayoutResource());
+        }
+        if (expected instanceof EditTextPreference) {
+            final EditTextPreference expectedEditText = (EditTextPreference) expected;
+            final EditTextPreference actualEditText = (EditTextPreference) actual;
+            assertEquals(path, expectedEditText.getText(), actualEditText.getText());
+            assertEquals(path, expectedEditText.getInputType(), actualEditText.getInputType());
+            assertEquals(path, expectedEditText.getHint(), actualEditText.getHint());
+            assertEquals(path, expectedEditText.isSingleLine(), actualEditText.isSingleLine());
+            assertEquals(path, expectedEditText.isSelectAllOnFocus(),
+                    actualEditText.isSelectAllOnFocus());
+            assertEquals(path, expectedEditText.isCommitOnEnter(),
+                    actualEditText.isCommitOnEnter());
+        }
+        if (expected instanceof ListPreference) {
+            final ListPreference expectedList = (ListPreference) expected;
+            final ListPreference actualList = (ListPreference) actual;
+            assertArrayEquals(path, strs(expectedList.getEntries()), strs(actualList.getEntries()));
+            assertArrayEquals(path, strs(expectedList.getEntryValues()),
+                    strs(actualList.getEntryValues()));
+            assertEquals(path, expectedList.getValue(), actualList.getValue());
+        }
+        if (expected instanceof MultiSelectListPreference) {
+            final MultiSelectListPreference expectedList = (MultiSelectListPreference) expected;
+            final MultiSelectListPreference actualList = (MultiSelectListPreference) actual;
+            assertArrayEquals(path, strs(expectedList.getEntries()), strs(actualList.getEntries()));
+            assertArrayEquals(path, strs(expectedList.getEntryValues()),
+                    strs(actualList.getEntryValues()));
+            assertEquals(path, expectedList.getValues(), actualList.getValues());
+        }
+        if (expected instanceof SeekBarPreference) {
+            final SeekBarPreference expectedSeekBar = (SeekBarPreference) expected;
+            final SeekBarPreference actualSeekBar = (SeekBarPreference) actual;
+            assertEquals(path, expectedSeekBar.getMin(), actualSeekBar.getMin());
+            assertEquals(path, expectedSeekBar.getMax(), actualSeekBar.getMax());
+            assertEquals(path, expectedSeekBar.getSeekBarIncrement(),
+                    actualSeekBar.getSeekBarIncrement());
+            assertEquals(path, expectedSeekBar.isAdjustable(), actualSeekBar.isAdjustable());
+            assertEquals(path, expectedSeekBar.getValue(), actualSeekBar.getValue());
+        }
+        if (expected instanceof RingtonePreference) {
+            final RingtonePreference expectedRingtone = (RingtonePreference) expected;
+            final RingtonePreference actualRingtone = (RingtonePreference) actual;
+            assertEquals(path, expectedRingtone.getRingtoneType(),
+                    actualRingtone.getRingtoneType());
+            assertEquals(path, expectedRingtone.getShowDefault(),
+                    actualRingtone.getShowDefault());
+            assertEquals(path, expectedRingtone.getShowSilent(), actualRingtone.getShowSilent());
+            assertEquals(path, expectedRingtone.getSummaryNone(),
+                    actualRingtone.getSummaryNone());
+        }
+        if (expected instanceof NumberPickerPreference) {
+            final NumberPickerPreference expectedNumberPicker = (NumberPickerPreference) expected;
+            final NumberPickerPreference actualNumberPicker = (NumberPickerPreference) actual;
+            assertEquals(path, expectedNumberPicker.getValue(), actualNumberPicker.getValue());
+            assertEquals(path, expectedNumberPicker.getNumberPicker().getMinValue(),
+                    actualNumberPicker.getNumberPicker().getMinValue());
+            assertEquals(path, expectedNumberPicker.getNumberPicker().getMaxValue(),
+                    actualNumberPicker.getNumberPicker().getMaxValue());
+        }
+    }
+
+    private static String str(CharSequence text) {
+        return text != null ? text.toString() : null;
+    }
+
+    private static String[] strs(CharSequence[] texts) {
+        if (texts == null) {
+            return null;
+        }
+        final String[] strings = new String[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            strings[i] = texts[i].toString();
+        }
+        return strings;
+    }
+}